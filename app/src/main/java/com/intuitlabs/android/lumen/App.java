@@ -43,6 +43,14 @@ public class App extends Application {
     public void onCreate() {
         super.onCreate();
         mContext = this.getApplicationContext();
+        // decode the notification backgrounds, before the first message arrives
+        new Thread() {
+            @Override
+            public void run() {
+                super.run();
+                BitmapCache.getInstance(mContext).preload();
+            }
+        }.start();
     }
 
     /**
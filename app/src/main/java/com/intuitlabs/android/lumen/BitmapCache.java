@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.intuit.intuitwear.utils.IntuitWearUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * BitmapCache holds the decoded drawables used by notifications, scaled to the size they are shown in,
+ * so that a drawable named in a notification is resolved and decoded only once, not for every notification.
+ * <p/>
+ * The lightbulb backgrounds (ic_lightbulb_b, _g, _r and _y) are resolved up front and can be decoded ahead
+ * of the first notification, see {@link #preload}. The bitmaps are kept in an {@link LruCache}, bounded by their size
+ * in bytes, names not found in the res directory are remembered as well. URLs are never resolved here,
+ * they're left to the IntuitWear SDK.
+ */
+final class BitmapCache {
+    private static final String LOG_TAG = BitmapCache.class.getSimpleName();
+    /**
+     * Size of a wearable's background, in pixels
+     */
+    private static final int BACKGROUND_PX = 400;
+    private static BitmapCache instance;
+
+    private final Resources resources;
+    private final String packageName;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final LruCache<String, Bitmap> bitmaps;
+    private final int iconWidth;
+    private final int iconHeight;
+
+    private BitmapCache(final Context context) {
+        this.resources = context.getResources();
+        this.packageName = context.getPackageName();
+        this.iconWidth = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        this.iconHeight = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+        this.bitmaps = new LruCache<String, Bitmap>((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16)) {
+            @Override
+            protected int sizeOf(final String key, final Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        ids.put("ic_lightbulb", R.drawable.ic_lightbulb);
+        ids.put("ic_lightbulb_b", R.drawable.ic_lightbulb_b);
+        ids.put("ic_lightbulb_g", R.drawable.ic_lightbulb_g);
+        ids.put("ic_lightbulb_r", R.drawable.ic_lightbulb_r);
+        ids.put("ic_lightbulb_y", R.drawable.ic_lightbulb_y);
+    }
+
+    /**
+     * @param context {@link Context} application context
+     * @return {@link BitmapCache} the app's cache
+     */
+    static synchronized BitmapCache getInstance(final Context context) {
+        if (instance == null) {
+            instance = new BitmapCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Decode the lightbulb backgrounds, should not be called on the main thread.
+     */
+    void preload() {
+        for (final String name : new String[]{"ic_lightbulb_b", "ic_lightbulb_g", "ic_lightbulb_r", "ic_lightbulb_y"}) {
+            getBackground(name);
+        }
+    }
+
+    /**
+     * @param name {@link String} drawable name, may be null
+     * @return {@link Bitmap} the drawable, scaled to a wearable's background, null if not found
+     */
+    Bitmap getBackground(final String name) {
+        return get(name, BACKGROUND_PX, BACKGROUND_PX);
+    }
+
+    /**
+     * @param name {@link String} drawable name, may be null
+     * @return {@link Bitmap} the drawable, scaled to a notification's large icon, null if not found
+     */
+    Bitmap getLargeIcon(final String name) {
+        return get(name, iconWidth, iconHeight);
+    }
+
+    private Bitmap get(final String name, final int width, final int height) {
+        final int id = getId(name);
+        if (id == 0) {
+            return null;
+        }
+        final String key = name + '@' + width + 'x' + height;
+        Bitmap bitmap = bitmaps.get(key);
+        if (bitmap == null) {
+            bitmap = decode(id, width, height);
+            if (bitmap != null) {
+                bitmaps.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * @param name {@link String} drawable name, may be null or a URL
+     * @return {@link int} resource id of the drawable, 0 if not found
+     */
+    int getId(final String name) {
+        if (name == null || name.isEmpty() || IntuitWearUtils.isURL(name)) {
+            return 0;
+        }
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = resources.getIdentifier(name, "drawable", packageName);
+            if (id == 0) {
+                Log.w(LOG_TAG, "Drawable " + name + ", specified for a notification was not found in the res directory.");
+            }
+            ids.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Decode a drawable, subsampled while reading and scaled down to fit into the given size.
+     */
+    private Bitmap decode(final int id, final int width, final int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(resources, id, options);
+        int sampleSize = 1;
+        while (2 * width <= options.outWidth / sampleSize && 2 * height <= options.outHeight / sampleSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        final Bitmap bitmap = BitmapFactory.decodeResource(resources, id, options);
+        if (bitmap == null || (bitmap.getWidth() <= width && bitmap.getHeight() <= height)) {
+            return bitmap;
+        }
+        final float scale = Math.min((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+        if (scaled != bitmap) {
+            bitmap.recycle();
+        }
+        return scaled;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import com.intuit.intuitwear.notifications.BigTextStyle;
+import com.intuit.intuitwear.notifications.IWearNotificationContent;
+import com.intuit.intuitwear.notifications.InboxStyle;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.nio.charset.Charset;
+
+/**
+ * CompactPayload decodes the compact payload format, which the forwarding server sends instead of JSON,
+ * if configured to: a Base64 encoded binary record, with one byte tags instead of the long JSON keys.
+ * <p/>
+ * Version 1 of the record:
+ * <pre>
+ * version (1 byte, 1) | trace id (8 bytes) | sent (8 bytes, ms since the epoch) | field*
+ * field = tag (1 byte) | length (varint) | UTF-8 bytes
+ * </pre>
+ * Fields with unknown tags are skipped. A JSON payload always starts with a brace, which never appears in Base64,
+ * see {@link #isCompact}.
+ */
+final class CompactPayload {
+    private static final int VERSION = 1;
+    private static final int HEADER = 17;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int STYLE = 1;
+    private static final int CONTENT_TITLE = 2;
+    private static final int CONTENT_TEXT = 3;
+    private static final int SMALL_ICON = 4;
+    private static final int LARGE_ICON = 5;
+    private static final int BACKGROUND = 6;
+    private static final int BIG_CONTENT_TITLE = 7;
+    private static final int BIG_TEXT = 8;
+    private static final int SUMMARY = 9;
+    private static final int INBOX_TITLE = 10;
+    private static final int LINE1 = 11;
+    private static final int INBOX_SUMMARY = 12;
+
+    private CompactPayload() {
+    }
+
+    /**
+     * @param payload {@link String} payload as received
+     * @return {@link boolean} true, if the payload is in the compact format, false for JSON
+     */
+    static boolean isCompact(final String payload) {
+        for (int i = 0; i < payload.length(); i++) {
+            final char c = payload.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c != '{';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param payload {@link String} compact payload
+     * @return {@link IWearNotificationContent} or null, if the payload is not a valid record of a known version
+     */
+    static IWearNotificationContent decode(final String payload) {
+        // the String variant of decodeBase64 is missing from the commons-codec some Android versions ship with
+        final byte[] record = Base64.decodeBase64(payload.trim().getBytes(UTF8));
+        if (record.length < HEADER || record[0] != VERSION) {
+            return null;
+        }
+        final IWearNotificationContent content = new IWearNotificationContent();
+        BigTextStyle bigTextStyle = null;
+        InboxStyle inboxStyle = null;
+        int i = HEADER;
+        while (i < record.length) {
+            final int tag = record[i++];
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (record.length <= i || 28 < shift) {
+                    return null;
+                }
+                b = record[i++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (length < 0 || record.length - i < length) {
+                return null;
+            }
+            final String value = new String(record, i, length, UTF8);
+            i += length;
+            switch (tag) {
+                case STYLE:
+                    content.setStyle(value);
+                    break;
+                case CONTENT_TITLE:
+                    content.setContentTitle(value);
+                    break;
+                case CONTENT_TEXT:
+                    content.setContentText(value);
+                    break;
+                case SMALL_ICON:
+                    content.setSmallIcon(value);
+                    break;
+                case LARGE_ICON:
+                    content.setLargeIcon(value);
+                    break;
+                case BACKGROUND:
+                    content.setBackground(value);
+                    break;
+                case BIG_CONTENT_TITLE:
+                case BIG_TEXT:
+                case SUMMARY:
+                    if (bigTextStyle == null) {
+                        bigTextStyle = new BigTextStyle();
+                        content.setBigTextStyle(bigTextStyle);
+                    }
+                    if (tag == BIG_CONTENT_TITLE) {
+                        bigTextStyle.setBigContentTitle(value);
+                    } else if (tag == BIG_TEXT) {
+                        bigTextStyle.setBigText(value);
+                    } else {
+                        bigTextStyle.setSummary(value);
+                    }
+                    break;
+                case INBOX_TITLE:
+                case LINE1:
+                case INBOX_SUMMARY:
+                    if (inboxStyle == null) {
+                        inboxStyle = new InboxStyle();
+                        content.setInboxStyle(inboxStyle);
+                    }
+                    if (tag == INBOX_TITLE) {
+                        inboxStyle.setInboxTitle(value);
+                    } else if (tag == LINE1) {
+                        inboxStyle.setLine1(value);
+                    } else {
+                        inboxStyle.setInboxSummary(value);
+                    }
+                    break;
+                default:
+                    // a field added after this version, skipped
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Read only the trace of a compact payload, which is in its first 24 characters.
+     *
+     * @param payload {@link String} compact payload
+     * @return {@link long[]} trace id and time sent, or null if the payload doesn't carry a trace
+     */
+    static long[] trace(final String payload) {
+        final String head = payload.trim();
+        final byte[] header = Base64.decodeBase64(head.substring(0, Math.min(24, head.length())).getBytes(UTF8));
+        if (header.length < HEADER || header[0] != VERSION) {
+            return null;
+        }
+        final long id = readLong(header, 1);
+        return id == 0 ? null : new long[]{id, readLong(header, 9)};
+    }
+
+    private static long readLong(final byte[] b, final int offset) {
+        long v = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            v = v << 8 | (b[i] & 0xff);
+        }
+        return v;
+    }
+}
@@ -24,22 +24,16 @@ package com.intuitlabs.android.lumen;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.google.android.gcm.GCMBaseIntentService;
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.android.gcm.GCMRegistrar;
 import com.intuit.intuitwear.exceptions.IntuitWearException;
 import com.intuit.intuitwear.notifications.IWearNotificationContent;
-import com.intuit.intuitwear.notifications.IWearNotificationSender;
-import com.intuit.intuitwear.notifications.IWearNotificationType;
 import com.intuit.mobile.png.sdk.PushNotificationsV2;
-import com.intuit.mobile.png.sdk.UserTypeEnum;
-import com.intuit.mobile.png.sdk.callback.RegisterUserCallback;
 
 import java.lang.ref.WeakReference;
 
@@ -51,44 +45,64 @@ import java.lang.ref.WeakReference;
  */
 public class GCMIntentService extends GCMBaseIntentService {
 
-    static final String MSG_KEY = GCMIntentService.class.getName() + "_MSG_KEY";
-    private static final String GCM_PROJECT_NUMBER = App.getContext().getString(R.string.GCM_PROJECT_NUMBER);
-    private static final String INTUIT_SENDER_ID = App.getContext().getString(R.string.INTUIT_SENDER_ID);
+    static final int MSG_SHOW = 1;
     private static final String LOG_TAG = GCMIntentService.class.getSimpleName();
     private static final String REG_URL = "https://png.d2d.msg.intuit.com";
 
     static MyHandler handler;
 
-    private static String userid;
-    private static String[] groups;
-
-
+    private static boolean initialized;
 
+    /**
+     * The GCM project number is provided by {@link #getSenderIds}, nothing needs to be read when this class is loaded.
+     */
     public GCMIntentService() {
-        super(GCM_PROJECT_NUMBER);
+        super();
     }
 
     /**
-     * Register with GCM, which will eventually trigger {@link #onRegistered} to be called.
+     * Initialize the PNG SDK, which has to happen before any other call into it.
+     *
+     * @param context {@link android.content.Context} Application context
+     */
+    static synchronized void initialize(final Context context) {
+        if (!initialized) {
+            PushNotificationsV2.URL_OVERRIDE = REG_URL;
+            PushNotificationsV2.Environment environment = PushNotificationsV2.Environment.SANDBOX;
+            PushNotificationsV2.initialize(context.getString(R.string.INTUIT_SENDER_ID), context.getString(R.string.GCM_PROJECT_NUMBER), environment);
+            PushNotificationsV2.setLogging(true);
+            initialized = true;
+        }
+    }
+
+    /**
+     * Register with GCM, which will eventually trigger {@link #onRegistered} to be called,
+     * or, if GCM already provided a registration id, register the user with PNG right away.
      *
      * @param context {@link android.content.Context} Application context
      * @param userid  {@link String} how your app refers to this user
      */
     public static void register(final Context context, final String userid) {
-        GCMIntentService.userid = userid;
-        GCMIntentService.groups = App.concat(context.getResources().getStringArray(R.array.condition_defaults_pi),
-                context.getResources().getStringArray(R.array.condition_defaults_esp));
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         SharedPreferences.Editor editor = prefs.edit();
         editor.putString(context.getString(R.string.preference_key_userid), userid);
-        editor.putBoolean(context.getString(R.string.preference_key_sync), true);
         editor.apply();
 
-        PushNotificationsV2.URL_OVERRIDE = REG_URL;
-        PushNotificationsV2.Environment environment = PushNotificationsV2.Environment.SANDBOX;
-        PushNotificationsV2.initialize(INTUIT_SENDER_ID, GCM_PROJECT_NUMBER, environment);
-        PushNotificationsV2.setLogging(true);
-        PushNotificationsV2.registerForGCMNotifications(context);
+        initialize(context);
+        final String registrationId = GCMRegistrar.getRegistrationId(context);
+        if (registrationId.isEmpty()) {
+            PushNotificationsV2.registerForGCMNotifications(context);
+        } else {
+            Registration.registerUser(context, registrationId);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    protected String[] getSenderIds(final Context context) {
+        return new String[]{context.getString(R.string.GCM_PROJECT_NUMBER)};
     }
 
     /**
@@ -102,40 +116,25 @@ public class GCMIntentService extends GCMBaseIntentService {
 
     /**
      * Google will call this method, providing you a unique registrationId for this device.
-     * We recommended to save the registrationId to local preferences for later use.
-     * e.g. saveRegistrationId(registrationId);
+     * The {@link Registration} registers the user with PNG and keeps the registrationId, once PNG accepted it.
      *
      * @param context        {@link android.content.Context} Application context
      * @param registrationId {@link String} unique registrationId for this device
      */
     @Override
     protected void onRegistered(final Context context, final String registrationId) {
-        PushNotificationsV2.registerUser(
-                this,
-                GCMIntentService.userid,
-                UserTypeEnum.OTHER,
-                GCMIntentService.groups,
-                registrationId,
-                new RegisterUserCallback() {
-
-                    @Override
-                    public void onUserRegistered() {
-                        Log.i(LOG_TAG, "Registration call to PNG servers was accepted");
-                    }
-
-                    @Override
-                    public void onError(String code, String description) {
-                        Log.i(LOG_TAG, String.format("Received error callback from PNG. Error code= %s, description= %s", code, description));
-                    }
-                });
+        Registration.registerUser(context, registrationId);
     }
 
     /**
      * This callback method is invoked when GCM delivers a notification to the device.
+     * It runs on the service's worker thread, not on the main thread.
      * <p/>
-     * Assuming that the json encoded message is a valid (see IntuitWear JSONSchema) document,
-     * we acquire an instance of a {@link IWearNotificationSender.Factory} to create a NotificationSender,
-     * which will send the generated notification to the wearable device.
+     * The json encoded message (see IntuitWear JSONSchema) is decoded once, by the {@link NotificationDecoder},
+     * which also picks up the {@link MessageTrace} the server stamped into it,
+     * the message is added to the {@link MessageHistory},
+     * the resulting content is shown by the foreground activity, if any, and handed to the {@link NotificationCoalescer},
+     * which sends it to the wearable device, possibly merged with the other notifications of a burst.
      *
      * @param context {@link android.content.Context} Application context
      * @param intent  {@link android.content.Intent} received with the push notification
@@ -143,22 +142,56 @@ public class GCMIntentService extends GCMBaseIntentService {
     @Override
     protected void onMessage(final Context context, final Intent intent) {
         Log.v(LOG_TAG, "Received onMessage call");
+        final long received = System.currentTimeMillis();
 
-        final String message = intent.getStringExtra("payload").replaceAll("[\r\n]+$", "");
+        final String message = intent.getStringExtra("payload");
+        final IWearNotificationContent content = NotificationDecoder.decode(message, received);
+        if (content == null) {
+            return;
+        }
         Log.v(LOG_TAG, "Not inside quiet time, so let's display a notification :" + message);
-        PreferenceManager.getDefaultSharedPreferences(context).edit().putString("lastMsg", message).apply();
+        MessageHistory.getInstance(context).append(message, content);
+        show(content);
+        NotificationCoalescer.getInstance(context).offer(content);
+    }
+
+    /**
+     * Send the notification to the wearable device, using the app's {@link WearNotificationSender},
+     * should not be called on the main thread.
+     *
+     * @param context {@link android.content.Context} Application context
+     * @param content {@link IWearNotificationContent} decoded notification
+     */
+    static void deliver(final Context context, final IWearNotificationContent content) {
+        deliver(context, content, WearNotificationSender.getNotificationId(content));
+    }
+
+    /**
+     * Send the notification to the wearable device, replacing the notification posted under the same id.
+     *
+     * @param context {@link android.content.Context} Application context
+     * @param content {@link IWearNotificationContent} decoded notification
+     * @param id      {@link int} notification id, see {@link WearNotificationSender#getNotificationId}
+     */
+    static void deliver(final Context context, final IWearNotificationContent content, final int id) {
         try {
-            IWearNotificationSender.Factory.getsInstance().createNotificationSender(IWearNotificationType.ANDROID, this, message).sendNotification(this);
+            WearNotificationSender.getInstance(context).send(context, content, id);
         } catch (IntuitWearException e) {
             Log.e(LOG_TAG, e.toString());
         }
+    }
 
-        if (handler != null) {
-            Message m = new Message();
-            Bundle b = new Bundle();
-            b.putString(MSG_KEY, message);
-            m.setData(b);
-            handler.sendMessage(m);
+    /**
+     * Show the notification, in case this app is running and in the foreground.
+     *
+     * @param content {@link IWearNotificationContent} decoded notification
+     */
+    static void show(final IWearNotificationContent content) {
+        final Handler h = handler;
+        if (h != null) {
+            // during a burst, only the latest notification is worth drawing
+            h.removeMessages(MSG_SHOW);
+            h.sendMessage(h.obtainMessage(MSG_SHOW, content));
         }
     }
 
@@ -186,6 +219,7 @@ public class GCMIntentService extends GCMBaseIntentService {
 
     /**
      * Handler that can display incoming messages, if the registered Activity is still around.
+     * The messages carry the already decoded {@link IWearNotificationContent}, nothing gets parsed on the main thread.
      */
     static class MyHandler extends Handler {
         //Using a weak reference means we won't prevent garbage collection
@@ -202,14 +236,8 @@ public class GCMIntentService extends GCMBaseIntentService {
         @Override
         public void handleMessage(final Message msg) {
             MainActivity.PlaceholderFragment fragment = myClassWeakReference.get();
-            if (fragment != null && msg != null) {
-                final IWearNotificationContent content;
-                try {
-                    content = new Gson().fromJson(msg.getData().getString(MSG_KEY, ""), IWearNotificationContent.class);
-                    fragment.showMessage(content);
-                } catch (JsonSyntaxException e) {
-                    Log.e(LOG_TAG, "IWearNotificationContent instantiation failed" + e.toString());
-                }
+            if (fragment != null && msg != null && msg.what == MSG_SHOW) {
+                fragment.showMessage((IWearNotificationContent) msg.obj);
             }
         }
     }
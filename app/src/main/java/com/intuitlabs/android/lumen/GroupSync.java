@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.google.android.gcm.GCMRegistrar;
+import com.intuit.mobile.png.sdk.PushNotificationsV2;
+import com.intuit.mobile.png.sdk.UserTypeEnum;
+import com.intuit.mobile.png.sdk.callback.RegisterUserCallback;
+import com.intuit.mobile.png.sdk.callback.RemoveUserFromGroupCallback;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GroupSync keeps the PNG group memberships of this user in line with the lighting conditions selected in the settings.
+ * <p/>
+ * For every group, the state last confirmed by the PNG server is kept: subscribed, unsubscribed, or unknown.
+ * A group is pending, if its confirmed state differs from the selection, or is unknown. If any group is to be
+ * subscribed, the whole selection is sent in a single registerUser call, since PNG doesn't document whether
+ * a registration adds to the user's groups or replaces them. Groups to unsubscribe take one removeUserFromGroup
+ * call each, since PNG offers no other way.
+ * <p/>
+ * Syncs run one at a time on a single background thread. A sync is started a moment after the last change,
+ * so that toggling a few conditions in a row results in a single sync, and is retried with exponential backoff,
+ * as long as groups remain pending.
+ */
+final class GroupSync {
+    private static final String LOG_TAG = GroupSync.class.getSimpleName();
+    private static final String PREFS = "group_sync";
+    private static final String KEY_SUBSCRIBED = "subscribed";
+    private static final String KEY_UNSUBSCRIBED = "unsubscribed";
+    private static final long DEBOUNCE_MS = 1500;
+    private static final long INITIAL_BACKOFF_MS = 5000;
+    private static final long MAX_BACKOFF_MS = 10 * 60 * 1000;
+    private static final long CALL_TIMEOUT_SECONDS = 60;
+
+    private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "lumen-group-sync");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static ScheduledFuture<?> scheduled;
+    private static long backoffMs = INITIAL_BACKOFF_MS;
+
+    private GroupSync() {
+    }
+
+    /**
+     * Sync the pending groups shortly, a request arriving before the sync started replaces it.
+     *
+     * @param context {@link Context}
+     */
+    static synchronized void request(final Context context) {
+        backoffMs = INITIAL_BACKOFF_MS;
+        schedule(context.getApplicationContext(), DEBOUNCE_MS);
+    }
+
+    private static synchronized void schedule(final Context context, final long delayMs) {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+        scheduled = EXECUTOR.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!sync(context)) {
+                    retry(context);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized void retry(final Context context) {
+        Log.i(LOG_TAG, "Groups still pending, retrying in " + backoffMs + "ms");
+        schedule(context, backoffMs);
+        backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+    }
+
+    /**
+     * @param context {@link Context}
+     * @return {@link SharedPreferences} the confirmed group states, listeners get notified when a group got confirmed
+     */
+    static SharedPreferences getState(final Context context) {
+        return context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Record groups the server confirmed, e.g. when the user got registered with them.
+     *
+     * @param context    {@link Context}
+     * @param groups     {@link Collection} group names
+     * @param subscribed {@link boolean} true, if the user is a member of the groups now, false if not
+     */
+    static void confirmed(final Context context, final Collection<String> groups, final boolean subscribed) {
+        final SharedPreferences state = getState(context);
+        final Set<String> in = new HashSet<>(state.getStringSet(KEY_SUBSCRIBED, new HashSet<String>()));
+        final Set<String> out = new HashSet<>(state.getStringSet(KEY_UNSUBSCRIBED, new HashSet<String>()));
+        if (subscribed) {
+            in.addAll(groups);
+            out.removeAll(groups);
+        } else {
+            out.addAll(groups);
+            in.removeAll(groups);
+        }
+        state.edit().putStringSet(KEY_SUBSCRIBED, in).putStringSet(KEY_UNSUBSCRIBED, out).apply();
+    }
+
+    /**
+     * @param context {@link Context}
+     * @return {@link boolean} true, if the server doesn't reflect the selection for at least one group
+     */
+    static boolean isPending(final Context context) {
+        final Set<String>[] diff = diff(context);
+        return !diff[1].isEmpty() || !diff[2].isEmpty();
+    }
+
+    /**
+     * @param context {@link Context}
+     * @return {@link Set} the groups selected in the settings, the defaults, if nothing was selected yet
+     */
+    static Set<String> getSelected(final Context context) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final Set<String> selected = new HashSet<>();
+        selected.addAll(prefs.getStringSet(context.getString(R.string.preference_key_sources_pi),
+                new HashSet<>(Arrays.asList(context.getResources().getStringArray(R.array.condition_defaults_pi)))));
+        selected.addAll(prefs.getStringSet(context.getString(R.string.preference_key_sources_esp),
+                new HashSet<>(Arrays.asList(context.getResources().getStringArray(R.array.condition_defaults_esp)))));
+        return selected;
+    }
+
+    /**
+     * @return {@link Set[]} the selected groups, groups to subscribe to, and groups to unsubscribe from
+     */
+    @SuppressWarnings("unchecked")
+    private static Set<String>[] diff(final Context context) {
+        final SharedPreferences state = getState(context);
+        final Set<String> selected = getSelected(context);
+
+        final Set<String> subscribe = new HashSet<>(selected);
+        subscribe.removeAll(state.getStringSet(KEY_SUBSCRIBED, new HashSet<String>()));
+
+        final Set<String> unsubscribe = new HashSet<>(Arrays.asList(App.concat(
+                context.getResources().getStringArray(R.array.condition_values_pi),
+                context.getResources().getStringArray(R.array.condition_values_esp))));
+        unsubscribe.removeAll(selected);
+        unsubscribe.removeAll(state.getStringSet(KEY_UNSUBSCRIBED, new HashSet<String>()));
+        return new Set[]{selected, subscribe, unsubscribe};
+    }
+
+    /**
+     * Send the pending groups to the server, runs on the sync thread.
+     *
+     * @return {@link boolean} true, if no group is pending anymore
+     */
+    private static boolean sync(final Context context) {
+        final Set<String>[] diff = diff(context);
+        final Set<String> selected = diff[0];
+        final Set<String> subscribe = diff[1];
+        final Set<String> unsubscribe = diff[2];
+        if (subscribe.isEmpty() && unsubscribe.isEmpty()) {
+            return true;
+        }
+        final String userId = PreferenceManager.getDefaultSharedPreferences(context).getString(context.getString(R.string.preference_key_userid), "");
+        final String registrationId = GCMRegistrar.getRegistrationId(context);
+        if (userId.isEmpty() || registrationId.isEmpty()) {
+            Log.i(LOG_TAG, "Not registered yet, groups remain pending");
+            return false;
+        }
+        Log.i(LOG_TAG, "Syncing groups, subscribe " + subscribe + ", unsubscribe " + unsubscribe);
+        GCMIntentService.initialize(context);
+        boolean ok = true;
+        if (!subscribe.isEmpty()) {
+            final boolean[] success = new boolean[1];
+            final CountDownLatch done = new CountDownLatch(1);
+            PushNotificationsV2.registerUser(context, userId, UserTypeEnum.OTHER, selected.toArray(new String[selected.size()]),
+                    registrationId, new RegisterUserCallback() {
+                        @Override
+                        public void onUserRegistered() {
+                            success[0] = true;
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onError(final String s, final String s2) {
+                            Log.e(LOG_TAG, "registerUser " + s + s2);
+                            done.countDown();
+                        }
+                    });
+            if (await(done) && success[0]) {
+                confirmed(context, selected, true);
+            } else {
+                ok = false;
+            }
+        }
+        for (final String group : unsubscribe) {
+            final boolean[] success = new boolean[1];
+            final CountDownLatch done = new CountDownLatch(1);
+            PushNotificationsV2.removeUserFromGroup(context, userId, group, new RemoveUserFromGroupCallback() {
+                @Override
+                public void onUserRemovedFromGroup() {
+                    success[0] = true;
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(final String s, final String s2) {
+                    Log.e(LOG_TAG, "removeUserFromGroup " + group + " " + s + s2);
+                    done.countDown();
+                }
+            });
+            if (await(done) && success[0]) {
+                confirmed(context, Arrays.asList(group), false);
+            } else {
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private static boolean await(final CountDownLatch done) {
+        try {
+            return done.await(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
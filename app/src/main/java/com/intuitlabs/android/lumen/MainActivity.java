@@ -21,24 +21,22 @@
  */
 package com.intuitlabs.android.lumen;
 
-import android.accounts.Account;
-import android.accounts.AccountManager;
 import android.app.Activity;
 import android.app.Fragment;
-import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.util.Patterns;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Button;
 import android.widget.TextView;
 
 import com.intuit.intuitwear.notifications.IWearNotificationContent;
 
-import java.util.UUID;
-import java.util.regex.Pattern;
+import java.util.List;
 
 /**
  * The Main activity of this app is switching between the Settings and Placeholder fragment.
@@ -49,28 +47,9 @@ public class MainActivity extends Activity {
      */
     private static final String FRAG_TAG_SETTINGS = "tag";
 
-    /**
-     * Returns a unique id to address the user from the remote side.
-     *
-     * @param context {@link Context}
-     * @return {@link String} unique id, most likely, the user's email address.
-     */
-    private static String getId(final Context context) {
-        final Pattern emailPattern = Patterns.EMAIL_ADDRESS;
-        final Account[] accounts = AccountManager.get(context).getAccounts();
-        String id = UUID.randomUUID().toString();
-        for (Account account : accounts) {
-            if (emailPattern.matcher(account.name).matches()) {
-                id = account.name;
-                break;
-            }
-        }
-        return id;
-    }
-
     /**
      * Setting up the main ui, i.e. loading an image into the PlaceholderFragment.
-     * Registering the app the PushNotificationGateway, using the {@link GCMIntentService#register}
+     * Registering the app with the PushNotificationGateway in the background, if needed, using the {@link Registration}
      *
      * @param savedInstanceState {@link Bundle}
      */
@@ -82,13 +61,12 @@ public class MainActivity extends Activity {
             getActionBar().setDisplayShowHomeEnabled(true);
         }
         if (savedInstanceState == null) {
-            GCMIntentService.register(getApplicationContext(), MainActivity.getId(this));
             if (findViewById(R.id.container) != null) {
                 getFragmentManager().beginTransaction()
                         .replace(R.id.container, new PlaceholderFragment())
                         .commit();
             }
-            SettingsFragment.syncIfNeeded(getApplicationContext());
+            Registration.ensure(getApplicationContext());
         }
     }
 
@@ -137,10 +115,16 @@ public class MainActivity extends Activity {
 
     /**
      * A placeholder fragment containing a simple view.
+     * Messages are drawn at most once per display frame, a burst of them only shows the latest.
+     * The older and newer buttons page through the {@link MessageHistory}, one message at a time.
      */
-    public static class PlaceholderFragment extends Fragment {
+    public static class PlaceholderFragment extends Fragment implements Choreographer.FrameCallback {
         private TextView mTitle;
         private TextView mText;
+        private IWearNotificationContent mPending;
+        // id of the message from the history on display, Long.MAX_VALUE while showing the live messages
+        private long mHistoryId = Long.MAX_VALUE;
+        private boolean mLiveShown;
 
 
         @Override
@@ -153,12 +137,35 @@ public class MainActivity extends Activity {
 
             mTitle = (TextView) rootView.findViewById(R.id.title);
             mText = (TextView) rootView.findViewById(R.id.text);
+            ((Button) rootView.findViewById(R.id.older)).setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(final View v) {
+                    page(true);
+                }
+            });
+            ((Button) rootView.findViewById(R.id.newer)).setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(final View v) {
+                    page(false);
+                }
+            });
             // Tell the GCMIntentService about this Fragment, so that an incoming message
             // can immediately displayed, using the showMessage method.
             GCMIntentService.setHandler(this);
             return rootView;
         }
 
+        /**
+         * @inheritDoc
+         */
+        @Override
+        public void onDestroyView() {
+            Choreographer.getInstance().removeFrameCallback(this);
+            mPending = null;
+            mTitle = null;
+            super.onDestroyView();
+        }
+
 
         /**
          * Show the title and text content of the notification.
@@ -166,10 +173,70 @@ public class MainActivity extends Activity {
          * @param content {@link IWearNotificationContent} to be placed into the main layout's text view
          */
         public void showMessage(final IWearNotificationContent content) {
-            if (content != null){
-                mTitle.setText(content.getBigTextStyle().getBigContentTitle());
-                mText.setText(content.getBigTextStyle().getBigText() + "\n" + content.getBigTextStyle().getSummary());
+            if (content != null && content.getBigTextStyle() != null) {
+                if (mPending == null) {
+                    Choreographer.getInstance().postFrameCallback(this);
+                }
+                mPending = content;
+            }
+        }
+
+        /**
+         * Draw the latest message, once the next display frame is due.
+         *
+         * @param frameTimeNanos {@link long}
+         */
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            final IWearNotificationContent content = mPending;
+            mPending = null;
+            if (content != null && mTitle != null) {
+                mHistoryId = Long.MAX_VALUE;
+                mLiveShown = true;
+                display(content);
             }
         }
+
+        private void display(final IWearNotificationContent content) {
+            mTitle.setText(content.getBigTextStyle().getBigContentTitle());
+            mText.setText(content.getBigTextStyle().getBigText() + "\n" + content.getBigTextStyle().getSummary());
+        }
+
+        /**
+         * Load the next older or newer message from the history in the background, and show it.
+         * Paging past the newest message returns to the live messages.
+         *
+         * @param older {@link boolean} true for the next older, false for the next newer message
+         */
+        private void page(final boolean older) {
+            final MessageHistory history = MessageHistory.getInstance(getActivity().getApplicationContext());
+            final long id = mHistoryId;
+            // the live message on display is the latest one in the history already
+            final boolean skip = older && id == Long.MAX_VALUE && mLiveShown;
+            new AsyncTask<Void, Void, MessageHistory.Entry>() {
+                @Override
+                protected MessageHistory.Entry doInBackground(final Void... params) {
+                    final List<MessageHistory.Entry> entries = older ? history.older(id, skip ? 2 : 1) : history.newer(id, 1);
+                    final MessageHistory.Entry entry = entries.isEmpty() ? null : entries.get(entries.size() - 1);
+                    if (entry == null || (skip && entries.size() < 2) || entry.getContent() == null) {
+                        return null;
+                    }
+                    return entry;
+                }
+
+                @Override
+                protected void onPostExecute(final MessageHistory.Entry entry) {
+                    if (mTitle == null || id != mHistoryId) {
+                        return;
+                    }
+                    if (entry != null && entry.getContent().getBigTextStyle() != null) {
+                        mHistoryId = entry.id;
+                        display(entry.getContent());
+                    } else if (!older) {
+                        mHistoryId = Long.MAX_VALUE;
+                    }
+                }
+            }.execute();
+        }
     }
 }
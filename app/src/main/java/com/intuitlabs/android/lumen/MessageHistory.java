@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.preference.PreferenceManager;
+
+import com.intuit.intuitwear.notifications.BigTextStyle;
+import com.intuit.intuitwear.notifications.IWearNotificationContent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * MessageHistory keeps the latest {@link #CAPACITY} received notifications in a SQLite table, which works like a ring:
+ * rows are only appended, and every append drops the rows that fell out of the ring, by their ascending id.
+ * <p/>
+ * Every row carries the sensor source (pi or esp) and the lighting condition (dark, natural, artificial, d1, d2, d3),
+ * which are indexed together with the id, so that the latest messages of a source and condition are found
+ * without a scan.
+ * <p/>
+ * Appends are queued and written on a background thread, all rows that queued up during a burst in one
+ * transaction, to a write-ahead log. Nothing is written to the SharedPreferences anymore.
+ */
+final class MessageHistory extends SQLiteOpenHelper {
+    static final String SOURCE_PI = "pi";
+    static final String SOURCE_ESP = "esp";
+    static final int CAPACITY = 500;
+
+    private static final String DATABASE = "history.db";
+    private static final int VERSION = 1;
+    private static final String TABLE = "messages";
+    private static final String[] COLUMNS = {"_id", "received", "source", "condition", "payload"};
+    private static final String LEGACY_KEY = "lastMsg";
+    // as sent by the sensors, and the group names they map to
+    private static final String[] CONDITIONS = {"absence of light", "natural lighting", "artificial lighting",
+            "small fluctuation", "medium fluctuation", "large fluctuation"};
+    private static final String[] GROUPS = {"dark", "natural", "artificial", "d1", "d2", "d3"};
+    private static MessageHistory instance;
+
+    private final Context context;
+    private final Handler writer;
+    private final List<ContentValues> pending = new ArrayList<>();
+
+    private MessageHistory(final Context context) {
+        super(context, DATABASE, null, VERSION);
+        this.context = context;
+        final HandlerThread thread = new HandlerThread("lumen-history");
+        thread.start();
+        this.writer = new Handler(thread.getLooper());
+    }
+
+    /**
+     * @param context {@link Context} application context
+     * @return {@link MessageHistory} the app's message history
+     */
+    static synchronized MessageHistory getInstance(final Context context) {
+        if (instance == null) {
+            instance = new MessageHistory(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * @param content {@link IWearNotificationContent} notification
+     * @return {@link String} {@link #SOURCE_PI} or {@link #SOURCE_ESP}
+     */
+    static String source(final IWearNotificationContent content) {
+        final String title = title(content);
+        return title != null && title.contains("Raspi") ? SOURCE_PI : SOURCE_ESP;
+    }
+
+    /**
+     * @param content {@link IWearNotificationContent} notification
+     * @return {@link String} lighting condition, i.e. group name without prefix, or null if unknown
+     */
+    static String condition(final IWearNotificationContent content) {
+        final String title = title(content);
+        if (title != null) {
+            final String t = title.toLowerCase(Locale.US);
+            for (int i = 0; i < CONDITIONS.length; i++) {
+                if (t.contains(CONDITIONS[i])) {
+                    return GROUPS[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String title(final IWearNotificationContent content) {
+        final BigTextStyle big = content.getBigTextStyle();
+        return big != null && big.getBigContentTitle() != null ? big.getBigContentTitle() : content.getContentTitle();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void onConfigure(final SQLiteDatabase db) {
+        db.enableWriteAheadLogging();
+    }
+
+    /**
+     * Create the table, and move the last message, the app kept in the SharedPreferences so far, into it.
+     *
+     * @param db {@link SQLiteDatabase}
+     */
+    @Override
+    public void onCreate(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, received INTEGER NOT NULL, " +
+                "source TEXT NOT NULL, condition TEXT, payload TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE + "_source_condition ON " + TABLE + " (source, condition, _id)");
+
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final String legacy = prefs.getString(LEGACY_KEY, null);
+        if (legacy != null) {
+            final IWearNotificationContent content = NotificationDecoder.decode(legacy);
+            if (content != null) {
+                db.insert(TABLE, null, values(legacy, content));
+            }
+            prefs.edit().remove(LEGACY_KEY).apply();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    private static ContentValues values(final String payload, final IWearNotificationContent content) {
+        final ContentValues v = new ContentValues(4);
+        v.put("received", System.currentTimeMillis());
+        v.put("source", source(content));
+        v.put("condition", condition(content));
+        v.put("payload", payload);
+        return v;
+    }
+
+    /**
+     * Queue a received notification, to be written in the background.
+     *
+     * @param payload {@link String} json encoded message
+     * @param content {@link IWearNotificationContent} decoded message
+     */
+    void append(final String payload, final IWearNotificationContent content) {
+        final ContentValues v = values(payload, content);
+        synchronized (pending) {
+            pending.add(v);
+            if (1 < pending.size()) {
+                return;
+            }
+        }
+        writer.post(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+    }
+
+    private void write() {
+        final List<ContentValues> rows;
+        synchronized (pending) {
+            rows = new ArrayList<>(pending);
+            pending.clear();
+        }
+        final SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id = 0;
+            for (final ContentValues v : rows) {
+                id = db.insert(TABLE, null, v);
+            }
+            if (CAPACITY < id) {
+                db.delete(TABLE, "_id <= ?", new String[]{String.valueOf(id - CAPACITY)});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return {@link Entry} the latest message, null if none was received yet
+     */
+    Entry latest() {
+        final List<Entry> entries = older(Long.MAX_VALUE, 1);
+        return entries.isEmpty() ? null : entries.get(0);
+    }
+
+    /**
+     * @param beforeId {@link long} id of the message to start before, {@link Long#MAX_VALUE} for the latest
+     * @param limit    {@link int} max. number of messages
+     * @return {@link List} messages, the latest first
+     */
+    List<Entry> older(final long beforeId, final int limit) {
+        return query("_id < ?", new String[]{String.valueOf(beforeId)}, "_id DESC", limit);
+    }
+
+    /**
+     * @param afterId {@link long} id of the message to start after
+     * @param limit   {@link int} max. number of messages
+     * @return {@link List} messages, the oldest first
+     */
+    List<Entry> newer(final long afterId, final int limit) {
+        return query("_id > ?", new String[]{String.valueOf(afterId)}, "_id ASC", limit);
+    }
+
+    /**
+     * @param source    {@link String} {@link #SOURCE_PI} or {@link #SOURCE_ESP}
+     * @param condition {@link String} lighting condition, e.g. dark
+     * @param limit     {@link int} max. number of messages
+     * @return {@link List} messages of the source and condition, the latest first
+     */
+    List<Entry> find(final String source, final String condition, final int limit) {
+        return query("source = ? AND condition = ?", new String[]{source, condition}, "_id DESC", limit);
+    }
+
+    private List<Entry> query(final String selection, final String[] args, final String order, final int limit) {
+        final List<Entry> entries = new ArrayList<>(limit);
+        final Cursor c = getReadableDatabase().query(TABLE, COLUMNS, selection, args, null, null, order, String.valueOf(limit));
+        try {
+            while (c.moveToNext()) {
+                entries.add(new Entry(c.getLong(0), c.getLong(1), c.getString(2), c.getString(3), c.getString(4)));
+            }
+        } finally {
+            c.close();
+        }
+        return entries;
+    }
+
+    /**
+     * A stored message, its content is decoded on first access.
+     */
+    static final class Entry {
+        final long id;
+        final long received;
+        final String source;
+        final String condition;
+        final String payload;
+        private IWearNotificationContent content;
+
+        Entry(final long id, final long received, final String source, final String condition, final String payload) {
+            this.id = id;
+            this.received = received;
+            this.source = source;
+            this.condition = condition;
+            this.payload = payload;
+        }
+
+        /**
+         * @return {@link IWearNotificationContent} decoded message, null if it can't be decoded
+         */
+        IWearNotificationContent getContent() {
+            if (content == null) {
+                content = NotificationDecoder.decode(payload);
+            }
+            return content;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import android.util.Log;
+
+import com.intuit.intuitwear.notifications.IWearNotificationContent;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * MessageTrace follows a notification from the forwarding server to the wearable device.
+ * <p/>
+ * The server stamps a trace into every payload, <code>"trace":{"id":..,"sent":..}</code>, the push id and the time
+ * the push was received in ms since the epoch, or the same in the header of a {@link CompactPayload}.
+ * The {@link NotificationDecoder} picks it up, while it decodes the payload.
+ * The times the message was received and parsed by the app, and the time its notification got posted are added,
+ * and logged in a single line under the {@value #LOG_TAG} tag:
+ * <pre>
+ * trace=1444694400000123 sent=1444694400000 received=+812 parsed=+3 posted=+1
+ * </pre>
+ * The received time is relative to the server's clock, so it includes the difference between the clocks.
+ * Notifications merged into a summary by the {@link NotificationCoalescer} don't get a posted time.
+ */
+final class MessageTrace {
+    static final String LOG_TAG = "LumenTrace";
+    private static final Map<IWearNotificationContent, MessageTrace> PENDING =
+            Collections.synchronizedMap(new WeakHashMap<IWearNotificationContent, MessageTrace>());
+
+    private final long id;
+    private final long sent;
+    private final long received;
+    private long parsed;
+
+    /**
+     * @param id       {@link long} push id, stamped by the server
+     * @param sent     {@link long} time in ms the server received the push
+     * @param received {@link long} time in ms the message was received
+     */
+    MessageTrace(final long id, final long sent, final long received) {
+        this.id = id;
+        this.sent = sent;
+        this.received = received;
+    }
+
+    /**
+     * Record that the message was parsed, the trace is completed, once the content's notification got posted.
+     *
+     * @param content {@link IWearNotificationContent} the decoded message
+     */
+    void parsed(final IWearNotificationContent content) {
+        parsed = System.currentTimeMillis();
+        PENDING.put(content, this);
+    }
+
+    /**
+     * Record that the content's notification got posted, and log its trace, if it has one.
+     *
+     * @param content {@link IWearNotificationContent} the posted content
+     */
+    static void posted(final IWearNotificationContent content) {
+        final MessageTrace trace = PENDING.remove(content);
+        if (trace != null) {
+            final long posted = System.currentTimeMillis();
+            Log.i(LOG_TAG, "trace=" + trace.id + " sent=" + trace.sent + " received=+" + (trace.received - trace.sent)
+                    + " parsed=+" + (trace.parsed - trace.received) + " posted=+" + (posted - trace.parsed));
+        }
+    }
+}
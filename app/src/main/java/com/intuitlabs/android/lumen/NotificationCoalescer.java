@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+
+import com.intuit.intuitwear.notifications.BigTextStyle;
+import com.intuit.intuitwear.notifications.IWearNotificationContent;
+import com.intuit.intuitwear.notifications.InboxStyle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * NotificationCoalescer collapses a burst of notifications from the same sensor source (RaspPi or ESP8266),
+ * e.g. caused by a flickering light, into a single notification on the wearable device.
+ * <p/>
+ * The first notification of a source is sent right away. Notifications arriving within the coalescing window
+ * after it are held back and sent together when the window closes: a single one as it is, several of them as one
+ * InboxStyle summary, listing the latest changes. So every source wakes up the wearable at most once per window.
+ * Both are posted under the source's notification id, so the summary replaces the notification sent first,
+ * leaving a single notification per source on the wrist.
+ * <p/>
+ * The window is a preference, 0 sends every notification as it arrives. All state is confined to a background
+ * thread, a wake lock keeps the device awake while a summary is pending.
+ */
+final class NotificationCoalescer {
+    private static final int MAX_LINES = 5;
+    private static NotificationCoalescer instance;
+
+    private final Context context;
+    private final Handler handler;
+    private final PowerManager.WakeLock wakeLock;
+    private final Burst pi = new Burst(WearNotificationSender.ID_PI);
+    private final Burst esp = new Burst(WearNotificationSender.ID_ESP);
+
+    private NotificationCoalescer(final Context context) {
+        this.context = context;
+        final HandlerThread thread = new HandlerThread("lumen-coalescer");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+        this.wakeLock = ((PowerManager) context.getSystemService(Context.POWER_SERVICE))
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, NotificationCoalescer.class.getSimpleName());
+        this.wakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * @param context {@link Context} application context
+     * @return {@link NotificationCoalescer} the app's coalescer
+     */
+    static synchronized NotificationCoalescer getInstance(final Context context) {
+        if (instance == null) {
+            instance = new NotificationCoalescer(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Send the notification to the wearable device, now or as part of a summary at the end of the window.
+     *
+     * @param content {@link IWearNotificationContent} decoded notification
+     */
+    void offer(final IWearNotificationContent content) {
+        final long windowMs = getWindowMs();
+        if (windowMs <= 0) {
+            GCMIntentService.deliver(context, content);
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                add(MessageHistory.SOURCE_PI.equals(MessageHistory.source(content)) ? pi : esp, content, windowMs);
+            }
+        });
+    }
+
+    private long getWindowMs() {
+        final String ms = PreferenceManager.getDefaultSharedPreferences(context).getString(
+                context.getString(R.string.preference_key_coalesce), context.getString(R.string.coalesce_default));
+        try {
+            return Long.parseLong(ms);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void add(final Burst burst, final IWearNotificationContent content, final long windowMs) {
+        final long now = SystemClock.uptimeMillis();
+        if (!burst.scheduled && windowMs <= now - burst.lastSent) {
+            burst.lastSent = now;
+            GCMIntentService.deliver(context, content, burst.id);
+            return;
+        }
+        burst.held.add(content);
+        if (MAX_LINES < burst.held.size()) {
+            burst.held.remove(0);
+        }
+        burst.count++;
+        if (!burst.scheduled) {
+            burst.scheduled = true;
+            wakeLock.acquire(windowMs + 1000);
+            handler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    flush(burst);
+                }
+            }, burst.lastSent + windowMs);
+        }
+    }
+
+    private void flush(final Burst burst) {
+        final List<IWearNotificationContent> held = burst.held;
+        GCMIntentService.deliver(context, held.size() == 1 ? held.get(0) : summarize(held, burst.count), burst.id);
+        burst.lastSent = SystemClock.uptimeMillis();
+        burst.scheduled = false;
+        burst.count = 0;
+        held.clear();
+        if (!pi.scheduled && !esp.scheduled) {
+            wakeLock.release();
+        }
+    }
+
+    /**
+     * @param held  {@link List} the latest notifications of the burst, oldest first
+     * @param count {@link int} number of notifications in the burst
+     * @return {@link IWearNotificationContent} InboxStyle notification, listing the latest first
+     */
+    private static IWearNotificationContent summarize(final List<IWearNotificationContent> held, final int count) {
+        final IWearNotificationContent latest = held.get(held.size() - 1);
+        final String[] lines = new String[MAX_LINES];
+        for (int i = 0; i < held.size(); i++) {
+            final IWearNotificationContent c = held.get(held.size() - 1 - i);
+            final BigTextStyle big = c.getBigTextStyle();
+            lines[i] = big != null ? big.getBigContentTitle() + ": " + big.getBigText() : c.getContentText();
+        }
+        final InboxStyle inbox = new InboxStyle();
+        inbox.setInboxTitle(lines[0]);
+        inbox.setInboxSummary(count + " changes");
+        inbox.setLine1(lines[0]);
+        inbox.setLine2(lines[1]);
+        inbox.setLine3(lines[2]);
+        inbox.setLine4(lines[3]);
+        inbox.setLine5(lines[4]);
+
+        final IWearNotificationContent summary = new IWearNotificationContent();
+        summary.setStyle("InboxStyle");
+        summary.setInboxStyle(inbox);
+        summary.setContentTitle(latest.getBigTextStyle() != null ? latest.getBigTextStyle().getBigContentTitle() : latest.getContentTitle());
+        summary.setContentText(count + " changes");
+        summary.setSmallIcon(latest.getSmallIcon());
+        summary.setLargeIcon(latest.getLargeIcon());
+        summary.setBackground(latest.getBackground());
+        return summary;
+    }
+
+    /**
+     * Notifications of one source, held back until the window closes.
+     */
+    private static final class Burst {
+        private final int id;
+        private final List<IWearNotificationContent> held = new ArrayList<>(MAX_LINES + 1);
+        private long lastSent = -1000000000L;
+        private boolean scheduled;
+        private int count;
+
+        private Burst(final int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.intuit.intuitwear.notifications.IWearNotificationContent;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * NotificationDecoder turns the JSON payload of a push notification into an {@link IWearNotificationContent},
+ * reading it once, as a stream of tokens. The type adapter is looked up once and shared,
+ * instead of creating a new {@link Gson} (and re-inspecting the content classes) for every message.
+ * Whitespace or line breaks trailing the JSON document are never read, so they don't need to be stripped.
+ * Payloads in the {@link CompactPayload} format are decoded directly, without going through JSON.
+ * <p/>
+ * The {@link MessageTrace} the server stamped into the payload is picked up in the same pass: the type adapter skips
+ * the <code>trace</code> member, being unknown to the content, and the reader takes that as its cue to read it.
+ */
+final class NotificationDecoder {
+    private static final String LOG_TAG = NotificationDecoder.class.getSimpleName();
+    private static final TypeAdapter<IWearNotificationContent> ADAPTER = new Gson().getAdapter(IWearNotificationContent.class);
+
+    private NotificationDecoder() {
+    }
+
+    /**
+     * Decode a payload, should not be called on the main thread.
+     *
+     * @param payload {@link String} json encoded message (see IntuitWear JSONSchema), or a compact payload
+     * @return {@link IWearNotificationContent} or null, if the payload is missing or not a valid document
+     */
+    static IWearNotificationContent decode(final String payload) {
+        return decode(payload, 0);
+    }
+
+    /**
+     * Decode a payload and start its {@link MessageTrace}, if it carries one, should not be called on the main thread.
+     *
+     * @param payload  {@link String} json encoded message (see IntuitWear JSONSchema), or a compact payload
+     * @param received {@link long} time in ms the message was received, 0 to ignore the trace
+     * @return {@link IWearNotificationContent} or null, if the payload is missing or not a valid document
+     */
+    static IWearNotificationContent decode(final String payload, final long received) {
+        if (payload == null) {
+            return null;
+        }
+        if (CompactPayload.isCompact(payload)) {
+            final IWearNotificationContent content = CompactPayload.decode(payload);
+            if (content == null) {
+                Log.e(LOG_TAG, "Compact payload could not be decoded");
+            } else if (received != 0) {
+                final long[] trace = CompactPayload.trace(payload);
+                if (trace != null) {
+                    new MessageTrace(trace[0], trace[1], received).parsed(content);
+                }
+            }
+            return content;
+        }
+        try {
+            if (received == 0) {
+                return ADAPTER.read(new JsonReader(new StringReader(payload)));
+            }
+            final TraceReader reader = new TraceReader(payload);
+            final IWearNotificationContent content = ADAPTER.read(reader);
+            if (content != null && reader.id != 0) {
+                new MessageTrace(reader.id, reader.sent, received).parsed(content);
+            }
+            return content;
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            Log.e(LOG_TAG, "IWearNotificationContent instantiation failed " + e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Reads the <code>trace</code> member of the top-level object, when asked to skip it.
+     */
+    private static final class TraceReader extends JsonReader {
+        private int depth;
+        private boolean trace;
+        private long id;
+        private long sent;
+
+        TraceReader(final String payload) {
+            super(new StringReader(payload));
+        }
+
+        @Override
+        public void beginObject() throws IOException {
+            super.beginObject();
+            depth++;
+        }
+
+        @Override
+        public void endObject() throws IOException {
+            super.endObject();
+            depth--;
+        }
+
+        @Override
+        public String nextName() throws IOException {
+            final String name = super.nextName();
+            trace = depth == 1 && "trace".equals(name);
+            return name;
+        }
+
+        @Override
+        public void skipValue() throws IOException {
+            if (!trace || peek() != JsonToken.BEGIN_OBJECT) {
+                super.skipValue();
+                return;
+            }
+            trace = false;
+            beginObject();
+            while (hasNext()) {
+                final String name = nextName();
+                if (peek() != JsonToken.NUMBER) {
+                    super.skipValue();
+                } else if ("id".equals(name)) {
+                    id = nextLong();
+                } else if ("sent".equals(name)) {
+                    sent = nextLong();
+                } else {
+                    super.skipValue();
+                }
+            }
+            endObject();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Process;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.Patterns;
+
+import com.google.android.gcm.GCMRegistrar;
+import com.intuit.mobile.png.sdk.PushNotificationsV2;
+import com.intuit.mobile.png.sdk.UserTypeEnum;
+import com.intuit.mobile.png.sdk.callback.RegisterUserCallback;
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Registration keeps track of this device's registration with GCM and the Push Notification Gateway.
+ * <p/>
+ * What got registered last (user id, GCM registration id and app version) is kept in
+ * SharedPreferences, once PNG accepted it. On start, the app only registers again, if any of it changed,
+ * e.g. GCM dropped the registration id after an app update. The check runs on a background thread,
+ * so neither the account lookup nor the PNG SDK slow down the app's start.
+ */
+final class Registration {
+    private static final String LOG_TAG = Registration.class.getSimpleName();
+    private static final String PREFS = "registration";
+    private static final String KEY_USERID = "userid";
+    private static final String KEY_REGISTRATION_ID = "registrationId";
+    private static final String KEY_VERSION = "version";
+
+    private Registration() {
+    }
+
+    /**
+     * Register with GCM and PNG in the background, unless nothing changed since the last registration.
+     * Afterwards, groups selected in the settings, which haven't been synced yet, are sent to PNG.
+     *
+     * @param context {@link Context} Application context
+     */
+    static void ensure(final Context context) {
+        new Thread() {
+            @Override
+            public void run() {
+                super.run();
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                if (isCurrent(context)) {
+                    Log.i(LOG_TAG, "Registration is up to date");
+                } else {
+                    GCMIntentService.register(context, getUserId(context));
+                }
+                SettingsFragment.syncIfNeeded(context);
+            }
+        }.start();
+    }
+
+    /**
+     * @return {@link boolean} true, if PNG accepted a registration, with the same user id, GCM registration id
+     * and app version, as the current ones
+     */
+    private static boolean isCurrent(final Context context) {
+        final SharedPreferences state = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        final String registrationId = GCMRegistrar.getRegistrationId(context);
+        return !registrationId.isEmpty()
+                && registrationId.equals(state.getString(KEY_REGISTRATION_ID, null))
+                && getUserId(context).equals(state.getString(KEY_USERID, null))
+                && getVersion(context) == state.getInt(KEY_VERSION, -1);
+    }
+
+    /**
+     * Register the user with PNG, for all groups selected in the settings, once GCM provided a registration id.
+     *
+     * @param context        {@link Context} Application context
+     * @param registrationId {@link String} unique registrationId for this device
+     */
+    static void registerUser(final Context context, final String registrationId) {
+        final String userId = getUserId(context);
+        final Set<String> groups = GroupSync.getSelected(context);
+        GCMIntentService.initialize(context);
+        PushNotificationsV2.registerUser(context, userId, UserTypeEnum.OTHER, groups.toArray(new String[groups.size()]),
+                registrationId,
+                new RegisterUserCallback() {
+
+                    @Override
+                    public void onUserRegistered() {
+                        Log.i(LOG_TAG, "Registration call to PNG servers was accepted");
+                        context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit()
+                                .putString(KEY_USERID, userId)
+                                .putString(KEY_REGISTRATION_ID, registrationId)
+                                .putInt(KEY_VERSION, getVersion(context))
+                                .apply();
+                        // the selected groups are confirmed now, let the GroupSync take care of the others
+                        GroupSync.confirmed(context, groups, true);
+                        GroupSync.request(context);
+                    }
+
+                    @Override
+                    public void onError(String code, String description) {
+                        Log.i(LOG_TAG, String.format("Received error callback from PNG. Error code= %s, description= %s", code, description));
+                    }
+                });
+    }
+
+    /**
+     * Returns a unique id to address the user from the remote side, looked up once and kept in the preferences.
+     *
+     * @param context {@link Context}
+     * @return {@link String} unique id, most likely, the user's email address.
+     */
+    static String getUserId(final Context context) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final String key = context.getString(R.string.preference_key_userid);
+        String id = prefs.getString(key, "");
+        if (id.isEmpty()) {
+            final Pattern emailPattern = Patterns.EMAIL_ADDRESS;
+            final Account[] accounts = AccountManager.get(context).getAccounts();
+            id = UUID.randomUUID().toString();
+            for (Account account : accounts) {
+                if (emailPattern.matcher(account.name).matches()) {
+                    id = account.name;
+                    break;
+                }
+            }
+            prefs.edit().putString(key, id).apply();
+        }
+        return id;
+    }
+
+    private static int getVersion(final Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
+        }
+    }
+}
@@ -24,29 +24,16 @@ package com.intuitlabs.android.lumen;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.os.Message;
 import android.preference.Preference;
 import android.preference.PreferenceFragment;
-import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import com.google.android.gcm.GCMRegistrar;
-import com.intuit.intuitwear.exceptions.IntuitWearException;
 import com.intuit.intuitwear.notifications.ContentBuilder;
-import com.intuit.intuitwear.notifications.IWearNotificationSender;
-import com.intuit.intuitwear.notifications.IWearNotificationType;
-import com.intuit.mobile.png.sdk.PushNotificationsV2;
-import com.intuit.mobile.png.sdk.UserTypeEnum;
-import com.intuit.mobile.png.sdk.callback.RegisterUserCallback;
-import com.intuit.mobile.png.sdk.callback.RemoveUserFromGroupCallback;
-
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import com.intuit.intuitwear.notifications.IWearNotificationContent;
 
 /**
  * <code>SettingsFragment</code> shows a multi-select list of lighting conditions.
@@ -60,85 +47,13 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     /**
      * The selection of information sources, translates directly into PNG Groups.
-     * Here we register a user with a PNG group for every selected information-source and unregister the user from
-     * every png group that is mapped to unselected information source.
+     * Here we ask the {@link GroupSync} to subscribe the user to every selected information-source, and to unsubscribe
+     * the user from every unselected one, sending only the groups the PNG server doesn't know about yet.
      *
      * @param context {@link android.content.Context}
      */
     public static void syncGroups(final Context context) {
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        final String userId = prefs.getString(context.getString(R.string.preference_key_userid), "");
-
-//        final String[] sources=  App.concat(
-//                context.getResources().getStringArray(R.array.preference_key_sources_pi),
-//                context.getResources().getStringArray(R.array.preference_key_sources_esp));
-
-        final Set<String> defaultFeeds_pi = new HashSet<>(Arrays.asList(context.getResources().getStringArray(R.array.condition_defaults_pi)));
-        final Set<String> defaultFeeds_esp = new HashSet<>(Arrays.asList(context.getResources().getStringArray(R.array.condition_defaults_esp)));
-
-        // selected (or default) groups for the pi
-        final Set<String> ss = prefs.getStringSet(context.getString(R.string.preference_key_sources_pi), defaultFeeds_pi);
-        // now add selected (or default) groups for the esp
-        assert ss != null;
-        ss.addAll(prefs.getStringSet(context.getString(R.string.preference_key_sources_esp), defaultFeeds_esp));
-
-        // all possible group values
-        final String[] s0 = App.concat(
-                context.getResources().getStringArray(R.array.condition_values_pi),
-                context.getResources().getStringArray(R.array.condition_values_esp));
-
-        for (final String s : s0) { // all group values
-            boolean subscribe = false;
-            for (final String t : ss) { // selected or default group values
-                if (s.equals(t)) {
-                    subscribe = true;
-                    break;
-                }
-            }
-            if (!subscribe) {
-                new Thread() {
-                    @Override
-                    public void run() {
-                        super.run();
-                        PushNotificationsV2.removeUserFromGroup(context, userId, s, new RemoveUserFromGroupCallback() {
-                            @Override
-                            public void onUserRemovedFromGroup() {
-                                setInSyncFlag(context, true);
-                                Log.i(LOG_TAG, "syncGroupNames onUserRemovedFromGroup " + s);
-                            }
-
-                            @Override
-                            public void onError(final String s, final String s2) {
-                                setInSyncFlag(context, false);
-                                Log.e(LOG_TAG, "syncGroupNames removeUserFromGroup " + s + s2);
-                            }
-                        });
-                    }
-                }.start();
-            }
-        }
-        // Subscribe to selected groups:
-        new Thread() {
-            @Override
-            public void run() {
-                super.run();
-                PushNotificationsV2.registerUser(context, userId, UserTypeEnum.OTHER, ss.toArray(new String[ss.size()]),
-                        GCMRegistrar.getRegistrationId(context),
-                        new RegisterUserCallback() {
-                            @Override
-                            public void onUserRegistered() {
-                                setInSyncFlag(context, true);
-                                Log.i(LOG_TAG, "syncGroupNames onUserRegistered for new groups " + ss.size());
-                            }
-
-                            @Override
-                            public void onError(final String s, final String s2) {
-                                setInSyncFlag(context, false);
-                                Log.e(LOG_TAG, "syncGroupNames registerUser " + s + s2);
-                            }
-                        });
-            }
-        }.start();
+        GroupSync.request(context);
     }
 
     /**
@@ -147,29 +62,12 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
      * @param context {@link android.content.Context}
      */
     static void syncIfNeeded(final Context context) {
-        if (!PreferenceManager.getDefaultSharedPreferences(context).getBoolean(context.getString(R.string.preference_key_sync), false)) {
+        if (GroupSync.isPending(context)) {
             Log.i(LOG_TAG, "New sync. attempt w/ PNG Server");
             syncGroups(context);
         }
     }
 
-    /**
-     * Sets a flag an keeps it in DefaultSharedPreferences, indicating if the last sync attempt was successful or not.
-     *
-     * @param context {@link android.content.Context}
-     * @param inSync  {@link boolean}
-     */
-    private static void setInSyncFlag(final Context context, final boolean inSync) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putBoolean(context.getString(R.string.preference_key_sync), inSync);
-        editor.apply();
-        if (!inSync) {
-            Log.i(LOG_TAG, "setInSyncFlag has been set to false");
-        }
-    }
-
     /**
      * @inheritDoc
      */
@@ -228,9 +126,9 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public void onResume() {
         super.onResume();
         getPreferenceScreen().getSharedPreferences().registerOnSharedPreferenceChangeListener(this);
+        GroupSync.getState(getActivity()).registerOnSharedPreferenceChangeListener(this);
         // disable sync if unnecessary
-        boolean inSync = getPreferenceScreen().getSharedPreferences().getBoolean(getString(R.string.preference_key_sync), false);
-        findPreference(getString(R.string.preference_key_sync)).setEnabled(!inSync);
+        findPreference(getString(R.string.preference_key_sync)).setEnabled(GroupSync.isPending(getActivity()));
     }
 
     /**
@@ -242,6 +140,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
     public void onPause() {
         super.onPause();
         getPreferenceScreen().getSharedPreferences().unregisterOnSharedPreferenceChangeListener(this);
+        GroupSync.getState(getActivity()).unregisterOnSharedPreferenceChangeListener(this);
     }
 
     //
@@ -250,7 +149,7 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
 
     /**
      * Take action to sync settings with the Push Notification Gateway server,
-     * if the information source selection has changed.
+     * if the information source selection has changed, and enable the sync button while groups are pending.
      *
      * @param sharedPreferences {@link android.content.SharedPreferences}
      * @param key               {@link String}
@@ -261,37 +160,28 @@ public class SettingsFragment extends PreferenceFragment implements SharedPrefer
                 key.equals(getString(R.string.preference_key_sources_esp))) {
             Log.d(LOG_TAG, "Preferences changed");
             syncGroups(this.getActivity().getApplicationContext());
-        } else if (key.equals(getString(R.string.preference_key_sync))) {
-            boolean inSync = getPreferenceScreen().getSharedPreferences().getBoolean(getString(R.string.preference_key_sync), false);
-            findPreference(getString(R.string.preference_key_sync)).setEnabled(!inSync);
         }
+        // a selection changed, or the PNG server confirmed a group
+        findPreference(getString(R.string.preference_key_sync)).setEnabled(GroupSync.isPending(getActivity()));
     }
 
     /**
-     * Create a demo notification
+     * Create a demo notification, replaying the latest message from the {@link MessageHistory}
      */
     private void createDemoNotification(final Context context) {
         new Thread() {
             @Override
             public void run() {
                 super.run();
-                final String message = PreferenceManager.getDefaultSharedPreferences(context).getString("lastMsg", ContentBuilder.getAsset(context, "notification.json"));
-                try {
-                    Log.v(LOG_TAG, "Not inside quiet time, so let's display a notification :" + message);
-                    // Create a Notification
-                    IWearNotificationSender.Factory.getsInstance().createNotificationSender(IWearNotificationType.ANDROID, context, message).sendNotification(context);
-
-                    // Show the content on the phone screen if the MainActivity is currently visible.
-                    if (GCMIntentService.handler != null) {
-                        final Message m = new Message();
-                        final Bundle b = new Bundle();
-                        b.putString(GCMIntentService.MSG_KEY, message);
-                        m.setData(b);
-                        GCMIntentService.handler.sendMessage(m);
-                    }
-
-                } catch (IntuitWearException e) {
-                    Log.e(LOG_TAG, e.toString());
+                // replay the latest message received, or the bundled sample, if none was received yet
+                final MessageHistory.Entry latest = MessageHistory.getInstance(context).latest();
+                final IWearNotificationContent content = latest != null ? latest.getContent()
+                        : NotificationDecoder.decode(ContentBuilder.getAsset(context, "notification.json"));
+                if (content != null) {
+                    Log.v(LOG_TAG, "Not inside quiet time, so let's display a notification :" + (latest != null ? latest.payload : "sample"));
+                    // Create a Notification, and show the content on the phone screen if the MainActivity is currently visible.
+                    GCMIntentService.deliver(context, content);
+                    GCMIntentService.show(content);
                 }
             }
         }.start();
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Intuit Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.intuitlabs.android.lumen;
+
+import android.app.Notification;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.app.NotificationCompat;
+import android.support.v4.app.NotificationManagerCompat;
+import android.text.Html;
+
+import com.intuit.intuitwear.exceptions.IntuitWearException;
+import com.intuit.intuitwear.notifications.AndroidNotification;
+import com.intuit.intuitwear.notifications.BigTextStyle;
+import com.intuit.intuitwear.notifications.IWearNotificationContent;
+import com.intuit.intuitwear.notifications.InboxStyle;
+import com.intuit.intuitwear.utils.IntuitWearUtils;
+
+/**
+ * WearNotificationSender sends notifications to the wearable device, one after another, using a single instance,
+ * instead of creating a new notification sender and {@link AndroidNotification} for every message,
+ * which also decode the large icon and background drawables every time.
+ * <p/>
+ * Lumen's notifications (title, text, icons and a BigTextStyle or InboxStyle) are built right here,
+ * with the drawables taken from the {@link BitmapCache}. The SDK's createNotification commits a new notification id
+ * to the shared preferences for every notification, so it's only used for content with intents, actions,
+ * lists or pages, which Lumen doesn't send. Either way the notification is posted under a stable id per sensor source,
+ * replacing the source's previous notification, instead of the SDK's {@link #notificationId}.
+ * It's built and posted on the calling thread, which must not be the main thread.
+ */
+final class WearNotificationSender extends AndroidNotification {
+    /**
+     * Notification ids, one per sensor source
+     */
+    static final int ID_PI = 1;
+    static final int ID_ESP = 2;
+    private static WearNotificationSender instance;
+
+    private final BitmapCache bitmaps;
+    private final NotificationManagerCompat manager;
+
+    private WearNotificationSender(final Context context) {
+        super((IWearNotificationContent) null);
+        this.bitmaps = BitmapCache.getInstance(context);
+        this.manager = NotificationManagerCompat.from(context);
+    }
+
+    /**
+     * @param context {@link Context} application context
+     * @return {@link WearNotificationSender} the app's sender
+     */
+    static synchronized WearNotificationSender getInstance(final Context context) {
+        if (instance == null) {
+            instance = new WearNotificationSender(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * @param content {@link IWearNotificationContent} notification
+     * @return {@link int} {@link #ID_PI} or {@link #ID_ESP}
+     */
+    static int getNotificationId(final IWearNotificationContent content) {
+        return MessageHistory.SOURCE_PI.equals(MessageHistory.source(content)) ? ID_PI : ID_ESP;
+    }
+
+    /**
+     * Build the notification and post it, under the id of its sensor source.
+     *
+     * @param context {@link Context} Application context
+     * @param content {@link IWearNotificationContent} decoded notification
+     * @throws IntuitWearException if the notification could not be built
+     */
+    void send(final Context context, final IWearNotificationContent content) throws IntuitWearException {
+        send(context, content, getNotificationId(content));
+    }
+
+    /**
+     * Build the notification and post it, replacing the notification posted under the same id.
+     *
+     * @param context {@link Context} Application context
+     * @param content {@link IWearNotificationContent} decoded notification
+     * @param id      {@link int} notification id, {@link #ID_PI} or {@link #ID_ESP}
+     * @throws IntuitWearException if the notification could not be built
+     */
+    synchronized void send(final Context context, final IWearNotificationContent content, final int id)
+            throws IntuitWearException {
+        final NotificationCompat.Builder builder = isPlain(content) ? build(context, content) : buildBySdk(context, content);
+        final Notification notification = builder.build();
+        notification.flags |= Notification.FLAG_AUTO_CANCEL;
+        manager.notify(id, notification);
+        MessageTrace.posted(content);
+    }
+
+    /**
+     * @return {@link boolean} true if the content has nothing but title, text, icons and a BigTextStyle or InboxStyle
+     */
+    private static boolean isPlain(final IWearNotificationContent content) {
+        return isEmpty(content.getContentIntentName())
+                && (content.getActions() == null || content.getActions().isEmpty())
+                && (content.getWearableActions() == null || content.getWearableActions().isEmpty())
+                && (content.getPages() == null || content.getPages().isEmpty())
+                && !content.isListStyle();
+    }
+
+    /**
+     * Build the notification like the SDK would, but without committing a notification id.
+     */
+    private NotificationCompat.Builder build(final Context context, final IWearNotificationContent content) {
+        final NotificationCompat.Builder builder = new NotificationCompat.Builder(context);
+        int smallIcon = bitmaps.getId(content.getSmallIcon());
+        if (smallIcon == 0) {
+            smallIcon = bitmaps.getId("ic_launcher");
+        }
+        builder.setSmallIcon(smallIcon != 0 ? smallIcon : android.R.drawable.stat_sys_warning);
+        if (!isEmpty(content.getContentTitle())) {
+            builder.setContentTitle(content.getContentTitle());
+        }
+        if (!isEmpty(content.getContentText())) {
+            builder.setContentText(content.getContentText());
+        }
+        final Bitmap icon = bitmaps.getLargeIcon(content.getLargeIcon());
+        if (icon != null) {
+            builder.setLargeIcon(icon);
+        }
+        final String background = content.getBackground();
+        Bitmap bitmap = bitmaps.getBackground(background);
+        if (bitmap == null && background != null && IntuitWearUtils.isURL(background)) {
+            bitmap = IntuitWearUtils.getBitmap(context, background);
+        }
+        if (bitmap != null) {
+            builder.extend(new NotificationCompat.WearableExtender().setBackground(bitmap).setHintShowBackgroundOnly(true));
+        }
+        if (content.isBigTextStyle() && content.getBigTextStyle() != null) {
+            final BigTextStyle big = content.getBigTextStyle();
+            final NotificationCompat.BigTextStyle style = new NotificationCompat.BigTextStyle();
+            if (!isEmpty(big.getBigContentTitle())) {
+                style.setBigContentTitle(big.getBigContentTitle());
+                builder.setContentTitle(big.getBigContentTitle());
+            }
+            if (!isEmpty(big.getBigText())) {
+                style.bigText(big.getBigText());
+                builder.setContentText(big.getBigText());
+            }
+            if (!isEmpty(big.getSummary())) {
+                style.setSummaryText(big.getSummary());
+            }
+            builder.setStyle(style);
+        } else if (content.isInboxStyle() && content.getInboxStyle() != null) {
+            final InboxStyle inbox = content.getInboxStyle();
+            final NotificationCompat.InboxStyle style = new NotificationCompat.InboxStyle();
+            if (!isEmpty(inbox.getInboxTitle())) {
+                style.setBigContentTitle(inbox.getInboxTitle());
+            }
+            if (!isEmpty(inbox.getInboxSummary())) {
+                style.setSummaryText(inbox.getInboxSummary());
+            }
+            for (final String line : new String[]{inbox.getLine1(), inbox.getLine2(), inbox.getLine3(), inbox.getLine4(), inbox.getLine5()}) {
+                if (!isEmpty(line)) {
+                    style.addLine(Html.fromHtml(line));
+                }
+            }
+            builder.setStyle(style);
+        }
+        return builder.setPriority(NotificationCompat.PRIORITY_MAX);
+    }
+
+    /**
+     * Let the SDK build the notification, with the drawables it would decode taken from the cache instead.
+     */
+    private NotificationCompat.Builder buildBySdk(final Context context, final IWearNotificationContent content)
+            throws IntuitWearException {
+        final String largeIcon = content.getLargeIcon();
+        final String background = content.getBackground();
+        final boolean cachedIcon = bitmaps.getId(largeIcon) != 0;
+        final boolean cachedBackground = bitmaps.getId(background) != 0;
+        final NotificationCompat.Builder builder;
+        // keep the SDK from decoding the drawables, they're set from the cache below, URLs are left to the SDK
+        if (cachedIcon) {
+            content.setLargeIcon(null);
+        }
+        if (cachedBackground) {
+            content.setBackground(null);
+        }
+        try {
+            setiNotify(content);
+            wearableExtender = null;
+            builder = createNotification(context);
+        } finally {
+            content.setLargeIcon(largeIcon);
+            content.setBackground(background);
+            setiNotify(null);
+        }
+        final Bitmap icon = cachedIcon ? bitmaps.getLargeIcon(largeIcon) : null;
+        if (icon != null) {
+            builder.setLargeIcon(icon);
+        }
+        final Bitmap bitmap = cachedBackground ? bitmaps.getBackground(background) : null;
+        if (bitmap != null) {
+            if (wearableExtender == null) {
+                wearableExtender = new NotificationCompat.WearableExtender();
+            }
+            wearableExtender.setBackground(bitmap).setHintShowBackgroundOnly(true);
+            builder.extend(wearableExtender);
+        }
+        wearableExtender = null;
+        return builder;
+    }
+
+    private static boolean isEmpty(final String s) {
+        return s == null || s.isEmpty();
+    }
+}
@@ -0,0 +1,100 @@
+package com.techcasita.jersey;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>BlockingAsyncResponse</code> stands in for the container's {@link AsyncResponse}, when a resource method
+ * is called directly. {@link #await} blocks until the resource resumed the response.
+ */
+public class BlockingAsyncResponse implements AsyncResponse {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Object response;
+
+    /**
+     * @param timeoutMs {@link long} max. time to wait
+     * @return {@link Object} the entity the response was resumed with, null if that didn't happen in time
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public Object await(final long timeoutMs) throws InterruptedException {
+        done.await(timeoutMs, TimeUnit.MILLISECONDS);
+        return response;
+    }
+
+    @Override
+    public boolean resume(final Object response) {
+        this.response = response;
+        done.countDown();
+        return true;
+    }
+
+    @Override
+    public boolean resume(final Throwable response) {
+        return resume((Object) response);
+    }
+
+    @Override
+    public boolean cancel() {
+        return false;
+    }
+
+    @Override
+    public boolean cancel(final int retryAfter) {
+        return false;
+    }
+
+    @Override
+    public boolean cancel(final Date retryAfter) {
+        return false;
+    }
+
+    @Override
+    public boolean isSuspended() {
+        return done.getCount() != 0;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public boolean setTimeout(final long time, final TimeUnit unit) {
+        return true;
+    }
+
+    @Override
+    public void setTimeoutHandler(final TimeoutHandler handler) {
+    }
+
+    @Override
+    public Collection<Class<?>> register(final Class<?> callback) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(final Class<?> callback, final Class<?>... callbacks) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public Collection<Class<?>> register(final Object callback) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(final Object callback, final Object... callbacks) {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,75 @@
+package com.techcasita.jersey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>BulkForwardBenchmark</code> forwards a gateway's batch of {@link #EVENTS} notifications to a {@link StubPng},
+ * once as that many <code>forward(...)</code> calls, all of them in flight at once, and once as a single bulk request,
+ * streamed through {@link BulkForward}. Scores are per notification. Both call the resource in-process, the HTTP
+ * request per notification, that the bulk request saves on top, isn't part of the measurement.
+ * Every notification carries a new idempotency key, so that none of them is answered from the cache.
+ */
+@State(Scope.Benchmark)
+public class BulkForwardBenchmark {
+    private static final int EVENTS = 1000;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private StubPng stub;
+    private Forward forward;
+    private final AtomicLong key = new AtomicLong();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(EVENTS * 160);
+
+    @Setup
+    public void setUp() throws IOException {
+        stub = new StubPng(8);
+        System.setProperty("lumen.png.address", stub.getAddress());
+        System.setProperty("lumen.png.warmupConnections", "0");
+        forward = new Forward();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public Object perEvent() throws InterruptedException {
+        final BlockingAsyncResponse[] responses = new BlockingAsyncResponse[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            responses[i] = new BlockingAsyncResponse();
+            forward.forward(responses[i], "1234567890", "a_artificial", "ESP Artificial Lighting",
+                    "Lighting conditions changed from 12 to 345", "y", null, Long.toString(key.incrementAndGet()), null);
+        }
+        Object last = null;
+        for (final BlockingAsyncResponse response : responses) {
+            last = response.await(10000);
+        }
+        return last;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS)
+    public int bulk() throws IOException {
+        final StringBuilder records = new StringBuilder(EVENTS * 160);
+        for (int i = 0; i < EVENTS; i++) {
+            records.append("{\"grp\":\"a_artificial\",\"title\":\"ESP Artificial Lighting\",")
+                    .append("\"text\":\"Lighting conditions changed from 12 to 345\",\"icon\":\"y\",\"key\":\"")
+                    .append(key.incrementAndGet()).append("\"}\n");
+        }
+        body.reset();
+        forward.bulk("1234567890", new ByteArrayInputStream(records.toString().getBytes(UTF8))).write(body);
+        return body.size();
+    }
+}
@@ -0,0 +1,45 @@
+package com.techcasita.jersey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * <code>ConnectionReuseBenchmark</code> shows the effect of connection reuse: a POST on a new connection
+ * versus a POST on the pooled, kept-alive connections of a {@link PngClient}, both against a {@link StubPng}.
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class ConnectionReuseBenchmark {
+    private StubPng stub;
+    private URL url;
+    private PngClient client;
+
+    @Setup
+    public void setUp() throws IOException {
+        stub = new StubPng(8);
+        url = new URL(stub.getAddress());
+        client = new PngClient(stub.getAddress(), 8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Benchmark
+    public int newConnection() throws IOException {
+        return UpstreamThroughput.postWithoutReuse(url);
+    }
+
+    @Benchmark
+    public int pooledConnection() throws IOException {
+        return client.post(UpstreamThroughput.MSG).getCode();
+    }
+}
@@ -0,0 +1,60 @@
+package com.techcasita.jersey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * <code>FanoutBenchmark</code> measures resolving the recipients of a push to <code>[d1, d2, artificial]</code>
+ * and visiting each of them once, the work of the {@link LocalFanoutSink}, for a growing number of subscribers.
+ * Every subscriber is in each of the six sensor groups with a probability of 1/3.
+ */
+@State(Scope.Benchmark)
+public class FanoutBenchmark {
+    private static final List<String> GROUPS = Arrays.asList("a_d1", "a_d2", "a_artificial");
+
+    @Param({"100000", "1000000", "5000000"})
+    public int subscribers;
+
+    private final SubscriptionRegistry registry = new SubscriptionRegistry();
+    private LocalFanoutSink sink;
+    private final Push push = new Push(1, "1234567890", GROUPS, "Lumen Artificial Lighting",
+            "Lighting conditions changed from 12 to 345", "y", null);
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        for (int i = 0; i < subscribers; i++) {
+            final String device = "device-" + i;
+            for (final String group : SensorRules.GROUPS) {
+                if (random.nextInt(3) == 0) {
+                    registry.subscribe(device, SensorRules.GROUP_PREFIX + group);
+                }
+            }
+        }
+        sink = new LocalFanoutSink(registry);
+    }
+
+    @Benchmark
+    public long union() {
+        return registry.union(GROUPS).cardinality();
+    }
+
+    @Benchmark
+    public Object fanout() {
+        final PngResponse[] response = new PngResponse[1];
+        sink.submit(push, new PngCallback() {
+            @Override
+            public void completed(final PngResponse r) {
+                response[0] = r;
+            }
+        });
+        return response[0];
+    }
+}
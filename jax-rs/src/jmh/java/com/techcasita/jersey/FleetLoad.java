@@ -0,0 +1,395 @@
+package com.techcasita.jersey;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>FleetLoad</code> simulates a fleet of ESP8266 and Raspberry Pi light sensors, running the same
+ * interpretation as <code>esp8266/lumen.ino</code> and <code>raspberry/lumen.py</code>, and sends their
+ * notifications to the <code>forward</code> endpoint, backed by a {@link StubPng}.
+ * <p/>
+ * Every sensor reads its light level once per period; the level follows a random walk, now and then the light
+ * gets switched, i.e. jumps into darkness, natural or artificial range. The load is open-loop: a notification is
+ * due at the time its reading was taken, regardless of how fast earlier ones were answered. Latencies are measured
+ * from that intended time, so a stalled service isn't hidden by a stalled load generator (coordinated omission).
+ * <p/>
+ * Without <code>fleet.url</code>, the {@link Forward} resource is called in-process, otherwise every notification
+ * is an HTTP GET on a new connection, like the ESP8266 does it. Forward has to be started with
+ * <code>-Dlumen.png.address</code> pointing to the stub, whose address is printed on start.
+ * <p/>
+ * Usage: <code>java -Dfleet.sensors=5000 -Dfleet.seconds=60 ... FleetLoad</code>, system properties:
+ * <ul>
+ * <li>fleet.sensors (1000) number of sensors</li>
+ * <li>fleet.espShare (0.8) share of ESP8266 sensors, the others behave like a Raspberry Pi</li>
+ * <li>fleet.periodMs (1000) time between two readings of a sensor</li>
+ * <li>fleet.seconds (60) duration of the measurement</li>
+ * <li>fleet.warmupSeconds (10) time the fleet runs before the measurement starts, to load classes and open connections</li>
+ * <li>fleet.volatility (6) std. deviation of the change between two readings</li>
+ * <li>fleet.switchProbability (0.002) probability per reading, that the light gets switched</li>
+ * <li>fleet.seed (42) seed of the random walks</li>
+ * <li>fleet.url (none) URL of a deployed forward endpoint, e.g. http://localhost:8080/iot/rest/forward</li>
+ * <li>fleet.connections (64) max. concurrent HTTP requests, when fleet.url is set</li>
+ * <li>fleet.stubPort (0) port of the stub PNG, 0 for any free port</li>
+ * <li>fleet.stubLatencyMs (0) time the stub PNG takes to answer</li>
+ * <li>fleet.timeoutMs (10000) time to wait for outstanding responses at the end of the run</li>
+ * </ul>
+ */
+public class FleetLoad {
+    private static final String SID = "1234567890";
+
+    // thresholds, as in esp8266/lumen.ino and raspberry/lumen.py
+    private static final int D1 = 50;
+    private static final int D2 = 100;
+    private static final int D3 = 150;
+    private static final int THRESHOLD0 = 10;
+    private static final int THRESHOLD1 = 250;
+    private static final int ESP_VARIANCE = 15;
+    private static final int PI_VARIANCE = 5;
+    private static final int ADC_MAX = 1023;
+
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final LatencyRecorder service = new LatencyRecorder();
+    private final ConcurrentMap<String, AtomicLong> outcomes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> groups = new ConcurrentHashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong lastCompletion = new AtomicLong();
+    private volatile long measureFrom;
+
+    /**
+     * A notification, as the sensor firmware would send it.
+     */
+    static final class Notification {
+        final String grp;
+        final String title;
+        final String text;
+        final String icon;
+
+        Notification(final String grp, final String title, final String text, final String icon) {
+            this.grp = grp;
+            this.title = title;
+            this.text = text;
+            this.icon = icon;
+        }
+    }
+
+    /**
+     * A light sensor, reading a random walk.
+     */
+    static final class Sensor {
+        private final boolean esp;
+        private final long phaseNanos;
+        private double lux;
+        private int k0;
+
+        Sensor(final boolean esp, final long phaseNanos, final double lux) {
+            this.esp = esp;
+            this.phaseNanos = phaseNanos;
+            this.lux = lux;
+            this.k0 = (int) lux;
+        }
+
+        /**
+         * Take the next reading.
+         *
+         * @return {@link Notification} to send, null if the change isn't significant
+         */
+        Notification read(final Random random, final double volatility, final double switchProbability) {
+            if (random.nextDouble() < switchProbability) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        lux = random.nextInt(THRESHOLD0);
+                        break;
+                    case 1:
+                        lux = THRESHOLD0 + random.nextInt(THRESHOLD1 - THRESHOLD0);
+                        break;
+                    default:
+                        lux = THRESHOLD1 + random.nextInt(ADC_MAX - THRESHOLD1);
+                }
+            } else {
+                lux = Math.max(0, Math.min(ADC_MAX, lux + random.nextGaussian() * volatility));
+            }
+            final int k1 = (int) lux;
+            final int d = Math.abs(k1 - k0);
+            if (esp ? d < ESP_VARIANCE : d <= PI_VARIANCE) {
+                return null;
+            }
+            final Notification n = interpret(k0, k1, d);
+            // the ESP8266 compares against the reading of its last notification, the Pi against its last significant one
+            if (n != null || !esp) {
+                k0 = k1;
+            }
+            return n;
+        }
+
+        private Notification interpret(final int k0, final int k1, final int d) {
+            String grp = null;
+            String cond = null;
+            String icon = "b";
+            if (d >= D1) {
+                grp = "d1";
+                cond = "Small Fluctuation";
+                icon = "r";
+            }
+            if (d >= D2) {
+                grp = "d2";
+                cond = "Medium Fluctuation";
+            }
+            if (d >= D3) {
+                grp = "d3";
+                cond = "Large Fluctuation";
+            }
+            if (k0 < THRESHOLD1 && THRESHOLD1 < k1) {
+                grp = "artificial";
+                icon = "y";
+                cond = "Artificial Lighting";
+            } else if (k0 > THRESHOLD1 && THRESHOLD1 > k1) {
+                grp = "natural";
+                icon = "g";
+                cond = "Natural Lighting";
+            } else if (k0 < THRESHOLD0 && THRESHOLD0 < k1) {
+                grp = k1 < THRESHOLD1 ? "natural" : "artificial";
+                icon = k1 < THRESHOLD1 ? "g" : "y";
+                cond = k1 < THRESHOLD1 ? "Natural Lighting" : "Artificial Lighting";
+            } else if (k0 > THRESHOLD0 && THRESHOLD0 > k1) {
+                grp = "dark";
+                cond = "Absence of Light";
+            }
+            if (grp == null) {
+                return null;
+            }
+            return new Notification("a_" + grp, (esp ? "ESP " : "Lumen Raspi ") + cond,
+                    "Lighting conditions changed from " + k0 + " to " + k1, icon);
+        }
+    }
+
+    interface Target {
+        /**
+         * Send the notification, and report its outcome to {@link #completed}.
+         */
+        void send(Notification n, long intended);
+
+        void stop();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int sensors = Integer.getInteger("fleet.sensors", 1000);
+        final double espShare = Double.parseDouble(System.getProperty("fleet.espShare", "0.8"));
+        final long periodNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("fleet.periodMs", 1000));
+        final int seconds = Integer.getInteger("fleet.seconds", 60);
+        final int warmupSeconds = Integer.getInteger("fleet.warmupSeconds", 10);
+        final double volatility = Double.parseDouble(System.getProperty("fleet.volatility", "6"));
+        final double switchProbability = Double.parseDouble(System.getProperty("fleet.switchProbability", "0.002"));
+        final long seed = Long.getLong("fleet.seed", 42);
+        final String url = System.getProperty("fleet.url");
+        final int connections = Integer.getInteger("fleet.connections", 64);
+        final long timeoutMs = Long.getLong("fleet.timeoutMs", 10000);
+
+        final StubPng stub = new StubPng(16, Integer.getInteger("fleet.stubPort", 0));
+        stub.setLatencyMs(Long.getLong("fleet.stubLatencyMs", 0));
+        System.out.println("Stub PNG listening on " + stub.getAddress());
+
+        final FleetLoad load = new FleetLoad();
+        final Target target = url == null ? load.inProcess(stub) : load.http(url, connections);
+
+        final Random random = new Random(seed);
+        final List<Sensor> fleet = new ArrayList<>(sensors);
+        for (int i = 0; i < sensors; i++) {
+            fleet.add(new Sensor(random.nextDouble() < espShare, (long) (random.nextDouble() * periodNanos), random.nextInt(ADC_MAX)));
+        }
+        Collections.sort(fleet, new Comparator<Sensor>() {
+            @Override
+            public int compare(final Sensor a, final Sensor b) {
+                return Long.compare(a.phaseNanos, b.phaseNanos);
+            }
+        });
+
+        final long warmup = System.nanoTime();
+        final long start = warmup + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        load.measureFrom = start;
+        long behind = 0;
+        rounds:
+        for (long round = 0; ; round++) {
+            for (final Sensor sensor : fleet) {
+                final long intended = warmup + round * periodNanos + sensor.phaseNanos;
+                if (end <= intended) {
+                    break rounds;
+                }
+                long wait = intended - System.nanoTime();
+                if (wait < 0 && start <= intended) {
+                    behind = Math.max(behind, -wait);
+                }
+                while (0 < wait) {
+                    LockSupport.parkNanos(wait);
+                    wait = intended - System.nanoTime();
+                }
+                final Notification n = sensor.read(random, volatility, switchProbability);
+                if (n != null) {
+                    if (start <= intended) {
+                        load.sent.incrementAndGet();
+                        load.count(load.groups, n.grp);
+                    }
+                    target.send(n, intended);
+                }
+            }
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (load.completed.get() < load.sent.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        target.stop();
+        stub.stop();
+        load.report(sensors, seconds, start, behind, stub.getRequests());
+        System.exit(0);
+    }
+
+    private Target inProcess(final StubPng stub) {
+        System.setProperty("lumen.png.address", stub.getAddress());
+        System.setProperty("lumen.png.warmupConnections", "0");
+        final Forward forward = new Forward();
+        return new Target() {
+            @Override
+            public void send(final Notification n, final long intended) {
+                final long t = System.nanoTime();
+                forward.forward(new BlockingAsyncResponse() {
+                    @Override
+                    public boolean resume(final Object response) {
+                        completed(intended, t, "upstream " + response);
+                        return super.resume(response);
+                    }
+                }, SID, n.grp, n.title, n.text, n.icon, null, null, null);
+            }
+
+            @Override
+            public void stop() {
+                ForwardPipeline.getInstance().shutdown();
+            }
+        };
+    }
+
+    private Target http(final String url, final int connections) {
+        final ExecutorService executor = Executors.newFixedThreadPool(connections);
+        return new Target() {
+            @Override
+            public void send(final Notification n, final long intended) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long t = System.nanoTime();
+                        String outcome;
+                        try {
+                            outcome = get(url + "?sid=" + SID + "&grp=" + encode(n.grp) + "&title=" + encode(n.title)
+                                    + "&text=" + encode(n.text) + "&icon=" + n.icon);
+                        } catch (IOException e) {
+                            outcome = e.getClass().getSimpleName();
+                        }
+                        completed(intended, t, outcome);
+                    }
+                });
+            }
+
+            @Override
+            public void stop() {
+                executor.shutdownNow();
+            }
+        };
+    }
+
+    private static String encode(final String s) throws IOException {
+        return URLEncoder.encode(s, "UTF-8");
+    }
+
+    /**
+     * @return {@link String} outcome of a GET on a new connection, as the ESP8266 sends it
+     */
+    private static String get(final String url) throws IOException {
+        final HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+        con.setRequestProperty("Connection", "close");
+        final int code = con.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            con.disconnect();
+            return "http " + code;
+        }
+        final StringBuilder body = new StringBuilder();
+        final InputStream in = con.getInputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            body.append((char) c);
+        }
+        in.close();
+        con.disconnect();
+        return "upstream " + body.toString().trim();
+    }
+
+    private void completed(final long intended, final long sentAt, final String outcome) {
+        if (intended < measureFrom) {
+            return;
+        }
+        final long now = System.nanoTime();
+        latency.record(now - intended);
+        service.record(now - sentAt);
+        count(outcomes, outcome);
+        completed.incrementAndGet();
+        lastCompletion.set(now);
+    }
+
+    private void count(final ConcurrentMap<String, AtomicLong> counters, final String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private void report(final int sensors, final int seconds, final long start, final long behindNanos, final long upstream) {
+        final double elapsed = Math.max(seconds, (lastCompletion.get() - start) / 1e9);
+        System.out.println();
+        System.out.println(String.format("sensors              %d", sensors));
+        System.out.println(String.format("notifications sent   %d  (%.1f/s offered)", sent.get(), sent.get() / (double) seconds));
+        System.out.println(String.format("responses            %d  (%.1f/s)", completed.get(), completed.get() / elapsed));
+        System.out.println(String.format("upstream POSTs       %d  (incl. warm-up)", upstream));
+        System.out.println(String.format("generator max. lag   %.1f ms", behindNanos / 1e6));
+        System.out.println();
+        System.out.println("latency ms       corrected   service");
+        for (final double p : new double[]{50, 90, 99, 99.9, 99.99}) {
+            System.out.println(String.format("  p%-12s %10.2f %9.2f", p, latency.getPercentile(p) / 1e6, service.getPercentile(p) / 1e6));
+        }
+        System.out.println(String.format("  %-13s %10.2f %9.2f", "max", latency.getMax() / 1e6, service.getMax() / 1e6));
+        System.out.println();
+        System.out.println("outcomes");
+        final long missing = sent.get() - completed.get();
+        if (0 < missing) {
+            System.out.println(String.format("  %-24s %d", "no response", missing));
+        }
+        for (final Map.Entry<String, AtomicLong> e : new TreeMap<>(outcomes).entrySet()) {
+            System.out.println(String.format("  %-24s %d", e.getKey(), e.getValue().get()));
+        }
+        System.out.println();
+        System.out.println("groups");
+        for (final Map.Entry<String, AtomicLong> e : new TreeMap<>(groups).entrySet()) {
+            System.out.println(String.format("  %-24s %d", e.getKey(), e.getValue().get()));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.techcasita.jersey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>ForwardBenchmark</code> measures the full <code>forward(...)</code> call, from the resource method through
+ * the pipeline to a {@link StubPng} and back to the resumed response.
+ * The stub's address has to be in place before any of the service's classes get initialized.
+ * Every call carries a new idempotency key, so that none of them is answered from the cache.
+ */
+@State(Scope.Benchmark)
+@Threads(8)
+public class ForwardBenchmark {
+    private StubPng stub;
+    private Forward forward;
+    private final AtomicLong key = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException {
+        stub = new StubPng(8);
+        System.setProperty("lumen.png.address", stub.getAddress());
+        System.setProperty("lumen.png.warmupConnections", "0");
+        forward = new Forward();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stub.stop();
+    }
+
+    @Benchmark
+    public Object forward() throws InterruptedException {
+        final BlockingAsyncResponse response = new BlockingAsyncResponse();
+        forward.forward(response, "1234567890", "a_artificial", "ESP Artificial Lighting",
+                "Lighting conditions changed from 12 to 345", "y", null, Long.toString(key.incrementAndGet()), null);
+        return response.await(10000);
+    }
+}
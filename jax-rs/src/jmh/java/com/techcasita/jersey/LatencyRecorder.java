@@ -0,0 +1,75 @@
+package com.techcasita.jersey;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <code>LatencyRecorder</code> is a thread-safe, log-linear histogram of latencies in nanoseconds.
+ * Every power of two is split into 32 buckets, which keeps the error of a reported percentile below 3.2%,
+ * across the whole range, in a fixed 15KB.
+ */
+public class LatencyRecorder {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos {@link long} latency to record, negative values are recorded as 0
+     */
+    public void record(final long nanos) {
+        final long v = Math.max(0, nanos);
+        counts.incrementAndGet(index(v));
+        total.incrementAndGet();
+        long m = max.get();
+        while (m < v && !max.compareAndSet(m, v)) {
+            m = max.get();
+        }
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile {@link double} between 0 and 100
+     * @return {@link long} upper bound in ns of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(final double percentile) {
+        final long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100d * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (rank <= seen) {
+                return Math.min(max.get(), lowerBound(i + 1) - 1);
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(final long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) (v >>> shift) - SUB_COUNT;
+    }
+
+    private static long lowerBound(final int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        final int shift = (index >>> SUB_BITS) - 1;
+        return (long) ((index & (SUB_COUNT - 1)) + SUB_COUNT) << shift;
+    }
+}
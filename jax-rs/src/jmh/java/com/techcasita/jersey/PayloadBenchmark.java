@@ -0,0 +1,143 @@
+package com.techcasita.jersey;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.intuit.intuitwear.notifications.BigTextStyle;
+import com.intuit.intuitwear.notifications.IWearNotificationContent;
+import com.intuit.intuitwear.notifications.InboxStyle;
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+
+/**
+ * <code>PayloadBenchmark</code> compares the JSON payload with the {@link CompactPayload}: rendering the PNG message
+ * on the server, and decoding the payload into an {@link IWearNotificationContent} on the device, the JSON payload
+ * with the app's Gson type adapter, the compact one the way the app's <code>CompactPayload</code> does it.
+ * The sizes of both messages and payloads are printed during setup.
+ */
+@State(Scope.Thread)
+public class PayloadBenchmark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String COMPACT = "compact";
+    private static final int HEADER = 17;
+    private static final TypeAdapter<IWearNotificationContent> ADAPTER = new Gson().getAdapter(IWearNotificationContent.class);
+
+    private final Push json = new Push(1, "1234567890", "a_artificial", "ESP Artificial Lighting",
+            "Lighting conditions changed from 12 to 345", "y", null);
+    private final Push compact = new Push(1, "1234567890", "a_artificial", "ESP Artificial Lighting",
+            "Lighting conditions changed from 12 to 345", "y", COMPACT);
+    private final TemplateRegistry registry = TemplateRegistry.getInstance();
+    private String jsonPayload;
+    private String compactPayload;
+
+    @Setup
+    public void setup() {
+        registry.register(COMPACT, "$COMPACT$");
+        final String jsonMessage = render(json);
+        final String compactMessage = render(compact);
+        jsonPayload = payload(jsonMessage);
+        compactPayload = payload(compactMessage);
+        System.out.printf("%nmessage bytes: json %d, compact %d; payload bytes as received: json %d, compact %d%n",
+                jsonMessage.getBytes(UTF8).length, compactMessage.getBytes(UTF8).length,
+                jsonPayload.getBytes(UTF8).length, compactPayload.getBytes(UTF8).length);
+    }
+
+    private String render(final Push push) {
+        final RenderBuffer buffer = RenderBuffer.get();
+        registry.render(push, buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * @return {@link String} the payload, unescaped, as GCM hands it to the device
+     */
+    private static String payload(final String message) {
+        return new JsonParser().parse(message).getAsJsonObject().getAsJsonObject("gcm").getAsJsonObject("data").get("payload").getAsString();
+    }
+
+    @Benchmark
+    public int renderJson() {
+        final RenderBuffer buffer = RenderBuffer.get();
+        registry.render(json, buffer);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public int renderCompact() {
+        final RenderBuffer buffer = RenderBuffer.get();
+        registry.render(compact, buffer);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public IWearNotificationContent decodeJson() throws IOException {
+        return ADAPTER.read(new JsonReader(new StringReader(jsonPayload)));
+    }
+
+    @Benchmark
+    public IWearNotificationContent decodeCompact() {
+        final byte[] record = Base64.decodeBase64(compactPayload.getBytes(UTF8));
+        final IWearNotificationContent content = new IWearNotificationContent();
+        BigTextStyle bigTextStyle = null;
+        InboxStyle inboxStyle = null;
+        int i = HEADER;
+        while (i < record.length) {
+            final int tag = record[i++];
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = record[i++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            final String value = new String(record, i, length, UTF8);
+            i += length;
+            switch (tag) {
+                case CompactPayload.STYLE:
+                    content.setStyle(value);
+                    break;
+                case CompactPayload.SMALL_ICON:
+                    content.setSmallIcon(value);
+                    break;
+                case CompactPayload.BACKGROUND:
+                    content.setBackground(value);
+                    break;
+                case CompactPayload.BIG_CONTENT_TITLE:
+                case CompactPayload.BIG_TEXT:
+                    if (bigTextStyle == null) {
+                        bigTextStyle = new BigTextStyle();
+                        content.setBigTextStyle(bigTextStyle);
+                    }
+                    if (tag == CompactPayload.BIG_CONTENT_TITLE) {
+                        bigTextStyle.setBigContentTitle(value);
+                    } else {
+                        bigTextStyle.setBigText(value);
+                    }
+                    break;
+                case CompactPayload.INBOX_TITLE:
+                case CompactPayload.LINE1:
+                    if (inboxStyle == null) {
+                        inboxStyle = new InboxStyle();
+                        content.setInboxStyle(inboxStyle);
+                    }
+                    if (tag == CompactPayload.INBOX_TITLE) {
+                        inboxStyle.setInboxTitle(value);
+                    } else {
+                        inboxStyle.setLine1(value);
+                    }
+                    break;
+                default:
+            }
+        }
+        return content;
+    }
+}
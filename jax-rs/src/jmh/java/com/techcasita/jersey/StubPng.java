@@ -0,0 +1,154 @@
+package com.techcasita.jersey;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>StubPng</code> is a local stand-in for the PNG push endpoint, listening on the loopback interface.
+ * It accepts every POST, counts it, and answers with a small JSON document, optionally after a (jittered) delay,
+ * and optionally with an error status for a share of the requests, to mimic a degraded PNG.
+ * No network access is required, which makes it suitable for benchmarks on an isolated box.
+ * <p/>
+ * With a {@link Relay}, every accepted message is handed on, the way PNG hands it to GCM, for delivery to a device.
+ */
+public class StubPng {
+    private static final byte[] OK = "{\"status\":\"SUCCESS\"}".getBytes(Charset.forName("UTF-8"));
+    private static final byte[] ERROR = "{\"status\":\"ERROR\"}".getBytes(Charset.forName("UTF-8"));
+
+    static {
+        // headers and body are written separately, which stalls kept-alive connections on Nagle's algorithm
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * Receives the accepted messages, like GCM receives them from PNG.
+     */
+    public interface Relay {
+        /**
+         * @param message {@link byte[]} the PNG message, as posted
+         */
+        void relay(byte[] message);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+    private volatile long latencyMs;
+    private volatile long jitterMs;
+    private volatile double errorRate;
+    private volatile int errorCode = 503;
+    private volatile Relay relay;
+
+    /**
+     * @param threads {@link int} number of threads serving requests
+     * @throws IOException if the server socket cannot be bound
+     */
+    public StubPng(final int threads) throws IOException {
+        this(threads, 0);
+    }
+
+    /**
+     * @param threads {@link int} number of threads serving requests
+     * @param port    {@link int} port to listen on, 0 for any free port
+     * @throws IOException if the server socket cannot be bound
+     */
+    public StubPng(final int threads, final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/api/v2/push", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final InputStream in = exchange.getRequestBody();
+                final Relay r = relay;
+                final ByteArrayOutputStream message = r != null ? new ByteArrayOutputStream() : null;
+                final byte[] buf = new byte[1024];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    if (message != null) {
+                        message.write(buf, 0, n);
+                    }
+                }
+                in.close();
+                requests.incrementAndGet();
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                final long jitter = jitterMs;
+                final long delay = latencyMs + (0 < jitter ? random.nextLong(jitter + 1) : 0);
+                if (0 < delay) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                final boolean error = random.nextDouble() < errorRate;
+                final byte[] body = error ? ERROR : OK;
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(error ? errorCode : 200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+                if (message != null && !error) {
+                    r.relay(message.toByteArray());
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @return {@link String} URL of the stubbed push endpoint
+     */
+    public String getAddress() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/v2/push";
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public void setLatencyMs(final long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * @param jitterMs {@link long} random extra delay of up to this many ms, on top of the latency
+     */
+    public void setJitterMs(final long jitterMs) {
+        this.jitterMs = jitterMs;
+    }
+
+    /**
+     * @param errorRate {@link double} share of requests answered with the error code, between 0 and 1
+     * @param errorCode {@link int} HTTP status of the failed requests, e.g. 503
+     */
+    public void setErrors(final double errorRate, final int errorCode) {
+        this.errorCode = errorCode;
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param relay {@link Relay} receives every accepted message, null to only count them
+     */
+    public void setRelay(final Relay relay) {
+        this.relay = relay;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
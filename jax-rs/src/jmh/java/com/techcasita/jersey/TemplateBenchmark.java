@@ -0,0 +1,41 @@
+package com.techcasita.jersey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+
+/**
+ * <code>TemplateBenchmark</code> compares rendering a message from a compiled {@link MessageTemplate}
+ * with the chain of <code>String.replace</code> calls <code>Forward</code> used before.
+ * Run with the gc profiler to see the allocation rate per operation.
+ */
+@State(Scope.Thread)
+public class TemplateBenchmark {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String TEMPLATE = "{\"senderId\":\"$SID$\",\"gcm\":{\"dry_run\":false,\"time_to_live\":1,\"groups\":[\"$GRP$\"],\"data\":{\"payload\":\"" +
+            "{\\\"style\\\":\\\"BigTextStyle\\\",\\\"BigTextStyle\\\":{\\\"bigContentTitle\\\":\\\"$TITLE$\\\",\\\"bigText\\\":\\\"$TEXT$\\\"},\\\"smallIcon\\\":\\\"$ICON$\\\",\\\"background\\\":\\\"ic_lightbulb_$ICON$\\\"}\"}}}";
+
+    private final Push push = new Push(1, "1234567890", "a_artificial", "ESP Artificial Lighting",
+            "Lighting conditions changed from 12 to 345", "y", null);
+    private final TemplateRegistry registry = TemplateRegistry.getInstance();
+
+    @Benchmark
+    public int compiledTemplate() {
+        final RenderBuffer buffer = RenderBuffer.get();
+        registry.render(push, buffer);
+        return buffer.size();
+    }
+
+    @Benchmark
+    public int replaceChain() {
+        String msg = TEMPLATE;
+        msg = msg.replace("$SID$", push.getSid());
+        msg = msg.replace("$GRP$", push.getGroups().get(0));
+        msg = msg.replace("$TITLE$", push.getTitle());
+        msg = msg.replace("$TEXT$", push.getText());
+        msg = msg.replace("$ICON$", push.getIcon());
+        return msg.getBytes(UTF8).length;
+    }
+}
@@ -0,0 +1,246 @@
+package com.techcasita.jersey;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>TraceLatency</code> follows lighting changes from a simulated sensor to a simulated device, reading the trace
+ * (push id and time received) that {@link Forward} stamps into every payload, and reports the latency of every hop:
+ * <ul>
+ * <li>sensor: from the reading to the request being received by Forward, over a simulated Wi-Fi hop</li>
+ * <li>forward: from there, through the {@link ForwardPipeline}, to the message being accepted by a {@link StubPng}</li>
+ * <li>gcm: from PNG accepting the message, to it being handed to the device, over a simulated GCM relay</li>
+ * <li>parse: the device extracting payload and trace from the message, like <code>GCMIntentService.onMessage</code></li>
+ * <li>total: from the reading to the parsed message on the device</li>
+ * </ul>
+ * The Android side itself doesn't run here, on a real device every notification logs the same trace,
+ * with the received, parsed and posted times, under the <code>LumenTrace</code> tag.
+ * Timestamps in the payload are in ms since the epoch, so are the hops, except for the parse time.
+ * <p/>
+ * Usage: <code>java -Dtrace.rate=50 -Dtrace.seconds=10 ... TraceLatency</code>, system properties:
+ * <ul>
+ * <li>trace.rate (50) lighting changes per second</li>
+ * <li>trace.seconds (10) duration of the measurement</li>
+ * <li>trace.warmupSeconds (3) time the changes flow before the measurement starts, to load classes and open connections</li>
+ * <li>trace.sensorMs (20) latency of the sensor's Wi-Fi hop, plus up to as much jitter</li>
+ * <li>trace.pngMs (30) time the stub PNG takes to answer</li>
+ * <li>trace.gcmMs (100) latency of the GCM relay, plus up to as much jitter</li>
+ * </ul>
+ */
+public class TraceLatency {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SID = "1234567890";
+    private static final String[][] CHANGES = {
+            {"a_artificial", "Artificial Lighting", "y"}, {"a_natural", "Natural Lighting", "g"},
+            {"a_dark", "Absence of Light", "b"}, {"a_d2", "Medium Fluctuation", "r"}};
+
+    private final Map<Long, Long> readings = new ConcurrentHashMap<>();
+    private final LatencyRecorder sensor = new LatencyRecorder();
+    private final LatencyRecorder forward = new LatencyRecorder();
+    private final LatencyRecorder gcm = new LatencyRecorder();
+    private final LatencyRecorder parse = new LatencyRecorder();
+    private final LatencyRecorder total = new LatencyRecorder();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong untraced = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> rejected = new ConcurrentHashMap<>();
+
+    public static void main(final String[] args) throws Exception {
+        final int rate = Integer.getInteger("trace.rate", 50);
+        final int seconds = Integer.getInteger("trace.seconds", 10);
+        final int warmupSeconds = Integer.getInteger("trace.warmupSeconds", 3);
+        final long sensorMs = Long.getLong("trace.sensorMs", 20);
+        final long pngMs = Long.getLong("trace.pngMs", 30);
+        final long gcmMs = Long.getLong("trace.gcmMs", 100);
+
+        final TraceLatency harness = new TraceLatency();
+        final ScheduledExecutorService network = Executors.newScheduledThreadPool(4);
+        // GCMIntentService handles one message after the other, on its worker thread
+        final ScheduledExecutorService device = Executors.newSingleThreadScheduledExecutor();
+        final StubPng stub = new StubPng(16);
+        stub.setLatencyMs(pngMs);
+        stub.setRelay(new StubPng.Relay() {
+            @Override
+            public void relay(final byte[] message) {
+                final long relayed = System.currentTimeMillis();
+                device.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        harness.onMessage(message, relayed);
+                    }
+                }, delay(gcmMs), TimeUnit.MILLISECONDS);
+            }
+        });
+        System.setProperty("lumen.png.address", stub.getAddress());
+        System.setProperty("lumen.png.warmupConnections", "0");
+        final Forward resource = new Forward();
+
+        final long warmup = (long) rate * warmupSeconds;
+        final long n = warmup + (long) rate * seconds;
+        final long period = 1000000000L / rate;
+        final long start = System.nanoTime();
+        for (long seq = 0; seq < n; seq++) {
+            long wait;
+            while (0 < (wait = start + seq * period - System.nanoTime())) {
+                LockSupport.parkNanos(wait);
+            }
+            final String[] change = CHANGES[(int) (seq % CHANGES.length)];
+            final String text = "Lighting conditions changed, reading " + seq;
+            if (warmup <= seq) {
+                harness.readings.put(seq, System.currentTimeMillis());
+            }
+            network.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resource.forward(new BlockingAsyncResponse() {
+                        @Override
+                        public boolean resume(final Object response) {
+                            if (!"200".equals(response)) {
+                                harness.reject(String.valueOf(response));
+                            }
+                            return super.resume(response);
+                        }
+                    }, SID, change[0], "Lumen " + change[1], text, change[2], null, text, null);
+                }
+            }, delay(sensorMs), TimeUnit.MILLISECONDS);
+        }
+        final long deadline = System.currentTimeMillis() + 10000 + 2 * (sensorMs + pngMs + gcmMs);
+        while (harness.delivered.get() + harness.untraced.get() + harness.getRejected() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        ForwardPipeline.getInstance().shutdown();
+        stub.stop();
+        harness.report(n, n - warmup);
+        System.exit(0);
+    }
+
+    private static long delay(final long ms) {
+        return ms + (0 < ms ? ThreadLocalRandom.current().nextLong(ms + 1) : 0);
+    }
+
+    private void reject(final String code) {
+        AtomicLong count = rejected.get(code);
+        if (count == null) {
+            rejected.putIfAbsent(code, new AtomicLong());
+            count = rejected.get(code);
+        }
+        count.incrementAndGet();
+    }
+
+    private long getRejected() {
+        long n = 0;
+        for (final AtomicLong count : rejected.values()) {
+            n += count.get();
+        }
+        return n;
+    }
+
+    /**
+     * The device receiving a message, as GCMIntentService.onMessage would.
+     */
+    private void onMessage(final byte[] message, final long relayed) {
+        final long received = System.currentTimeMillis();
+        final long t = System.nanoTime();
+        final String payload = string(new String(message, UTF8), "payload");
+        final String id = payload == null ? null : number(payload, "id");
+        final String sent = payload == null ? null : number(payload, "sent");
+        final String text = payload == null ? null : string(payload, "bigText");
+        final long parsed = System.nanoTime() - t;
+        if (id == null || sent == null || text == null) {
+            untraced.incrementAndGet();
+            return;
+        }
+        final Long reading = readings.remove(Long.parseLong(text.substring(text.lastIndexOf(' ') + 1)));
+        delivered.incrementAndGet();
+        if (reading == null) {
+            // sent during the warmup
+            return;
+        }
+        final long s = Long.parseLong(sent);
+        sensor.record(TimeUnit.MILLISECONDS.toNanos(s - reading));
+        forward.record(TimeUnit.MILLISECONDS.toNanos(relayed - s));
+        gcm.record(TimeUnit.MILLISECONDS.toNanos(received - relayed));
+        parse.record(parsed);
+        total.record(TimeUnit.MILLISECONDS.toNanos(received - reading) + parsed);
+    }
+
+    /**
+     * @return {@link String} the unescaped value of the first string member with the given name, null if there is none
+     */
+    private static String string(final String json, final String name) {
+        int i = json.indexOf("\"" + name + "\":\"");
+        if (i < 0) {
+            return null;
+        }
+        i += name.length() + 4;
+        final StringBuilder value = new StringBuilder();
+        while (i < json.length()) {
+            final char c = json.charAt(i++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c == '\\' && i < json.length()) {
+                final char e = json.charAt(i++);
+                switch (e) {
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 'u':
+                        value.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default:
+                        value.append(e);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return {@link String} the digits of the first number member with the given name, null if there is none
+     */
+    private static String number(final String json, final String name) {
+        int i = json.indexOf("\"" + name + "\":");
+        if (i < 0) {
+            return null;
+        }
+        i += name.length() + 3;
+        int end = i;
+        while (end < json.length() && Character.isDigit(json.charAt(end))) {
+            end++;
+        }
+        return i < end ? json.substring(i, end) : null;
+    }
+
+    private void report(final long sent, final long measured) {
+        System.out.printf("%d lighting changes (%d measured), %d delivered with trace, %d without, rejected by status %s%n", sent, measured,
+                delivered.get(), untraced.get(), rejected);
+        System.out.printf("%-8s %10s %10s %10s %10s %10s%n", "hop", "count", "p50 ms", "p90 ms", "p99 ms", "max ms");
+        print("sensor", sensor);
+        print("forward", forward);
+        print("gcm", gcm);
+        print("parse", parse);
+        print("total", total);
+    }
+
+    private static void print(final String hop, final LatencyRecorder recorder) {
+        System.out.printf("%-8s %10d %10.3f %10.3f %10.3f %10.3f%n", hop, recorder.getCount(), recorder.getPercentile(50) / 1e6,
+                recorder.getPercentile(90) / 1e6, recorder.getPercentile(99) / 1e6, recorder.getMax() / 1e6);
+    }
+}
@@ -0,0 +1,144 @@
+package com.techcasita.jersey;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>UpstreamDegradation</code> offers a steady load of pushes to the PNG upstream, while a {@link StubPng}
+ * goes through a sequence of degradations: healthy, slow, failing, stalled and healthy again.
+ * The same sequence runs twice, without and with the {@link UpstreamGuard}, and for every phase the outcomes and
+ * latencies are reported, measured from the time a push was due (open-loop, like {@link FleetLoad}).
+ * <p/>
+ * Without the guard, pushes pile up in front of the connections as soon as PNG slows down, and it takes
+ * long after PNG recovered, until the backlog is worked off. With the guard, the surplus is shed right away,
+ * and the latency of the pushes that do get through stays close to what PNG takes.
+ * <p/>
+ * Usage: <code>java -Ddegrade.rate=400 -Ddegrade.seconds=10 ... UpstreamDegradation</code>, system properties:
+ * <ul>
+ * <li>degrade.rate (400) pushes per second</li>
+ * <li>degrade.seconds (10) duration of a phase</li>
+ * <li>degrade.connections (16) max. concurrent connections to the stub</li>
+ * <li>degrade.readTimeoutMs (1000) read timeout of the upstream client</li>
+ * </ul>
+ */
+public class UpstreamDegradation {
+    private static final String[] PHASES = {"healthy", "slow", "failing", "stalled", "recovered"};
+
+    public static void main(final String[] args) throws Exception {
+        final int rate = Integer.getInteger("degrade.rate", 400);
+        final int seconds = Integer.getInteger("degrade.seconds", 10);
+        final int connections = Integer.getInteger("degrade.connections", 16);
+        final int readTimeoutMs = Integer.getInteger("degrade.readTimeoutMs", 1000);
+
+        for (final boolean guarded : new boolean[]{false, true}) {
+            final StubPng stub = new StubPng(4 * connections);
+            final PngClient client = new PngClient(stub.getAddress(), connections, 500, readTimeoutMs);
+            final UpstreamSink upstream = new UpstreamSink(client, TemplateRegistry.getInstance(), ForwardMetrics.getInstance(), true);
+            final AdaptiveLimit limit = new AdaptiveLimit(connections, 2, 256);
+            final CircuitBreaker breaker = new CircuitBreaker(50, 20, 50, 2000, 3);
+            final UpstreamGuard guard = new UpstreamGuard(upstream, limit, breaker);
+            final PushSink sink = guarded ? guard : upstream;
+            System.out.println();
+            System.out.println(guarded ? "with upstream guard" : "without upstream guard");
+            System.out.printf("%-10s %8s %8s %8s %8s %10s %10s %10s %6s %8s%n",
+                    "phase", "sent", "ok", "shed", "failed", "p50 ms", "p99 ms", "ok p99 ms", "limit", "breaker");
+            final Outcomes[] outcomes = new Outcomes[PHASES.length];
+            final int[] limits = new int[PHASES.length];
+            final int[] states = new int[PHASES.length];
+            for (int p = 0; p < PHASES.length; p++) {
+                degrade(stub, PHASES[p]);
+                outcomes[p] = run(sink, rate, seconds);
+                limits[p] = limit.getLimit();
+                states[p] = breaker.getState();
+            }
+            for (final Outcomes o : outcomes) {
+                o.await(30000);
+            }
+            for (int p = 0; p < PHASES.length; p++) {
+                final Outcomes o = outcomes[p];
+                System.out.printf("%-10s %8d %8d %8d %8d %10.1f %10.1f %10.1f %6s %8s%n", PHASES[p], o.sent.get(), o.ok.get(),
+                        o.shed.get(), o.failed.get(), o.all.getPercentile(50) / 1e6, o.all.getPercentile(99) / 1e6,
+                        o.succeeded.getPercentile(99) / 1e6, guarded ? String.valueOf(limits[p]) : "-",
+                        guarded ? String.valueOf(states[p]) : "-");
+            }
+            client.shutdown();
+            stub.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void degrade(final StubPng stub, final String phase) {
+        switch (phase) {
+            case "slow":
+                stub.setLatencyMs(200);
+                stub.setJitterMs(100);
+                stub.setErrors(0, 503);
+                break;
+            case "failing":
+                stub.setLatencyMs(5);
+                stub.setJitterMs(5);
+                stub.setErrors(0.7, 503);
+                break;
+            case "stalled":
+                stub.setLatencyMs(3000);
+                stub.setJitterMs(0);
+                stub.setErrors(0, 503);
+                break;
+            default:
+                stub.setLatencyMs(5);
+                stub.setJitterMs(5);
+                stub.setErrors(0, 503);
+        }
+    }
+
+    private static Outcomes run(final PushSink sink, final int rate, final int seconds) {
+        final Outcomes outcomes = new Outcomes();
+        final long period = 1000000000L / rate;
+        final long start = System.nanoTime();
+        final long n = (long) rate * seconds;
+        for (long i = 0; i < n; i++) {
+            final long due = start + i * period;
+            long wait;
+            while (0 < (wait = due - System.nanoTime())) {
+                LockSupport.parkNanos(wait);
+            }
+            outcomes.sent.incrementAndGet();
+            sink.submit(new Push(Push.nextId(), "1234567890", "a_d1", "Lumen", "Lighting conditions changed", null, null),
+                    new PngCallback() {
+                        @Override
+                        public void completed(final PngResponse response) {
+                            final long latency = System.nanoTime() - due;
+                            final int code = response.getCode();
+                            outcomes.all.record(latency);
+                            if (response == UpstreamGuard.LIMITED || response == UpstreamGuard.OPEN) {
+                                outcomes.shed.incrementAndGet();
+                            } else if (code == -1 || 400 <= code) {
+                                outcomes.failed.incrementAndGet();
+                            } else {
+                                outcomes.ok.incrementAndGet();
+                                outcomes.succeeded.record(latency);
+                            }
+                            outcomes.done.incrementAndGet();
+                        }
+                    });
+        }
+        return outcomes;
+    }
+
+    private static final class Outcomes {
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong done = new AtomicLong();
+        private final AtomicLong ok = new AtomicLong();
+        private final AtomicLong shed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final LatencyRecorder all = new LatencyRecorder();
+        private final LatencyRecorder succeeded = new LatencyRecorder();
+
+        void await(final long timeoutMs) throws InterruptedException {
+            final long end = System.currentTimeMillis() + timeoutMs;
+            while (done.get() < sent.get() && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.techcasita.jersey;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>UpstreamThroughput</code> compares opening a new connection for every POST (the way <code>Forward</code>
+ * used to talk to PNG) with the pooled, kept-alive connections of the {@link PngClient}, using a {@link StubPng}.
+ * <p/>
+ * Usage: <code>UpstreamThroughput [threads] [seconds]</code>
+ */
+public class UpstreamThroughput {
+    static final byte[] MSG = ("{\"senderId\":\"sid\",\"gcm\":{\"dry_run\":true,\"time_to_live\":1,\"groups\":[\"a_dark\"]," +
+            "\"data\":{\"payload\":\"{}\"}}}").getBytes(Charset.forName("UTF-8"));
+
+    interface Call {
+        int post() throws IOException;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int threads = 0 < args.length ? Integer.parseInt(args[0]) : 8;
+        final int seconds = 1 < args.length ? Integer.parseInt(args[1]) : 10;
+
+        final StubPng stub = new StubPng(threads);
+        final URL url = new URL(stub.getAddress());
+        final PngClient client = new PngClient(stub.getAddress(), threads);
+        try {
+            run("new connection per request", threads, seconds, new Call() {
+                @Override
+                public int post() throws IOException {
+                    return postWithoutReuse(url);
+                }
+            });
+            run("pooled keep-alive connections", threads, seconds, new Call() {
+                @Override
+                public int post() throws IOException {
+                    return client.post(MSG).getCode();
+                }
+            });
+        } finally {
+            stub.stop();
+        }
+    }
+
+    static int postWithoutReuse(final URL url) throws IOException {
+        final HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod("POST");
+        con.setRequestProperty("Content-Type", "application/json");
+        con.setRequestProperty("Connection", "close");
+        con.setDoOutput(true);
+        final OutputStream out = con.getOutputStream();
+        out.write(MSG);
+        out.close();
+        final int code = con.getResponseCode();
+        final InputStream in = con.getInputStream();
+        while (in.read() != -1) {
+            // consume the response
+        }
+        in.close();
+        con.disconnect();
+        return code;
+    }
+
+    private static void run(final String name, final int threads, final int seconds, final Call call) throws InterruptedException {
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final AtomicLong ok = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    while (System.nanoTime() < end) {
+                        try {
+                            if (call.post() == HttpURLConnection.HTTP_OK) {
+                                ok.incrementAndGet();
+                            } else {
+                                failed.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        System.out.println(String.format("%-32s %10.1f req/s  (%d ok, %d failed, %d threads)",
+                name, ok.get() / (double) seconds, ok.get(), failed.get(), threads));
+    }
+}
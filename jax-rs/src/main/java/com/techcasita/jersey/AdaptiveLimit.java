@@ -0,0 +1,101 @@
+package com.techcasita.jersey;
+
+/**
+ * <code>AdaptiveLimit</code> is a latency based limit on the number of concurrent upstream requests,
+ * following the gradient approach: the limit grows as long as requests take about as long as they usually do,
+ * and shrinks as soon as they take longer, i.e. when requests start queuing up somewhere between here and PNG.
+ * <p/>
+ * Two moving averages of the round trip time are kept, a short one over the last few requests and a long one over
+ * the last hundred or so. Their ratio (the gradient, between 0.5 and 1) scales the limit down, a headroom of
+ * <code>sqrt(limit)</code> lets it probe upwards:
+ * <pre>
+ * newLimit = limit * min(1, max(0.5, TOLERANCE * longRtt / shortRtt)) + sqrt(limit)
+ * </pre>
+ * Failed requests (no response, or a 5xx status) cut the limit by 10% instead. The limit only grows while it is
+ * actually used, at least half of it, so a quiet period doesn't leave a limit behind that was never tested;
+ * rising latency shrinks it in any case.
+ */
+final class AdaptiveLimit {
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    private static final double BACKOFF = 0.9;
+    private static final int SHORT_WINDOW = 10;
+    private static final int LONG_WINDOW = 100;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private double shortRtt;
+    private double longRtt;
+    private long samples;
+    private int inFlight;
+
+    /**
+     * @param initialLimit {@link int} limit before the first response arrived
+     * @param minLimit     {@link int} lower bound of the limit
+     * @param maxLimit     {@link int} upper bound of the limit
+     */
+    AdaptiveLimit(final int initialLimit, final int minLimit, final int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * @return {@link boolean} true, if a request may be sent, in which case {@link #release} has to follow
+     */
+    synchronized boolean tryAcquire() {
+        if ((int) limit <= inFlight) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Give back an acquired permit without a measurement, e.g. if the request wasn't sent after all.
+     */
+    synchronized void cancel() {
+        inFlight--;
+    }
+
+    /**
+     * Give back an acquired permit and adjust the limit.
+     *
+     * @param rttNanos {@link long} time the request took
+     * @param failed   {@link boolean} true, if no response or a 5xx status was received
+     */
+    synchronized void release(final long rttNanos, final boolean failed) {
+        final int used = inFlight;
+        inFlight--;
+        if (failed) {
+            limit = Math.max(minLimit, limit * BACKOFF);
+            return;
+        }
+        final double rtt = Math.max(1, rttNanos);
+        if (samples++ == 0) {
+            shortRtt = rtt;
+            longRtt = rtt;
+        } else {
+            shortRtt += (rtt - shortRtt) / SHORT_WINDOW;
+            longRtt += (rtt - longRtt) / Math.min(samples, LONG_WINDOW);
+        }
+        // the long average lags behind a recovery, let it catch up
+        if (2 * shortRtt < longRtt) {
+            longRtt *= 0.95;
+        }
+        final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        // probe upwards only while the limit is actually used, but shrink on rising latency regardless
+        final double headroom = used < limit / 2 ? 0 : Math.sqrt(limit);
+        final double target = limit * gradient + headroom;
+        limit = Math.min(maxLimit, Math.max(minLimit, limit * (1 - SMOOTHING) + target * SMOOTHING));
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+}
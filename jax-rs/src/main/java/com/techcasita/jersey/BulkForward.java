@@ -0,0 +1,398 @@
+package com.techcasita.jersey;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>BulkForward</code> forwards the notifications of a single <code>POST /rest/forward</code>, one JSON object
+ * per line (NDJSON), with the same fields as the query parameters of <code>GET /rest/forward</code>, e.g.
+ * <pre>
+ * {"grp":"a_artificial","title":"ESP Artificial Lighting","text":"Lighting conditions changed","icon":"y"}
+ * {"sid":"1234567890","grp":"a_dark","title":"ESP Darkness","text":"Lights out","icon":"r","key":"esp-7:1041"}
+ * </pre>
+ * A record without a <code>sid</code> uses the one of the request. Blank lines are skipped.
+ * <p/>
+ * The body is read while the response is written: every record is handed to the {@link PushSink} as soon as its
+ * line is complete, and up to <code>maxInFlight</code> records are on their way upstream at the same time. The result
+ * of every record is written as a line of its own, in the order of the records, as soon as it and all records before
+ * it are done, e.g.
+ * <pre>
+ * {"line":1,"id":1445600000000123,"code":200}
+ * {"line":2,"code":400,"error":"grp is missing"}
+ * </pre>
+ * Only a line and the results in flight are held in memory, so a request may carry any number of records.
+ * A malformed or overlong record fails only itself, with code 400.
+ */
+final class BulkForward implements StreamingOutput {
+    private static final EventLog LOG = EventLog.getLogger(BulkForward.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final AtomicLong RECORDS = new AtomicLong();
+    private static final AtomicLong MALFORMED = new AtomicLong();
+
+    private static final String[] FIELDS = {"sid", "grp", "title", "text", "icon", "style", "key"};
+    private static final int SID = 0;
+    private static final int GRP = 1;
+    private static final int TITLE = 2;
+    private static final int TEXT = 3;
+    private static final int ICON = 4;
+    private static final int STYLE = 5;
+    private static final int KEY = 6;
+
+    private final InputStream in;
+    private final String sid;
+    private final PushSink sink;
+    private final int maxLineBytes;
+    private final Result[] window;
+    private final RenderBuffer out = new RenderBuffer(4096);
+    private long submitted;
+    private long written;
+
+    /**
+     * @param in           {@link InputStream} request body
+     * @param sid          {@link String} sender id of records without one, may be null
+     * @param sink         {@link PushSink} receives the pushes
+     * @param maxInFlight  {@link int} max. number of records waiting for their result
+     * @param maxLineBytes {@link int} max. length of a record
+     */
+    BulkForward(final InputStream in, final String sid, final PushSink sink, final int maxInFlight, final int maxLineBytes) {
+        this.in = in;
+        this.sid = sid;
+        this.sink = sink;
+        this.maxLineBytes = maxLineBytes;
+        this.window = new Result[Math.max(1, maxInFlight)];
+        for (int i = 0; i < window.length; i++) {
+            window[i] = new Result();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void write(final OutputStream output) throws IOException {
+        final long start = System.nanoTime();
+        final byte[] chunk = new byte[8192];
+        final byte[] line = new byte[maxLineBytes];
+        int length = 0;
+        boolean overlong = false;
+        long lineNo = 0;
+        int n;
+        while ((n = in.read(chunk)) != -1) {
+            for (int i = 0; i < n; i++) {
+                final byte b = chunk[i];
+                if (b != '\n') {
+                    if (length < line.length) {
+                        line[length++] = b;
+                    } else {
+                        overlong = true;
+                    }
+                    continue;
+                }
+                record(++lineNo, line, length, overlong, output);
+                length = 0;
+                overlong = false;
+            }
+        }
+        if (0 < length || overlong) {
+            record(++lineNo, line, length, overlong, output);
+        }
+        while (written < submitted) {
+            awaitOldest(output);
+        }
+        flush(output);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("event=bulk records={} ms={}", submitted, (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    private void record(final long lineNo, final byte[] line, final int length, final boolean overlong, final OutputStream output) throws IOException {
+        if (!overlong && blank(line, length)) {
+            return;
+        }
+        // make room in the window, the oldest record has to be written before its slot can be reused
+        while (submitted - written == window.length) {
+            awaitOldest(output);
+        }
+        final long seq = submitted++;
+        final Result result = window[(int) (seq % window.length)];
+        synchronized (this) {
+            result.lineNo = lineNo;
+            result.id = 0;
+            result.response = null;
+            result.error = null;
+        }
+        RECORDS.incrementAndGet();
+        final String[] fields;
+        try {
+            if (overlong) {
+                throw new IllegalArgumentException("record longer than " + line.length + " bytes");
+            }
+            fields = parse(new String(line, 0, length, UTF8));
+            if (fields[SID] == null) {
+                fields[SID] = sid;
+            }
+            if (fields[SID] == null || fields[SID].isEmpty() || fields[GRP] == null || fields[GRP].isEmpty()) {
+                throw new IllegalArgumentException(fields[GRP] == null || fields[GRP].isEmpty() ? "grp is missing" : "sid is missing");
+            }
+        } catch (IllegalArgumentException e) {
+            MALFORMED.incrementAndGet();
+            synchronized (this) {
+                result.error = e.getMessage();
+            }
+            drain(output);
+            return;
+        }
+        final long id = Push.nextId();
+        synchronized (this) {
+            result.id = id;
+        }
+        ForwardMetrics.getInstance().request(fields[GRP], fields[ICON]);
+        final PngCallback callback = Forward.deduplicate(id, fields[SID], fields[GRP], fields[TITLE], fields[TEXT], fields[ICON], fields[KEY],
+                new PngCallback() {
+                    @Override
+                    public void completed(final PngResponse response) {
+                        synchronized (BulkForward.this) {
+                            result.response = response;
+                            BulkForward.this.notifyAll();
+                        }
+                    }
+                });
+        if (callback != null) {
+            sink.submit(new Push(id, fields[SID], fields[GRP], fields[TITLE], fields[TEXT], fields[ICON], fields[STYLE]), callback);
+        }
+        drain(output);
+    }
+
+    /**
+     * Write the results of the oldest records, as far as they are done.
+     */
+    private void drain(final OutputStream output) throws IOException {
+        synchronized (this) {
+            while (written < submitted) {
+                final Result result = window[(int) (written % window.length)];
+                if (!result.isDone()) {
+                    break;
+                }
+                result.writeTo(out);
+                written++;
+            }
+        }
+        if (4096 <= out.size()) {
+            flush(output);
+        }
+    }
+
+    /**
+     * Wait for the result of the oldest record that hasn't been written yet, then write what's done.
+     */
+    private void awaitOldest(final OutputStream output) throws IOException {
+        // don't keep the results that are ready from the client, while waiting for PNG
+        flush(output);
+        final Result result = window[(int) (written % window.length)];
+        synchronized (this) {
+            while (!result.isDone()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for the upstream", e);
+                }
+            }
+        }
+        drain(output);
+    }
+
+    private void flush(final OutputStream output) throws IOException {
+        if (0 < out.size()) {
+            output.write(out.array(), 0, out.size());
+            out.reset();
+        }
+        output.flush();
+    }
+
+    private static boolean blank(final byte[] line, final int length) {
+        for (int i = 0; i < length; i++) {
+            final byte b = line[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse a flat JSON object, whose values are strings or null. Fields other than {@link #FIELDS} are ignored.
+     *
+     * @param s {@link String} the record
+     * @return {@link String[]} values of the {@link #FIELDS}, null if missing
+     * @throws IllegalArgumentException if the record is malformed
+     */
+    static String[] parse(final String s) {
+        final String[] fields = new String[FIELDS.length];
+        final StringBuilder sb = new StringBuilder(64);
+        int p = skip(s, 0);
+        p = expect(s, p, '{');
+        p = skip(s, p);
+        if (p < s.length() && s.charAt(p) == '}') {
+            p = skip(s, p + 1);
+        } else {
+            while (true) {
+                p = string(s, expect(s, p, '"'), sb);
+                final String name = sb.toString();
+                p = skip(s, expect(s, skip(s, p), ':'));
+                String value = null;
+                if (s.startsWith("null", p)) {
+                    p += 4;
+                } else {
+                    p = string(s, expect(s, p, '"'), sb);
+                    value = sb.toString();
+                }
+                for (int i = 0; i < FIELDS.length; i++) {
+                    if (FIELDS[i].equals(name)) {
+                        fields[i] = value;
+                    }
+                }
+                p = skip(s, p);
+                if (p < s.length() && s.charAt(p) == ',') {
+                    p = skip(s, p + 1);
+                    continue;
+                }
+                p = skip(s, expect(s, p, '}'));
+                break;
+            }
+        }
+        if (p != s.length()) {
+            throw new IllegalArgumentException("unexpected content after the record");
+        }
+        return fields;
+    }
+
+    private static int skip(final String s, int p) {
+        while (p < s.length() && (s.charAt(p) == ' ' || s.charAt(p) == '\t' || s.charAt(p) == '\r')) {
+            p++;
+        }
+        return p;
+    }
+
+    private static int expect(final String s, final int p, final char c) {
+        if (s.length() <= p || s.charAt(p) != c) {
+            throw new IllegalArgumentException("expected '" + c + "' at " + p);
+        }
+        return p + 1;
+    }
+
+    /**
+     * Read the characters of a string, whose opening quote precedes <code>p</code>, into the builder.
+     *
+     * @return {@link int} position after the closing quote
+     */
+    private static int string(final String s, int p, final StringBuilder sb) {
+        sb.setLength(0);
+        while (p < s.length()) {
+            final char c = s.charAt(p++);
+            if (c == '"') {
+                return p;
+            }
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (s.length() <= p) {
+                break;
+            }
+            final char e = s.charAt(p++);
+            switch (e) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (s.length() < p + 4) {
+                        throw new IllegalArgumentException("truncated escape at " + p);
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(s.substring(p, p + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw new IllegalArgumentException("invalid escape at " + p);
+                    }
+                    p += 4;
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    sb.append(e);
+                    break;
+                default:
+                    throw new IllegalArgumentException("invalid escape at " + p);
+            }
+        }
+        throw new IllegalArgumentException("unterminated string");
+    }
+
+    /**
+     * Append the number of records received and rejected as malformed, in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    static void export(final StringBuilder out) {
+        out.append("# HELP lumen_bulk_records_total Records received by bulk forward requests, by outcome.\n");
+        out.append("# TYPE lumen_bulk_records_total counter\n");
+        out.append("lumen_bulk_records_total{outcome=\"accepted\"} ").append(RECORDS.get() - MALFORMED.get()).append('\n');
+        out.append("lumen_bulk_records_total{outcome=\"malformed\"} ").append(MALFORMED.get()).append('\n');
+    }
+
+    /**
+     * Outcome of a record, reused for every n-th record; guarded by the {@link BulkForward} it belongs to.
+     */
+    private static final class Result {
+        private long lineNo;
+        private long id;
+        private PngResponse response;
+        private String error;
+
+        boolean isDone() {
+            return response != null || error != null;
+        }
+
+        void writeTo(final RenderBuffer out) {
+            ascii("{\"line\":", out);
+            ascii(Long.toString(lineNo), out);
+            if (id != 0) {
+                ascii(",\"id\":", out);
+                ascii(Long.toString(id), out);
+            }
+            ascii(",\"code\":", out);
+            if (error != null) {
+                ascii(Integer.toString(HttpURLConnection.HTTP_BAD_REQUEST), out);
+                ascii(",\"error\":\"", out);
+                MessageTemplate.writeEscaped(error, 1, out);
+                ascii("\"}\n", out);
+            } else {
+                ascii(Integer.toString(response.getCode()), out);
+                ascii("}\n", out);
+            }
+        }
+
+        private static void ascii(final String s, final RenderBuffer out) {
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i));
+            }
+        }
+    }
+}
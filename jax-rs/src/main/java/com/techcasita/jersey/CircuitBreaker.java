@@ -0,0 +1,121 @@
+package com.techcasita.jersey;
+
+/**
+ * <code>CircuitBreaker</code> stops sending requests to PNG while most of them fail.
+ * <p/>
+ * While <em>closed</em>, the outcomes of the last <code>window</code> requests are kept; once at least
+ * <code>minCalls</code> of them are known and <code>failurePercent</code> percent or more failed, the breaker
+ * <em>opens</em> and no request is let through for <code>openMs</code>. After that, it is <em>half open</em>:
+ * <code>probes</code> requests are let through, if all of them succeed the breaker closes, the first failure opens
+ * it again.
+ */
+final class CircuitBreaker {
+    static final int CLOSED = 0;
+    static final int OPEN = 1;
+    static final int HALF_OPEN = 2;
+
+    private final boolean[] outcomes;
+    private final int minCalls;
+    private final int failurePercent;
+    private final long openMs;
+    private final int probes;
+
+    private int state = CLOSED;
+    private int calls;
+    private int failures;
+    private int next;
+    private long openedAt;
+    private int probesSent;
+    private int probesSucceeded;
+    private long opened;
+
+    /**
+     * @param window         {@link int} number of recent outcomes considered
+     * @param minCalls       {@link int} number of outcomes needed, before the breaker may open
+     * @param failurePercent {@link int} share of failures in percent, that opens the breaker
+     * @param openMs         {@link long} time the breaker stays open
+     * @param probes         {@link int} number of successful requests needed to close it again
+     */
+    CircuitBreaker(final int window, final int minCalls, final int failurePercent, final long openMs, final int probes) {
+        this.outcomes = new boolean[Math.max(1, window)];
+        this.minCalls = Math.min(outcomes.length, Math.max(1, minCalls));
+        this.failurePercent = failurePercent;
+        this.openMs = openMs;
+        this.probes = Math.max(1, probes);
+    }
+
+    /**
+     * @return {@link boolean} true, if a request may be sent, in which case its outcome has to be {@link #record}ed
+     */
+    synchronized boolean allow() {
+        if (state == OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMs) {
+                return false;
+            }
+            state = HALF_OPEN;
+            probesSent = 0;
+            probesSucceeded = 0;
+        }
+        if (state == HALF_OPEN) {
+            if (probes <= probesSent) {
+                return false;
+            }
+            probesSent++;
+        }
+        return true;
+    }
+
+    /**
+     * @param failed {@link boolean} true, if no response or a 5xx status was received
+     */
+    synchronized void record(final boolean failed) {
+        switch (state) {
+            case HALF_OPEN:
+                if (failed) {
+                    open();
+                } else if (probes <= ++probesSucceeded) {
+                    state = CLOSED;
+                    calls = 0;
+                    failures = 0;
+                    next = 0;
+                }
+                break;
+            case CLOSED:
+                if (calls == outcomes.length) {
+                    if (outcomes[next]) {
+                        failures--;
+                    }
+                } else {
+                    calls++;
+                }
+                outcomes[next] = failed;
+                next = (next + 1) % outcomes.length;
+                if (failed && ++failures * 100 >= failurePercent * calls && minCalls <= calls) {
+                    open();
+                }
+                break;
+            default:
+                // a request sent before the breaker opened
+        }
+    }
+
+    private void open() {
+        state = OPEN;
+        openedAt = System.currentTimeMillis();
+        opened++;
+    }
+
+    /**
+     * @return {@link int} {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}
+     */
+    synchronized int getState() {
+        return state;
+    }
+
+    /**
+     * @return {@link long} number of times the breaker opened
+     */
+    synchronized long getOpened() {
+        return opened;
+    }
+}
@@ -0,0 +1,139 @@
+package com.techcasita.jersey;
+
+/**
+ * <code>CompactPayload</code> encodes a push into the compact payload format, a Base64 encoded binary record,
+ * instead of JSON escaped into the JSON message. The long keys of the JSON payload are replaced by one byte tags,
+ * and the payload doesn't need to be escaped, which keeps the message well below the GCM size limit,
+ * and lets the device decode it in a single pass.
+ * <p/>
+ * Version 1 of the record:
+ * <pre>
+ * version (1 byte, 1) | trace id (8 bytes) | sent (8 bytes, ms since the epoch) | field*
+ * field = tag (1 byte) | length (varint) | UTF-8 bytes
+ * </pre>
+ * The tags stand for the members of the IntuitWear notification content, see {@link #STYLE} ff. A decoder skips
+ * tags it doesn't know, so fields can be added without a new version. Without tracing, id and sent are 0.
+ * <p/>
+ * Only the built-in BigTextStyle and InboxStyle layouts can be encoded, templates loaded from files remain JSON.
+ */
+final class CompactPayload {
+    static final int VERSION = 1;
+
+    static final int STYLE = 1;
+    static final int CONTENT_TITLE = 2;
+    static final int CONTENT_TEXT = 3;
+    static final int SMALL_ICON = 4;
+    static final int LARGE_ICON = 5;
+    static final int BACKGROUND = 6;
+    static final int BIG_CONTENT_TITLE = 7;
+    static final int BIG_TEXT = 8;
+    static final int SUMMARY = 9;
+    static final int INBOX_TITLE = 10;
+    static final int LINE1 = 11;
+    static final int INBOX_SUMMARY = 12;
+
+    private static final String INBOX_STYLE = "InboxStyle";
+    private static final String BIG_TEXT_STYLE = "BigTextStyle";
+    private static final String BACKGROUND_PREFIX = "ic_lightbulb_";
+    private static final byte[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+    private static final ThreadLocal<RenderBuffer> RECORDS = new ThreadLocal<RenderBuffer>() {
+        @Override
+        protected RenderBuffer initialValue() {
+            return new RenderBuffer(256);
+        }
+    };
+
+    private CompactPayload() {
+    }
+
+    /**
+     * Encode the push and write it Base64 encoded, which never needs to be escaped inside a JSON string.
+     *
+     * @param push {@link Push} notification, its style selects the InboxStyle or (for any other) the BigTextStyle layout
+     * @param out  {@link RenderBuffer} receives the encoded payload
+     */
+    static void write(final Push push, final RenderBuffer out) {
+        final RenderBuffer record = RECORDS.get();
+        record.reset();
+        record.write(VERSION);
+        writeLong(ForwardConfig.TRACE ? push.getId() : 0, record);
+        writeLong(ForwardConfig.TRACE ? push.getReceived() : 0, record);
+        final boolean inbox = INBOX_STYLE.equals(push.getStyle());
+        writeField(STYLE, inbox ? INBOX_STYLE : BIG_TEXT_STYLE, record);
+        writeField(inbox ? INBOX_TITLE : BIG_CONTENT_TITLE, push.getTitle(), record);
+        writeField(inbox ? LINE1 : BIG_TEXT, push.getText(), record);
+        writeField(SMALL_ICON, push.getIcon(), record);
+        // the background is the lightbulb in the icon's color, as in the JSON templates
+        final String icon = push.getIcon() == null ? "" : push.getIcon();
+        record.write(BACKGROUND);
+        writeVarint(BACKGROUND_PREFIX.length() + utf8Length(icon), record);
+        MessageTemplate.writeEscaped(BACKGROUND_PREFIX, 0, record);
+        MessageTemplate.writeEscaped(icon, 0, record);
+        writeBase64(record.array(), record.size(), out);
+    }
+
+    private static void writeField(final int tag, final String value, final RenderBuffer record) {
+        final String s = value == null ? "" : value;
+        record.write(tag);
+        writeVarint(utf8Length(s), record);
+        // depth 0: UTF-8 encoded, but not escaped
+        MessageTemplate.writeEscaped(s, 0, record);
+    }
+
+    private static void writeLong(final long v, final RenderBuffer record) {
+        for (int shift = 56; 0 <= shift; shift -= 8) {
+            record.write((int) (v >>> shift) & 0xff);
+        }
+    }
+
+    private static void writeVarint(final int v, final RenderBuffer record) {
+        int n = v;
+        while (0x80 <= n) {
+            record.write(0x80 | (n & 0x7f));
+            n >>>= 7;
+        }
+        record.write(n);
+    }
+
+    /**
+     * @return {@link int} number of bytes {@link MessageTemplate#writeEscaped} writes for the string at depth 0
+     */
+    private static int utf8Length(final String s) {
+        int length = 0;
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeBase64(final byte[] bytes, final int size, final RenderBuffer out) {
+        int i = 0;
+        for (; i + 2 < size; i += 3) {
+            final int v = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            out.write(BASE64[v >>> 18]);
+            out.write(BASE64[(v >>> 12) & 0x3f]);
+            out.write(BASE64[(v >>> 6) & 0x3f]);
+            out.write(BASE64[v & 0x3f]);
+        }
+        if (i < size) {
+            final int v = (bytes[i] & 0xff) << 16 | (i + 1 < size ? (bytes[i + 1] & 0xff) << 8 : 0);
+            out.write(BASE64[v >>> 18]);
+            out.write(BASE64[(v >>> 12) & 0x3f]);
+            out.write(i + 1 < size ? BASE64[(v >>> 6) & 0x3f] : '=');
+            out.write('=');
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package com.techcasita.jersey;
+
+import java.util.Arrays;
+
+/**
+ * <code>CompressedBitmap</code> is a set of non-negative <code>int</code>s, stored like a Roaring bitmap:
+ * the values are partitioned by their upper 16 bits into chunks of 65536, and each chunk is stored either as a sorted
+ * array of its lower 16 bits, while it holds at most 4096 values (2 bytes per value), or as a plain bitmap of 8KB.
+ * <p/>
+ * Sparse and dense sets both stay small, and union and intersection work chunk by chunk, on words where dense.
+ * Not thread-safe, see {@link SubscriptionRegistry} for the locking.
+ */
+final class CompressedBitmap {
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+
+    /**
+     * Receives the values of a bitmap, in ascending order.
+     */
+    interface Visitor {
+        void visit(int value);
+    }
+
+    CompressedBitmap() {
+        this(4);
+    }
+
+    private CompressedBitmap(final int capacity) {
+        keys = new char[capacity];
+        containers = new Container[capacity];
+    }
+
+    /**
+     * @param value {@link int} value to add, not negative
+     * @return {@link boolean} true, if the value wasn't in the set before
+     */
+    boolean add(final int value) {
+        final char key = (char) (value >>> 16);
+        int i = find(key);
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, key, new ArrayContainer(new char[4], 0));
+        }
+        final Container c = containers[i];
+        final int before = c.cardinality();
+        containers[i] = c.add((char) value);
+        return before < containers[i].cardinality();
+    }
+
+    /**
+     * @param value {@link int} value to remove
+     * @return {@link boolean} true, if the value was in the set
+     */
+    boolean remove(final int value) {
+        final int i = find((char) (value >>> 16));
+        if (i < 0) {
+            return false;
+        }
+        final Container c = containers[i];
+        final int before = c.cardinality();
+        final Container after = c.remove((char) value);
+        if (after.cardinality() == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+        } else {
+            containers[i] = after;
+        }
+        return after.cardinality() < before;
+    }
+
+    boolean contains(final int value) {
+        final int i = find((char) (value >>> 16));
+        return 0 <= i && containers[i].contains((char) value);
+    }
+
+    /**
+     * @return {@link long} number of values in the set
+     */
+    long cardinality() {
+        long n = 0;
+        for (int i = 0; i < size; i++) {
+            n += containers[i].cardinality();
+        }
+        return n;
+    }
+
+    /**
+     * @param visitor {@link Visitor} receives every value, in ascending order
+     */
+    void forEach(final Visitor visitor) {
+        for (int i = 0; i < size; i++) {
+            containers[i].forEach(keys[i] << 16, visitor);
+        }
+    }
+
+    /**
+     * @return {@link long} approximate number of bytes used by the values
+     */
+    long sizeInBytes() {
+        long n = keys.length * 2L + containers.length * 8L;
+        for (int i = 0; i < size; i++) {
+            n += containers[i].sizeInBytes();
+        }
+        return n;
+    }
+
+    /**
+     * @return {@link CompressedBitmap} a new bitmap, holding the values of both
+     */
+    static CompressedBitmap or(final CompressedBitmap a, final CompressedBitmap b) {
+        final CompressedBitmap r = new CompressedBitmap(Math.max(4, a.size + b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                r.append(a.keys[i], a.containers[i++].copy());
+            } else if (b.keys[j] < a.keys[i]) {
+                r.append(b.keys[j], b.containers[j++].copy());
+            } else {
+                r.append(a.keys[i], a.containers[i++].or(b.containers[j++]));
+            }
+        }
+        while (i < a.size) {
+            r.append(a.keys[i], a.containers[i++].copy());
+        }
+        while (j < b.size) {
+            r.append(b.keys[j], b.containers[j++].copy());
+        }
+        return r;
+    }
+
+    /**
+     * @return {@link CompressedBitmap} a new bitmap, holding the values in both
+     */
+    static CompressedBitmap and(final CompressedBitmap a, final CompressedBitmap b) {
+        final CompressedBitmap r = new CompressedBitmap(Math.max(4, Math.min(a.size, b.size)));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (b.keys[j] < a.keys[i]) {
+                j++;
+            } else {
+                final Container c = a.containers[i++].and(b.containers[j++]);
+                if (0 < c.cardinality()) {
+                    r.append(a.keys[i - 1], c);
+                }
+            }
+        }
+        return r;
+    }
+
+    private int find(final char key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    private void insert(final int i, final char key, final Container c) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = c;
+        size++;
+    }
+
+    private void append(final char key, final Container c) {
+        insert(size, key, c);
+    }
+
+    /**
+     * The lower 16 bits of the values of a chunk.
+     */
+    private abstract static class Container {
+        abstract int cardinality();
+
+        abstract boolean contains(char v);
+
+        abstract Container add(char v);
+
+        abstract Container remove(char v);
+
+        abstract Container or(Container other);
+
+        abstract Container and(Container other);
+
+        abstract Container copy();
+
+        abstract void forEach(int high, Visitor visitor);
+
+        abstract long sizeInBytes();
+    }
+
+    private static final class ArrayContainer extends Container {
+        private char[] values;
+        private int n;
+
+        ArrayContainer(final char[] values, final int n) {
+            this.values = values;
+            this.n = n;
+        }
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        @Override
+        boolean contains(final char v) {
+            return 0 <= Arrays.binarySearch(values, 0, n, v);
+        }
+
+        @Override
+        Container add(final char v) {
+            int i = Arrays.binarySearch(values, 0, n, v);
+            if (0 <= i) {
+                return this;
+            }
+            if (n == ARRAY_MAX) {
+                return toBitmap().add(v);
+            }
+            i = -i - 1;
+            if (n == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, n * 2)));
+            }
+            System.arraycopy(values, i, values, i + 1, n - i);
+            values[i] = v;
+            n++;
+            return this;
+        }
+
+        @Override
+        Container remove(final char v) {
+            final int i = Arrays.binarySearch(values, 0, n, v);
+            if (0 <= i) {
+                System.arraycopy(values, i + 1, values, i, n - i - 1);
+                n--;
+            }
+            return this;
+        }
+
+        @Override
+        Container or(final Container other) {
+            if (other instanceof BitmapContainer) {
+                return other.or(this);
+            }
+            final ArrayContainer o = (ArrayContainer) other;
+            if (ARRAY_MAX < n + o.n) {
+                return toBitmap().or(o);
+            }
+            final char[] r = new char[n + o.n];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (i < n && j < o.n) {
+                final char a = values[i];
+                final char b = o.values[j];
+                if (a <= b) {
+                    i++;
+                    if (a == b) {
+                        j++;
+                    }
+                    r[k++] = a;
+                } else {
+                    j++;
+                    r[k++] = b;
+                }
+            }
+            while (i < n) {
+                r[k++] = values[i++];
+            }
+            while (j < o.n) {
+                r[k++] = o.values[j++];
+            }
+            return new ArrayContainer(r, k);
+        }
+
+        @Override
+        Container and(final Container other) {
+            final char[] r = new char[n];
+            int k = 0;
+            for (int i = 0; i < n; i++) {
+                if (other.contains(values[i])) {
+                    r[k++] = values[i];
+                }
+            }
+            return new ArrayContainer(r, k);
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, n), n);
+        }
+
+        @Override
+        void forEach(final int high, final Visitor visitor) {
+            for (int i = 0; i < n; i++) {
+                visitor.visit(high | values[i]);
+            }
+        }
+
+        @Override
+        long sizeInBytes() {
+            return values.length * 2L;
+        }
+
+        private BitmapContainer toBitmap() {
+            final long[] words = new long[WORDS];
+            for (int i = 0; i < n; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            return new BitmapContainer(words, n);
+        }
+    }
+
+    private static final class BitmapContainer extends Container {
+        private final long[] words;
+        private int n;
+
+        BitmapContainer(final long[] words, final int n) {
+            this.words = words;
+            this.n = n;
+        }
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        @Override
+        boolean contains(final char v) {
+            return (words[v >>> 6] & 1L << v) != 0;
+        }
+
+        @Override
+        Container add(final char v) {
+            final long before = words[v >>> 6];
+            words[v >>> 6] = before | 1L << v;
+            if (before != words[v >>> 6]) {
+                n++;
+            }
+            return this;
+        }
+
+        @Override
+        Container remove(final char v) {
+            final long before = words[v >>> 6];
+            words[v >>> 6] = before & ~(1L << v);
+            if (before != words[v >>> 6]) {
+                n--;
+            }
+            return n <= ARRAY_MAX ? toArray() : this;
+        }
+
+        @Override
+        Container or(final Container other) {
+            final long[] r = Arrays.copyOf(words, WORDS);
+            if (other instanceof BitmapContainer) {
+                final long[] o = ((BitmapContainer) other).words;
+                for (int i = 0; i < WORDS; i++) {
+                    r[i] |= o[i];
+                }
+            } else {
+                final ArrayContainer o = (ArrayContainer) other;
+                for (int i = 0; i < o.n; i++) {
+                    r[o.values[i] >>> 6] |= 1L << o.values[i];
+                }
+            }
+            int c = 0;
+            for (final long w : r) {
+                c += Long.bitCount(w);
+            }
+            return new BitmapContainer(r, c);
+        }
+
+        @Override
+        Container and(final Container other) {
+            if (other instanceof ArrayContainer) {
+                return other.and(this);
+            }
+            final long[] o = ((BitmapContainer) other).words;
+            final long[] r = new long[WORDS];
+            int c = 0;
+            for (int i = 0; i < WORDS; i++) {
+                r[i] = words[i] & o[i];
+                c += Long.bitCount(r[i]);
+            }
+            final BitmapContainer result = new BitmapContainer(r, c);
+            return c <= ARRAY_MAX ? result.toArray() : result;
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(Arrays.copyOf(words, WORDS), n);
+        }
+
+        @Override
+        void forEach(final int high, final Visitor visitor) {
+            for (int i = 0; i < WORDS; i++) {
+                long w = words[i];
+                while (w != 0) {
+                    visitor.visit(high | i << 6 | Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+        }
+
+        @Override
+        long sizeInBytes() {
+            return WORDS * 8L;
+        }
+
+        private ArrayContainer toArray() {
+            final char[] values = new char[n];
+            int k = 0;
+            for (int i = 0; i < WORDS; i++) {
+                long w = words[i];
+                while (w != 0) {
+                    values[k++] = (char) (i << 6 | Long.numberOfTrailingZeros(w));
+                    w &= w - 1;
+                }
+            }
+            return new ArrayContainer(values, n);
+        }
+    }
+}
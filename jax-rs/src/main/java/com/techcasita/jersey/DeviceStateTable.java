@@ -0,0 +1,194 @@
+package com.techcasita.jersey;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <code>DeviceStateTable</code> maps a 64-bit device key to a 32-bit state, for a very large number of devices.
+ * <p/>
+ * Keys and states are kept in primitive arrays, open addressing with linear probing, about 16 bytes per device,
+ * no object per device. The table is split into stripes, each guarded by its own monitor and growing independently;
+ * callers lock the stripe of a key with {@link #stripe(long)} for a read-modify-write of its state.
+ * Key 0 marks a free slot and is never stored.
+ */
+final class DeviceStateTable {
+    private static final int MAGIC = 0x4c554d53;
+    private static final int VERSION = 1;
+
+    private final Stripe[] stripes;
+
+    /**
+     * The keys and states of a part of the devices.
+     */
+    static final class Stripe {
+        private long[] keys;
+        private int[] states;
+        private int size;
+
+        Stripe(final int capacity) {
+            keys = new long[capacity];
+            states = new int[capacity];
+        }
+
+        /**
+         * @param key {@link long} device key
+         * @return {@link int} state of the device, -1 if it isn't known
+         */
+        int get(final long key) {
+            final int mask = keys.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return states[i];
+                }
+                if (keys[i] == 0) {
+                    return -1;
+                }
+            }
+        }
+
+        /**
+         * @param key   {@link long} device key
+         * @param state {@link int} new state of the device, not negative
+         */
+        void put(final long key, final int state) {
+            if (keys.length * 3 <= (size + 1) * 4) {
+                grow();
+            }
+            final int mask = keys.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    states[i] = state;
+                    return;
+                }
+                if (keys[i] == 0) {
+                    keys[i] = key;
+                    states[i] = state;
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        private void grow() {
+            final long[] oldKeys = keys;
+            final int[] oldStates = states;
+            keys = new long[oldKeys.length * 2];
+            states = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldStates[i]);
+                }
+            }
+        }
+
+        private static int slot(final long key, final int mask) {
+            // the low bits select the stripe, the high bits the slot
+            return (int) (key >>> 32) & mask;
+        }
+    }
+
+    /**
+     * @param stripes  {@link int} number of stripes, a power of two
+     * @param capacity {@link int} initial number of slots per stripe, a power of two
+     */
+    DeviceStateTable(final int stripes, final int capacity) {
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    /**
+     * @param sid    {@link String} sender id
+     * @param device {@link String} device id, unique per sender
+     * @return {@link long} 64-bit hash of sender and device, never 0
+     */
+    static long key(final String sid, final String device) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < sid.length(); i++) {
+            h = (h ^ sid.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < device.length(); i++) {
+            h = (h ^ device.charAt(i)) * 0x100000001b3L;
+        }
+        // finalizer of MurmurHash3, spreads the bits over stripe and slot
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * @param key {@link long} device key
+     * @return {@link Stripe} holding the key, to be locked while its state is read and written
+     */
+    Stripe stripe(final long key) {
+        return stripes[(int) key & (stripes.length - 1)];
+    }
+
+    /**
+     * @return {@link long} number of devices
+     */
+    long size() {
+        long n = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.size;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Write all keys and states, one stripe at a time. Updates during the write are partly included.
+     *
+     * @param out {@link DataOutputStream} receives the snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    void write(final DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (final Stripe stripe : stripes) {
+            final long[] keys;
+            final int[] states;
+            synchronized (stripe) {
+                keys = Arrays.copyOf(stripe.keys, stripe.keys.length);
+                states = Arrays.copyOf(stripe.states, stripe.states.length);
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    out.writeLong(keys[i]);
+                    out.writeInt(states[i]);
+                }
+            }
+        }
+        out.writeLong(0);
+    }
+
+    /**
+     * Read a snapshot written by {@link #write(DataOutputStream)}.
+     *
+     * @param in {@link DataInputStream} the snapshot
+     * @return {@link long} number of devices read
+     * @throws IOException if the snapshot cannot be read, or isn't one
+     */
+    long read(final DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("Not a device state snapshot");
+        }
+        long n = 0;
+        for (long key = in.readLong(); key != 0; key = in.readLong()) {
+            final int state = in.readInt();
+            final Stripe stripe = stripe(key);
+            synchronized (stripe) {
+                stripe.put(key, state);
+            }
+            n++;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,294 @@
+package com.techcasita.jersey;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <code>EventLog</code> is the logging path of the request hot path. Messages are patterns with <code>{}</code>
+ * placeholders, written as <code>key=value</code> pairs, e.g. <code>event=response id={} code={}</code>.
+ * <p/>
+ * A disabled level costs a level check, nothing is formatted. The arguments are still evaluated by the caller though,
+ * primitives get boxed, and more than three arguments allocate an array, so calls on the request path check
+ * {@link #isInfoEnabled()} first, unless all their arguments are objects already. An enabled message is captured with its
+ * arguments and offered to a bounded, lock-free ring buffer shared by all event logs. A single writer thread formats
+ * the messages and hands them to the log4j appenders, so that neither formatting nor log I/O happen on the caller's
+ * thread. If the ring is full, the message is dropped and counted, callers never wait for the writer.
+ * <p/>
+ * Instances are meant to be kept in static fields, see {@link #getLogger(Class)}.
+ */
+final class EventLog {
+    private static final String FQCN = EventLog.class.getName();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long IDLE_NANOS = 1000000;
+    private static final Ring RING = new Ring(ForwardConfig.LOG_RING_SIZE);
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final Thread WRITER = new Thread("event-log-writer") {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+    private static volatile boolean running = true;
+
+    static {
+        WRITER.setDaemon(true);
+        WRITER.start();
+    }
+
+    private final Logger logger;
+    private final LocationInfo location;
+
+    private EventLog(final Logger logger) {
+        this.logger = logger;
+        this.location = new LocationInfo("?", logger.getName(), "?", "?");
+    }
+
+    /**
+     * @param clazz {@link Class} that logs
+     * @return {@link EventLog} writing to the log4j logger of the class
+     */
+    static EventLog getLogger(final Class<?> clazz) {
+        return new EventLog(Logger.getLogger(clazz));
+    }
+
+    boolean isDebugEnabled() {
+        return logger.isDebugEnabled();
+    }
+
+    boolean isInfoEnabled() {
+        return logger.isInfoEnabled();
+    }
+
+    boolean isWarnEnabled() {
+        return logger.isEnabledFor(Level.WARN);
+    }
+
+    void debug(final String pattern, final Object a) {
+        if (logger.isDebugEnabled()) {
+            offer(Level.DEBUG, pattern, new Object[]{a});
+        }
+    }
+
+    void debug(final String pattern, final Object a, final Object b) {
+        if (logger.isDebugEnabled()) {
+            offer(Level.DEBUG, pattern, new Object[]{a, b});
+        }
+    }
+
+    void info(final String pattern, final Object a) {
+        if (logger.isInfoEnabled()) {
+            offer(Level.INFO, pattern, new Object[]{a});
+        }
+    }
+
+    void info(final String pattern, final Object a, final Object b) {
+        if (logger.isInfoEnabled()) {
+            offer(Level.INFO, pattern, new Object[]{a, b});
+        }
+    }
+
+    void info(final String pattern, final Object a, final Object b, final Object c) {
+        if (logger.isInfoEnabled()) {
+            offer(Level.INFO, pattern, new Object[]{a, b, c});
+        }
+    }
+
+    void info(final String pattern, final Object... args) {
+        if (logger.isInfoEnabled()) {
+            offer(Level.INFO, pattern, args);
+        }
+    }
+
+    void warn(final String pattern, final Object a) {
+        if (logger.isEnabledFor(Level.WARN)) {
+            offer(Level.WARN, pattern, new Object[]{a});
+        }
+    }
+
+    void warn(final String pattern, final Object a, final Object b) {
+        if (logger.isEnabledFor(Level.WARN)) {
+            offer(Level.WARN, pattern, new Object[]{a, b});
+        }
+    }
+
+    void warn(final String pattern, final Object a, final Object b, final Object c) {
+        if (logger.isEnabledFor(Level.WARN)) {
+            offer(Level.WARN, pattern, new Object[]{a, b, c});
+        }
+    }
+
+    void warn(final String pattern, final Object... args) {
+        if (logger.isEnabledFor(Level.WARN)) {
+            offer(Level.WARN, pattern, args);
+        }
+    }
+
+    private void offer(final Level level, final String pattern, final Object[] args) {
+        final Event event = new Event(this, level, pattern, args, System.currentTimeMillis(), Thread.currentThread().getName());
+        if (!RING.offer(event)) {
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param id {@link long} id of the push
+     * @return {@link boolean} true, if the payload of the push should be logged
+     */
+    static boolean sampled(final long id) {
+        return 0 < ForwardConfig.LOG_PAYLOAD_SAMPLE_EVERY && id % ForwardConfig.LOG_PAYLOAD_SAMPLE_EVERY == 0;
+    }
+
+    /**
+     * @param b      {@link byte[]} UTF-8 encoded payload
+     * @param length {@link int} number of valid bytes
+     * @return {@link String} the payload, cut off after the configured max. number of bytes
+     */
+    static String truncate(final byte[] b, final int length) {
+        if (length <= ForwardConfig.LOG_PAYLOAD_MAX_BYTES) {
+            return new String(b, 0, length, UTF8);
+        }
+        return new String(b, 0, ForwardConfig.LOG_PAYLOAD_MAX_BYTES, UTF8) + "...(" + length + " bytes)";
+    }
+
+    /**
+     * @param s {@link String} payload
+     * @return {@link String} the payload, cut off after the configured max. number of characters
+     */
+    static String truncate(final String s) {
+        if (s == null || s.length() <= ForwardConfig.LOG_PAYLOAD_MAX_BYTES) {
+            return s;
+        }
+        return s.substring(0, ForwardConfig.LOG_PAYLOAD_MAX_BYTES) + "...(" + s.length() + " chars)";
+    }
+
+    /**
+     * @return {@link long} number of messages dropped, because the ring buffer was full
+     */
+    static long getDropped() {
+        return DROPPED.get();
+    }
+
+    /**
+     * Write the messages still in the ring buffer and stop the writer.
+     *
+     * @param timeoutMs {@link long} max. time to wait for the writer
+     */
+    static void shutdown(final long timeoutMs) {
+        running = false;
+        LockSupport.unpark(WRITER);
+        try {
+            WRITER.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void write() {
+        while (true) {
+            final Event event = RING.poll();
+            if (event != null) {
+                event.write();
+            } else if (running) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static String format(final String pattern, final Object[] args) {
+        final StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+        int from = 0;
+        for (final Object arg : args) {
+            final int i = pattern.indexOf("{}", from);
+            if (i < 0) {
+                break;
+            }
+            sb.append(pattern, from, i).append(arg);
+            from = i + 2;
+        }
+        return sb.append(pattern, from, pattern.length()).toString();
+    }
+
+    /**
+     * A message captured on the caller's thread, formatted and appended on the writer thread.
+     */
+    private static final class Event {
+        private final EventLog log;
+        private final Level level;
+        private final String pattern;
+        private final Object[] args;
+        private final long timeStamp;
+        private final String threadName;
+
+        Event(final EventLog log, final Level level, final String pattern, final Object[] args, final long timeStamp, final String threadName) {
+            this.log = log;
+            this.level = level;
+            this.pattern = pattern;
+            this.args = args;
+            this.timeStamp = timeStamp;
+            this.threadName = threadName;
+        }
+
+        void write() {
+            try {
+                log.logger.callAppenders(new LoggingEvent(FQCN, log.logger, timeStamp, level, format(pattern, args),
+                        threadName, null, null, log.location, null));
+            } catch (RuntimeException e) {
+                // an argument's toString() failed, never let it stop the writer
+                DROPPED.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer ring. Producers claim a slot by moving the head,
+     * and publish the event into the slot; the writer clears the slot before moving the tail past it.
+     */
+    private static final class Ring {
+        private final AtomicReferenceArray<Event> slots;
+        private final int mask;
+        private final AtomicLong head = new AtomicLong();
+        private volatile long tail;
+
+        Ring(final int size) {
+            final int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+            this.slots = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity - 1;
+        }
+
+        boolean offer(final Event event) {
+            while (true) {
+                final long seq = head.get();
+                if (mask < seq - tail) {
+                    return false;
+                }
+                if (head.compareAndSet(seq, seq + 1)) {
+                    slots.lazySet((int) seq & mask, event);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return {@link Event} the next event, or null if there is none, or it hasn't been published yet
+         */
+        Event poll() {
+            final long seq = tail;
+            final int index = (int) seq & mask;
+            final Event event = slots.get(index);
+            if (event != null) {
+                slots.lazySet(index, null);
+                tail = seq + 1;
+            }
+            return event;
+        }
+    }
+}
@@ -1,91 +1,110 @@
 package com.techcasita.jersey;
 
-import org.apache.log4j.Logger;
-
-import javax.net.ssl.HttpsURLConnection;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 
 /**
  * <code>Forward</code> receives an HTTP GET request and looks for 5 {@link String} parameters.
- * The parameter values will be plugged into a JSON template,
+ * The parameter values will be plugged into a JSON template, optionally chosen by a 6th <code>style</code> parameter,
  * which is then send to the PNG D2D environment for further processing.
- * Basically, an HTTP GET request gets augmented and is forwarded as an HTTPS POST.
- *
+ * Basically, an HTTP GET request gets augmented and is forwarded as an HTTPS POST,
+ * after passing through the stages of the {@link ForwardPipeline}.
+ * <p/>
+ * A retried request is answered from the {@link IdempotencyCache}, without forwarding it again. It is recognized by the
+ * <code>Idempotency-Key</code> header or <code>key</code> parameter, or, if <code>lumen.idempotency.bucketSeconds</code>
+ * is set, by having the same content as a request that arrived in the same time bucket.
+ * <p/>
+ * Gateways send many notifications at once with a POST, see {@link BulkForward}.
  */
 @Path("forward")
 public class Forward {
-    private static final String ADDRESS = "https://png.d2d.msg.intuit.com/api/v2/push";
-    private static String TEMPLATE = "{\"senderId\":\"$SID$\",\"gcm\":{\"dry_run\":false,\"time_to_live\":1,\"groups\":[\"$GRP$\"],\"data\":{\"payload\":\"" +
-            "{\\\"style\\\":\\\"BigTextStyle\\\",\\\"BigTextStyle\\\":{\\\"bigContentTitle\\\":\\\"$TITLE$\\\",\\\"bigText\\\":\\\"$TEXT$\\\"},\\\"smallIcon\\\":\\\"$ICON$\\\",\\\"background\\\":\\\"ic_lightbulb_$ICON$\\\"}\"}}}";
-
+    private static final EventLog LOG = EventLog.getLogger(Forward.class);
 
+    /**
+     * Forwards the request to PNG and answers with the upstream HTTP status code, or -1 if PNG couldn't be reached.
+     * In async mode (the default), the request is suspended while the upstream call is in progress,
+     * so that no container thread waits on PNG.
+     */
     @GET
     @Produces("text/plain")
-    public String forward(
+    public void forward(
+            @Suspended final AsyncResponse asyncResponse,
             @QueryParam("sid") final String sid,
             @QueryParam("grp") final String grp,
             @QueryParam("title") final String title,
             @QueryParam("text") final String text,
-            @QueryParam("icon") final String icon) {
-        Logger.getLogger(getClass()).info("Request received to send " + title + " to " + grp);
-
-        String msg = TEMPLATE;
-        msg = msg.replace("$SID$", sid);
-        msg = msg.replace("$GRP$", grp);
-        msg = msg.replace("$TITLE$", title);
-        msg = msg.replace("$TEXT$", text);
-        msg = msg.replace("$ICON$", icon);
-        Logger.getLogger(getClass()).info("Request message: " + msg);
-
-        String result;
-        int responseCode = -1;
-        HttpsURLConnection con;
-
-        try {
-            URL obj = new URL(ADDRESS);
-            con = (HttpsURLConnection) obj.openConnection();
-
-            //add request header
-            con.setRequestMethod("POST");
-            //con.setRequestProperty("User-Agent", USER_AGENT);
-            //con.setRequestProperty("Accept-Language", "en-US,en;q=0.5");
-            con.setRequestProperty("Content-Type", "application/json");
-
-            // Send post request
-            con.setDoOutput(true);
-            DataOutputStream wr = new DataOutputStream(con.getOutputStream());
-            wr.writeBytes(msg);
-            wr.flush();
-            wr.close();
-
-            responseCode = con.getResponseCode();
-            Logger.getLogger(getClass()).info("\nSending 'POST' request to URL : " + ADDRESS);
-            Logger.getLogger(getClass()).info("Post data : " + msg);
-            Logger.getLogger(getClass()).info("Response Code : " + responseCode);
-
-            BufferedReader in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-            String inputLine;
-            StringBuilder response = new StringBuilder();
+            @QueryParam("icon") final String icon,
+            @QueryParam("style") final String style,
+            @QueryParam("key") final String key,
+            @HeaderParam("Idempotency-Key") final String keyHeader) {
+        final long id = Push.nextId();
+        final long start = System.nanoTime();
+        if (LOG.isInfoEnabled()) {
+            LOG.info("event=request id={} sid={} grp={} icon={} style={}", id, sid, grp, icon, style);
+        }
+        ForwardMetrics.getInstance().request(grp, icon);
 
-            while ((inputLine = in.readLine()) != null) {
-                response.append(inputLine);
+        PngCallback callback = new PngCallback() {
+            @Override
+            public void completed(final PngResponse response) {
+                final int code = response.getCode();
+                final long ms = (System.nanoTime() - start) / 1000000;
+                if (code == -1 || HttpURLConnection.HTTP_BAD_REQUEST <= code) {
+                    if (LOG.isWarnEnabled()) {
+                        LOG.warn("event=response id={} code={} ms={} body={}", id, code, ms, EventLog.truncate(response.getBody()));
+                    }
+                } else if (LOG.isInfoEnabled()) {
+                    LOG.info("event=response id={} code={} ms={}", id, code, ms);
+                }
+                asyncResponse.resume(String.valueOf(code));
             }
-            in.close();
-            result = response.toString();
+        };
+        callback = deduplicate(id, sid, grp, title, text, icon, keyHeader != null ? keyHeader : key, callback);
+        if (callback != null) {
+            ForwardPipeline.getInstance().submit(new Push(id, sid, grp, title, text, icon, style), callback);
+        }
+    }
 
-        } catch (IOException e) {
-            result = e.toString();
+    /**
+     * Forwards every record of the newline-delimited JSON body, and answers with a line per record, holding its
+     * upstream HTTP status code, in the order of the records. Results are streamed while the body is still read.
+     */
+    @POST
+    @Consumes({"application/x-ndjson", "text/plain"})
+    @Produces("application/x-ndjson")
+    public StreamingOutput bulk(@QueryParam("sid") final String sid, final InputStream body) {
+        return new BulkForward(body, sid, ForwardPipeline.getInstance(), ForwardConfig.BULK_MAX_IN_FLIGHT, ForwardConfig.BULK_MAX_LINE_BYTES);
+    }
+
+    /**
+     * Look the request up in the {@link IdempotencyCache}, a retried request receives the original response.
+     *
+     * @param key      {@link String} idempotency key sent along, may be null
+     * @param callback {@link PngCallback} receives the response
+     * @return {@link PngCallback} to be used for the request, null if it is a duplicate and must not be forwarded
+     */
+    static PngCallback deduplicate(final long id, final String sid, final String grp, final String title, final String text,
+                                   final String icon, final String key, final PngCallback callback) {
+        final IdempotencyCache cache = IdempotencyCache.getInstance();
+        if (cache == null || (key == null && ForwardConfig.IDEMPOTENCY_BUCKET_SECONDS <= 0)) {
+            return callback;
         }
-        Logger.getLogger(getClass()).info(result);
-        return String.valueOf(responseCode);
+        final long k = key != null ? IdempotencyCache.key(sid, key) : IdempotencyCache.key(
+                System.currentTimeMillis() / (ForwardConfig.IDEMPOTENCY_BUCKET_SECONDS * 1000), sid, grp, title, text, icon);
+        final PngCallback c = cache.begin(k, callback);
+        if (c == null && LOG.isInfoEnabled()) {
+            LOG.info("event=duplicate id={} sid={} grp={}", id, sid, grp);
+        }
+        return c;
     }
 }
-
@@ -0,0 +1,264 @@
+package com.techcasita.jersey;
+
+/**
+ * <code>ForwardConfig</code> holds the tunables of the forwarding service.
+ * Every value has a sensible default and can be overridden with a system property,
+ * e.g. <code>-Dlumen.png.maxConnections=32</code> in the servlet container's JVM options.
+ */
+final class ForwardConfig {
+
+    /**
+     * Upstream PNG push endpoint
+     */
+    static final String PNG_ADDRESS = System.getProperty("lumen.png.address", "https://png.d2d.msg.intuit.com/api/v2/push");
+
+    /**
+     * Max. number of concurrent (and kept-alive) connections to the PNG host
+     */
+    static final int PNG_MAX_CONNECTIONS = Integer.getInteger("lumen.png.maxConnections", 16);
+
+    /**
+     * Number of connections opened when the web application starts, 0 disables the warm-up
+     */
+    static final int PNG_WARMUP_CONNECTIONS = Integer.getInteger("lumen.png.warmupConnections", 4);
+
+    /**
+     * Time in ms to wait for a connection to PNG to be established, 0 waits forever
+     */
+    static final int PNG_CONNECT_TIMEOUT_MS = Integer.getInteger("lumen.png.connectTimeoutMs", 3000);
+
+    /**
+     * Time in ms to wait for PNG to respond on an established connection, 0 waits forever
+     */
+    static final int PNG_READ_TIMEOUT_MS = Integer.getInteger("lumen.png.readTimeoutMs", 10000);
+
+    /**
+     * Guard the PNG upstream with an adaptive concurrency limit and a circuit breaker
+     */
+    static final boolean UPSTREAM_GUARD = Boolean.parseBoolean(System.getProperty("lumen.upstream.guard", "true"));
+
+    /**
+     * Concurrency limit of the upstream requests, before it adapted to the measured latencies
+     */
+    static final int UPSTREAM_LIMIT_INITIAL = Integer.getInteger("lumen.upstream.limit.initial", 16);
+
+    /**
+     * Lower bound of the concurrency limit
+     */
+    static final int UPSTREAM_LIMIT_MIN = Integer.getInteger("lumen.upstream.limit.min", 2);
+
+    /**
+     * Upper bound of the concurrency limit
+     */
+    static final int UPSTREAM_LIMIT_MAX = Integer.getInteger("lumen.upstream.limit.max", 256);
+
+    /**
+     * Number of recent upstream outcomes the circuit breaker considers
+     */
+    static final int BREAKER_WINDOW = Integer.getInteger("lumen.breaker.window", 50);
+
+    /**
+     * Number of recent outcomes needed, before the circuit breaker may open
+     */
+    static final int BREAKER_MIN_CALLS = Integer.getInteger("lumen.breaker.minCalls", 20);
+
+    /**
+     * Share of failed upstream requests in percent, that opens the circuit breaker
+     */
+    static final int BREAKER_FAILURE_PERCENT = Integer.getInteger("lumen.breaker.failurePercent", 50);
+
+    /**
+     * Time in ms the circuit breaker stays open, before it lets probe requests through
+     */
+    static final long BREAKER_OPEN_MS = Long.getLong("lumen.breaker.openMs", 5000);
+
+    /**
+     * Number of successful probe requests, that close the circuit breaker again
+     */
+    static final int BREAKER_PROBES = Integer.getInteger("lumen.breaker.probes", 3);
+
+    /**
+     * Directory of the queue that takes the pushes while the circuit breaker is open; not set rejects them with 503
+     */
+    static final String BREAKER_FALLBACK_DIR = System.getProperty("lumen.breaker.fallbackDir");
+
+    /**
+     * Number of TLS sessions that are cached for abbreviated handshakes
+     */
+    static final int TLS_SESSION_CACHE_SIZE = Integer.getInteger("lumen.tls.sessionCacheSize", 64);
+
+    /**
+     * Seconds a cached TLS session may be resumed
+     */
+    static final int TLS_SESSION_TIMEOUT = Integer.getInteger("lumen.tls.sessionTimeout", 3600);
+
+    /**
+     * Suspend the request while the upstream call is in progress, instead of blocking a container thread
+     */
+    static final boolean FORWARD_ASYNC = Boolean.parseBoolean(System.getProperty("lumen.forward.async", "true"));
+
+    /**
+     * Max. number of forward requests waiting for an upstream connection, before new ones are rejected
+     */
+    static final int FORWARD_MAX_PENDING = Integer.getInteger("lumen.forward.maxPending", 100000);
+
+    /**
+     * Time in ms, pushes with identical payload are collected and merged into one push, 0 disables batching
+     */
+    static final long BATCH_WINDOW_MS = Long.getLong("lumen.batch.windowMs", 0);
+
+    /**
+     * Max. number of groups merged into one push
+     */
+    static final int BATCH_MAX_GROUPS = Integer.getInteger("lumen.batch.maxGroups", 32);
+
+    /**
+     * Directory holding additional <code>[name].json</code> payload templates, none if not set
+     */
+    static final String TEMPLATES_DIR = System.getProperty("lumen.templates.dir");
+
+    /**
+     * Interval in seconds, the templates directory is checked for modified templates
+     */
+    static final long TEMPLATES_POLL_SECONDS = Long.getLong("lumen.templates.pollSeconds", 30);
+
+    /**
+     * Directory of the durable outbound queue, pushes are acknowledged once queued; not set disables the queue
+     */
+    static final String QUEUE_DIR = System.getProperty("lumen.queue.dir");
+
+    /**
+     * Size in bytes of a queue segment file
+     */
+    static final int QUEUE_SEGMENT_BYTES = Integer.getInteger("lumen.queue.segmentBytes", 8 * 1024 * 1024);
+
+    /**
+     * Force every queued push to the storage device, which also survives an OS crash, at the cost of latency
+     */
+    static final boolean QUEUE_FORCE = Boolean.parseBoolean(System.getProperty("lumen.queue.force", "false"));
+
+    /**
+     * Delay in ms before the first retry of a failed push, doubled with every retry
+     */
+    static final long QUEUE_INITIAL_BACKOFF_MS = Long.getLong("lumen.queue.initialBackoffMs", 250);
+
+    /**
+     * Upper bound in ms of the retry delay
+     */
+    static final long QUEUE_MAX_BACKOFF_MS = Long.getLong("lumen.queue.maxBackoffMs", 60000);
+
+    /**
+     * Time in ms, a push is held back per sender and group, to be superseded by a newer one; 0 disables debouncing
+     */
+    static final long THROTTLE_DEBOUNCE_MS = Long.getLong("lumen.throttle.debounceMs", 0);
+
+    /**
+     * Max. pushes per minute, per sender and group; 0 disables rate limiting
+     */
+    static final double THROTTLE_RATE_PER_MINUTE = Double.parseDouble(System.getProperty("lumen.throttle.ratePerMinute", "0"));
+
+    /**
+     * Pushes a sender and group may send in a row, before the rate limit kicks in
+     */
+    static final int THROTTLE_BURST = Integer.getInteger("lumen.throttle.burst", 3);
+
+    /**
+     * Seconds after which the throttling state of a quiet sender and group is evicted
+     */
+    static final long THROTTLE_IDLE_SECONDS = Long.getLong("lumen.throttle.idleSeconds", 600);
+
+    /**
+     * Number of log messages buffered for the writer thread, messages beyond are dropped
+     */
+    static final int LOG_RING_SIZE = Integer.getInteger("lumen.log.ringSize", 8192);
+
+    /**
+     * Log the payload of every n-th push; 0 never logs payloads
+     */
+    static final long LOG_PAYLOAD_SAMPLE_EVERY = Long.getLong("lumen.log.payloadSampleEvery", 100);
+
+    /**
+     * Max. length of a logged payload or response body, the rest is cut off
+     */
+    static final int LOG_PAYLOAD_MAX_BYTES = Integer.getInteger("lumen.log.payloadMaxBytes", 512);
+
+    /**
+     * File the sensor states are restored from on start, and saved to periodically; not set keeps them in memory only
+     */
+    static final String SENSORS_SNAPSHOT = System.getProperty("lumen.sensors.snapshot");
+
+    /**
+     * Interval in seconds, the sensor states are saved
+     */
+    static final long SENSORS_SNAPSHOT_SECONDS = Long.getLong("lumen.sensors.snapshotSeconds", 60);
+
+    /**
+     * UDP port, sensor frames are received on; 0 disables the UDP listener
+     */
+    static final int UDP_PORT = Integer.getInteger("lumen.udp.port", 0);
+
+    /**
+     * Number of threads receiving and decoding UDP frames
+     */
+    static final int UDP_THREADS = Integer.getInteger("lumen.udp.threads", 2);
+
+    /**
+     * Deliver pushes to the members of the {@link SubscriptionRegistry} locally, instead of sending them to PNG
+     */
+    static final boolean FANOUT_LOCAL = Boolean.parseBoolean(System.getProperty("lumen.fanout.local", "false"));
+
+    /**
+     * Number of shards the pushes are partitioned into by sender, in order per sender; 0 disables sharding
+     */
+    static final int SHARDS = Integer.getInteger("lumen.shards", 0);
+
+    /**
+     * Max. number of pushes queued per sender, more are rejected with 429
+     */
+    static final int SHARD_SENDER_QUEUE = Integer.getInteger("lumen.shards.senderQueue", 1000);
+
+    /**
+     * Max. number of pushes per sender in the stages after the shards; 1 keeps the pushes of a sender in order
+     */
+    static final int SHARD_MAX_IN_FLIGHT = Integer.getInteger("lumen.shards.maxInFlight", 1);
+
+    /**
+     * Seconds the result of a forward request is remembered, to answer retries of it; 0 disables the idempotency cache
+     */
+    static final long IDEMPOTENCY_TTL_SECONDS = Long.getLong("lumen.idempotency.ttlSeconds", 60);
+
+    /**
+     * Width in seconds of the time bucket, requests without a key are considered duplicates in, if their content
+     * is the same; 0 (the default) only recognizes duplicates by the key sent along, since identical notifications,
+     * e.g. of a flickering light, are legitimate
+     */
+    static final long IDEMPOTENCY_BUCKET_SECONDS = Long.getLong("lumen.idempotency.bucketSeconds", 0);
+
+    /**
+     * Max. number of keys held by the idempotency cache
+     */
+    static final int IDEMPOTENCY_MAX_KEYS = Integer.getInteger("lumen.idempotency.maxKeys", 200000);
+
+    /**
+     * Stamp the push id and the time it was received into every payload, for tracing it down to the wearable
+     */
+    static final boolean TRACE = Boolean.parseBoolean(System.getProperty("lumen.trace", "true"));
+
+    /**
+     * Send the built-in templates' payloads in the compact, Base64 encoded format, instead of JSON
+     */
+    static final boolean PAYLOAD_COMPACT = Boolean.parseBoolean(System.getProperty("lumen.payload.compact", "false"));
+
+    /**
+     * Max. number of records of a bulk forward request, that are on their way upstream at the same time
+     */
+    static final int BULK_MAX_IN_FLIGHT = Integer.getInteger("lumen.bulk.maxInFlight", 64);
+
+    /**
+     * Max. length in bytes of a record of a bulk forward request, longer records are rejected
+     */
+    static final int BULK_MAX_LINE_BYTES = Integer.getInteger("lumen.bulk.maxLineBytes", 4096);
+
+    private ForwardConfig() {
+    }
+}
@@ -0,0 +1,50 @@
+package com.techcasita.jersey;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import java.io.File;
+
+/**
+ * <code>ForwardContextListener</code> ties the shared resources of the forwarding service to the life-cycle
+ * of the web application. On startup, additional message templates are loaded, sensor states are restored and
+ * connections to the PNG host are opened ahead of the first request,
+ * on shutdown, sensor states are saved, pending pushes are flushed, the upstream executor stops accepting new requests,
+ * and the remaining log messages are written.
+ */
+public class ForwardContextListener implements ServletContextListener {
+    private static final long WARMUP_TIMEOUT_MS = 10000;
+    private static final long LOG_FLUSH_TIMEOUT_MS = 5000;
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void contextInitialized(final ServletContextEvent sce) {
+        if (ForwardConfig.TEMPLATES_DIR != null) {
+            TemplateRegistry.getInstance().watch(new File(ForwardConfig.TEMPLATES_DIR), ForwardConfig.TEMPLATES_POLL_SECONDS);
+        }
+        // starts the pipeline, and with it the UDP listener, if configured
+        ForwardPipeline.getInstance();
+        SensorInterpreter.getInstance();
+        if (0 < ForwardConfig.PNG_WARMUP_CONNECTIONS) {
+            final Thread t = new Thread("png-warmup") {
+                @Override
+                public void run() {
+                    PngClient.getInstance().warmUp(ForwardConfig.PNG_WARMUP_CONNECTIONS, WARMUP_TIMEOUT_MS);
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void contextDestroyed(final ServletContextEvent sce) {
+        SensorInterpreter.getInstance().shutdown();
+        ForwardPipeline.getInstance().shutdown();
+        EventLog.shutdown(LOG_FLUSH_TIMEOUT_MS);
+    }
+}
@@ -0,0 +1,172 @@
+package com.techcasita.jersey;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>ForwardMetrics</code> records request counts, upstream stage latencies and upstream status codes,
+ * broken down by target group and icon. Recording only touches concurrent maps and atomic counters.
+ * <p/>
+ * To keep the number of series bounded, even if devices send arbitrary values,
+ * group/icon combinations beyond {@link #MAX_SERIES} are recorded under <code>other</code>.
+ */
+final class ForwardMetrics {
+    static final String[] STAGES = {"render", "connect", "write", "response", "read"};
+
+    private static final int MAX_SERIES = 1000;
+    private static final String OTHER = "other";
+    private static final ForwardMetrics INSTANCE = new ForwardMetrics();
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Series>> series = new ConcurrentHashMap<>();
+    private final AtomicLong size = new AtomicLong();
+
+    static ForwardMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Count a received forward request.
+     *
+     * @param group {@link String} target group
+     * @param icon  {@link String} icon
+     */
+    void request(final String group, final String icon) {
+        series(group, icon).requests.incrementAndGet();
+    }
+
+    /**
+     * Record the stage latencies and the status code of an upstream request.
+     *
+     * @param push  {@link Push} the push that was sent
+     * @param times {@link StageTimes} stage durations, stages that didn't run are left out
+     * @param code  {@link int} upstream status code, -1 if none was received
+     */
+    void upstream(final Push push, final StageTimes times, final int code) {
+        final String group;
+        if (push.getGroups().size() == 1) {
+            group = push.getGroups().get(0);
+        } else {
+            final StringBuilder sb = new StringBuilder();
+            for (final String g : push.getGroups()) {
+                sb.append(sb.length() == 0 ? "" : ",").append(g);
+            }
+            group = sb.toString();
+        }
+        final Series s = series(group, push.getIcon());
+        record(s.stages[0], times.render);
+        record(s.stages[1], times.connect);
+        record(s.stages[2], times.write);
+        record(s.stages[3], times.response);
+        record(s.stages[4], times.read);
+        AtomicLong counter = s.codes.get(code);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = s.codes.putIfAbsent(code, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    private static void record(final LatencyHistogram stage, final long nanos) {
+        if (nanos != StageTimes.NOT_RUN) {
+            stage.record(nanos);
+        }
+    }
+
+    private Series series(final String group, final String icon) {
+        final String g = group == null ? "" : group;
+        final String i = icon == null ? "" : icon;
+        ConcurrentMap<String, Series> byIcon = series.get(g);
+        Series s = byIcon == null ? null : byIcon.get(i);
+        if (s != null) {
+            return s;
+        }
+        if (MAX_SERIES <= size.get()) {
+            return OTHER.equals(g) ? create(OTHER, OTHER) : series(OTHER, OTHER);
+        }
+        return create(g, i);
+    }
+
+    private Series create(final String group, final String icon) {
+        ConcurrentMap<String, Series> byIcon = series.get(group);
+        if (byIcon == null) {
+            final ConcurrentMap<String, Series> created = new ConcurrentHashMap<>();
+            byIcon = series.putIfAbsent(group, created);
+            if (byIcon == null) {
+                byIcon = created;
+            }
+        }
+        Series s = byIcon.get(icon);
+        if (s == null) {
+            final Series created = new Series(group, icon);
+            s = byIcon.putIfAbsent(icon, created);
+            if (s == null) {
+                s = created;
+                size.incrementAndGet();
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Append all metrics in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        out.append("# HELP lumen_forward_requests_total Forward requests received.\n");
+        out.append("# TYPE lumen_forward_requests_total counter\n");
+        for (final Map<String, Series> byIcon : series.values()) {
+            for (final Series s : byIcon.values()) {
+                out.append("lumen_forward_requests_total{").append(s.labels).append("} ").append(s.requests.get()).append('\n');
+            }
+        }
+        out.append("# HELP lumen_upstream_stage_seconds Duration of the stages of an upstream request.\n");
+        out.append("# TYPE lumen_upstream_stage_seconds histogram\n");
+        for (final Map<String, Series> byIcon : series.values()) {
+            for (final Series s : byIcon.values()) {
+                for (int i = 0; i < STAGES.length; i++) {
+                    s.stages[i].export("lumen_upstream_stage_seconds", s.labels + ",stage=\"" + STAGES[i] + "\"", out);
+                }
+            }
+        }
+        out.append("# HELP lumen_upstream_responses_total Upstream responses by status code, -1 if none was received.\n");
+        out.append("# TYPE lumen_upstream_responses_total counter\n");
+        for (final Map<String, Series> byIcon : series.values()) {
+            for (final Series s : byIcon.values()) {
+                for (final Map.Entry<Integer, AtomicLong> e : s.codes.entrySet()) {
+                    out.append("lumen_upstream_responses_total{").append(s.labels).append(",code=\"").append(e.getKey())
+                            .append("\"} ").append(e.getValue().get()).append('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Escape a Prometheus label value.
+     */
+    static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Metrics of a single group/icon combination.
+     */
+    private static final class Series {
+        private final String labels;
+        private final AtomicLong requests = new AtomicLong();
+        private final LatencyHistogram[] stages = new LatencyHistogram[STAGES.length];
+        private final ConcurrentMap<Integer, AtomicLong> codes = new ConcurrentHashMap<>();
+
+        Series(final String group, final String icon) {
+            this.labels = "group=\"" + escape(group) + "\",icon=\"" + escape(icon) + "\"";
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+        }
+    }
+}
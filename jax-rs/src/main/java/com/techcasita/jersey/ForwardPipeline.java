@@ -0,0 +1,185 @@
+package com.techcasita.jersey;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <code>ForwardPipeline</code> wires the stages, every forwarded push passes through before it reaches PNG.
+ * Each stage is optional, a push passes the enabled ones in this order:
+ * <pre>
+ * PushThrottle -&gt; SenderShards -&gt; PushQueue -&gt; PushBatcher -&gt; UpstreamGuard -&gt; UpstreamSink (or LocalFanoutSink)
+ * </pre>
+ * The throttle comes first, so that it sees every push of a sender and group as it arrives and can collapse them,
+ * before the shards hold a sender's pushes back until the previous one completed.
+ */
+final class ForwardPipeline implements PushSink {
+    private static final Logger LOG = Logger.getLogger(ForwardPipeline.class);
+    private static final ForwardPipeline INSTANCE = new ForwardPipeline();
+
+    private final PushSink head;
+    private final PushBatcher batcher;
+    private final PushQueue queue;
+    private final PushThrottle throttle;
+    private final SenderShards shards;
+    private final UdpListener udp;
+    private final LocalFanoutSink fanout;
+    private final UpstreamGuard guard;
+
+    private ForwardPipeline() {
+        PushSink sink;
+        if (ForwardConfig.FANOUT_LOCAL) {
+            fanout = new LocalFanoutSink(SubscriptionRegistry.getInstance());
+            sink = fanout;
+        } else {
+            fanout = null;
+            sink = new UpstreamSink(PngClient.getInstance(), TemplateRegistry.getInstance(), ForwardMetrics.getInstance(), ForwardConfig.FORWARD_ASYNC);
+        }
+        if (!ForwardConfig.FANOUT_LOCAL && ForwardConfig.UPSTREAM_GUARD) {
+            guard = createGuard(sink);
+            sink = guard;
+        } else {
+            guard = null;
+        }
+        if (0 < ForwardConfig.BATCH_WINDOW_MS) {
+            batcher = new PushBatcher(sink, ForwardConfig.BATCH_WINDOW_MS, ForwardConfig.BATCH_MAX_GROUPS);
+            sink = batcher;
+        } else {
+            batcher = null;
+        }
+        queue = ForwardConfig.QUEUE_DIR != null ? createQueue(sink) : null;
+        if (queue != null) {
+            sink = queue;
+        }
+        if (0 < ForwardConfig.SHARDS) {
+            shards = new SenderShards(sink, ForwardConfig.SHARDS, ForwardConfig.SHARD_SENDER_QUEUE, ForwardConfig.SHARD_MAX_IN_FLIGHT);
+            sink = shards;
+        } else {
+            shards = null;
+        }
+        if (0 < ForwardConfig.THROTTLE_DEBOUNCE_MS || 0 < ForwardConfig.THROTTLE_RATE_PER_MINUTE) {
+            throttle = new PushThrottle(sink, ForwardConfig.THROTTLE_DEBOUNCE_MS, ForwardConfig.THROTTLE_RATE_PER_MINUTE,
+                    ForwardConfig.THROTTLE_BURST, ForwardConfig.THROTTLE_IDLE_SECONDS * 1000);
+            sink = throttle;
+        } else {
+            throttle = null;
+        }
+        head = sink;
+        udp = 0 < ForwardConfig.UDP_PORT ? createUdpListener(this) : null;
+    }
+
+    private static PushQueue createQueue(final PushSink downstream) {
+        try {
+            final PushLog log = new PushLog(new File(ForwardConfig.QUEUE_DIR), ForwardConfig.QUEUE_SEGMENT_BYTES, ForwardConfig.QUEUE_FORCE);
+            return new PushQueue(log, downstream, ForwardConfig.PNG_MAX_CONNECTIONS,
+                    ForwardConfig.QUEUE_INITIAL_BACKOFF_MS, ForwardConfig.QUEUE_MAX_BACKOFF_MS);
+        } catch (IOException e) {
+            LOG.error("Durable queue unavailable, forwarding directly: " + e.toString());
+            return null;
+        }
+    }
+
+    private static UpstreamGuard createGuard(final PushSink downstream) {
+        final UpstreamGuard guard = new UpstreamGuard(downstream,
+                new AdaptiveLimit(ForwardConfig.UPSTREAM_LIMIT_INITIAL, ForwardConfig.UPSTREAM_LIMIT_MIN, ForwardConfig.UPSTREAM_LIMIT_MAX),
+                new CircuitBreaker(ForwardConfig.BREAKER_WINDOW, ForwardConfig.BREAKER_MIN_CALLS, ForwardConfig.BREAKER_FAILURE_PERCENT,
+                        ForwardConfig.BREAKER_OPEN_MS, ForwardConfig.BREAKER_PROBES));
+        if (ForwardConfig.BREAKER_FALLBACK_DIR != null) {
+            try {
+                final PushLog log = new PushLog(new File(ForwardConfig.BREAKER_FALLBACK_DIR), ForwardConfig.QUEUE_SEGMENT_BYTES, ForwardConfig.QUEUE_FORCE);
+                guard.setFallback(log, ForwardConfig.QUEUE_INITIAL_BACKOFF_MS, ForwardConfig.QUEUE_MAX_BACKOFF_MS, ForwardConfig.PNG_MAX_CONNECTIONS);
+            } catch (IOException e) {
+                LOG.error("Fallback queue unavailable, rejecting pushes while the circuit is open: " + e.toString());
+            }
+        }
+        return guard;
+    }
+
+    private static UdpListener createUdpListener(final PushSink sink) {
+        try {
+            return new UdpListener(ForwardConfig.UDP_PORT, sink, ForwardConfig.UDP_THREADS);
+        } catch (IOException e) {
+            LOG.error("UDP listener unavailable: " + e.toString());
+            return null;
+        }
+    }
+
+    static ForwardPipeline getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void submit(final Push push, final PngCallback callback) {
+        head.submit(push, callback);
+    }
+
+    /**
+     * Append the gauges and counters of the pipeline stages in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        out.append("# HELP lumen_upstream_pending Pushes waiting for an upstream connection.\n");
+        out.append("# TYPE lumen_upstream_pending gauge\n");
+        out.append("lumen_upstream_pending ").append(PngClient.getInstance().getPending()).append('\n');
+        out.append("# HELP lumen_log_dropped_total Log messages dropped, because the log writer fell behind.\n");
+        out.append("# TYPE lumen_log_dropped_total counter\n");
+        out.append("lumen_log_dropped_total ").append(EventLog.getDropped()).append('\n');
+        if (udp != null) {
+            udp.export(out);
+        }
+        if (fanout != null) {
+            fanout.export(out);
+        }
+        if (guard != null) {
+            guard.export(out);
+        }
+        if (shards != null) {
+            shards.export(out);
+        }
+        if (throttle != null) {
+            out.append("# HELP lumen_throttle_superseded_total Pushes replaced by a newer push of the same sender and group.\n");
+            out.append("# TYPE lumen_throttle_superseded_total counter\n");
+            out.append("lumen_throttle_superseded_total ").append(throttle.getSuperseded()).append('\n');
+            out.append("# HELP lumen_throttle_delayed_total Times a push had to wait for the rate limit.\n");
+            out.append("# TYPE lumen_throttle_delayed_total counter\n");
+            out.append("lumen_throttle_delayed_total ").append(throttle.getDelayed()).append('\n');
+            out.append("# HELP lumen_throttle_keys Senders and groups currently tracked.\n");
+            out.append("# TYPE lumen_throttle_keys gauge\n");
+            out.append("lumen_throttle_keys ").append(throttle.getKeys()).append('\n');
+            out.append("# HELP lumen_throttle_evicted_total Senders and groups no longer tracked, after being idle.\n");
+            out.append("# TYPE lumen_throttle_evicted_total counter\n");
+            out.append("lumen_throttle_evicted_total ").append(throttle.getEvicted()).append('\n');
+        }
+    }
+
+    /**
+     * Deliver what's still pending and release the pipeline's threads.
+     */
+    void shutdown() {
+        if (udp != null) {
+            udp.shutdown();
+        }
+        if (throttle != null) {
+            throttle.shutdown();
+        }
+        if (shards != null) {
+            shards.shutdown();
+        }
+        if (queue != null) {
+            queue.shutdown();
+        }
+        if (batcher != null) {
+            batcher.shutdown();
+        }
+        if (guard != null) {
+            guard.shutdown();
+        }
+        PngClient.getInstance().shutdown();
+        TemplateRegistry.getInstance().shutdown();
+    }
+}
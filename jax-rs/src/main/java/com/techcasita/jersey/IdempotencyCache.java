@@ -0,0 +1,217 @@
+package com.techcasita.jersey;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>IdempotencyCache</code> remembers the outcome of recent forward requests by key, so that a device retrying
+ * a request receives the original result, instead of sending the same push to its users a second time.
+ * <p/>
+ * A key is a 64-bit hash, either of the sender and the key the device sent along, or, only if enabled, of the
+ * content of the push and the time bucket it arrived in, see {@link #key(String, String)} and {@link #key(long, String...)}.
+ * A duplicate arriving while the original is still on its way waits for the original's response.
+ * Failed or shed requests (see {@link PngResponse#isTransient()}) are forgotten right away, so that their retries
+ * go through.
+ * <p/>
+ * The keys are spread over striped, insertion ordered maps. Every key is kept for the TTL, but no stripe grows
+ * beyond its share of <code>maxKeys</code>, when full, the oldest key makes room. Only a small entry per key is
+ * kept, which bounds the memory, no matter how many distinct keys the devices come up with.
+ */
+final class IdempotencyCache {
+    private static final int STRIPES = 64;
+    private static final IdempotencyCache INSTANCE = 0 < ForwardConfig.IDEMPOTENCY_TTL_SECONDS
+            ? new IdempotencyCache(ForwardConfig.IDEMPOTENCY_MAX_KEYS, ForwardConfig.IDEMPOTENCY_TTL_SECONDS * 1000)
+            : null;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlMs;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * @param maxKeys {@link int} max. number of keys held
+     * @param ttlMs   {@link long} time a key is remembered
+     */
+    IdempotencyCache(final int maxKeys, final long ttlMs) {
+        this.ttlMs = ttlMs;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxKeys / STRIPES));
+        }
+    }
+
+    /**
+     * @return {@link IdempotencyCache} the shared cache, null if disabled
+     */
+    static IdempotencyCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param sid {@link String} sender id
+     * @param key {@link String} idempotency key sent by the device, unique per sender
+     * @return {@link long} cache key
+     */
+    static long key(final String sid, final String key) {
+        return hash(0, sid, key);
+    }
+
+    /**
+     * @param bucket {@link long} time bucket the request arrived in
+     * @param parts  {@link String} content of the push, e.g. sid, grp, title, text and icon
+     * @return {@link long} cache key
+     */
+    static long key(final long bucket, final String... parts) {
+        return hash(bucket + 1, parts);
+    }
+
+    private static long hash(final long seed, final String... parts) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (final String part : parts) {
+            if (part != null) {
+                for (int i = 0; i < part.length(); i++) {
+                    h = (h ^ part.charAt(i)) * 0x100000001b3L;
+                }
+            }
+            h = (h ^ 0xffff) * 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Look up the key: for a known key, the callback receives the original response, now or once it arrived.
+     * For a new key, the request has to be sent, and its response handed to the returned callback.
+     *
+     * @param key      {@link long} cache key
+     * @param callback {@link PngCallback} receives the response
+     * @return {@link PngCallback} to be used for the request, null if the request is a duplicate and must not be sent
+     */
+    PngCallback begin(final long key, final PngCallback callback) {
+        final Stripe stripe = stripes[(int) key & (STRIPES - 1)];
+        final long now = System.currentTimeMillis();
+        final Result entry;
+        final PngResponse response;
+        synchronized (stripe) {
+            stripe.expire(now - ttlMs);
+            final Result known = stripe.get(key);
+            if (known != null && known.response == null) {
+                joined.incrementAndGet();
+                known.waiters.add(callback);
+                return null;
+            }
+            if (known != null) {
+                entry = null;
+                response = known.response;
+            } else {
+                entry = new Result(now);
+                response = null;
+                stripe.put(key, entry);
+            }
+        }
+        if (entry == null) {
+            hits.incrementAndGet();
+            callback.completed(response);
+            return null;
+        }
+        misses.incrementAndGet();
+        return new PngCallback() {
+            @Override
+            public void completed(final PngResponse response) {
+                complete(stripe, key, entry, response);
+                callback.completed(response);
+            }
+        };
+    }
+
+    private void complete(final Stripe stripe, final long key, final Result entry, final PngResponse response) {
+        final List<PngCallback> waiters;
+        synchronized (stripe) {
+            waiters = entry.waiters;
+            entry.waiters = null;
+            if (response.isTransient()) {
+                if (stripe.get(key) == entry) {
+                    stripe.remove(key);
+                }
+            } else {
+                entry.response = response;
+            }
+        }
+        for (final PngCallback waiter : waiters) {
+            waiter.completed(response);
+        }
+    }
+
+    /**
+     * Append the hit, miss and eviction counters and the number of keys in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        long keys = 0;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                keys += stripe.size();
+            }
+        }
+        out.append("# HELP lumen_idempotency_requests_total Forward requests looked up by idempotency key, by result.\n");
+        out.append("# TYPE lumen_idempotency_requests_total counter\n");
+        out.append("lumen_idempotency_requests_total{result=\"hit\"} ").append(hits.get()).append('\n');
+        out.append("lumen_idempotency_requests_total{result=\"joined\"} ").append(joined.get()).append('\n');
+        out.append("lumen_idempotency_requests_total{result=\"miss\"} ").append(misses.get()).append('\n');
+        out.append("# HELP lumen_idempotency_evictions_total Keys removed from the idempotency cache, by reason.\n");
+        out.append("# TYPE lumen_idempotency_evictions_total counter\n");
+        out.append("lumen_idempotency_evictions_total{reason=\"expired\"} ").append(expired.get()).append('\n');
+        out.append("lumen_idempotency_evictions_total{reason=\"capacity\"} ").append(evicted.get()).append('\n');
+        out.append("# HELP lumen_idempotency_keys Keys held by the idempotency cache.\n");
+        out.append("# TYPE lumen_idempotency_keys gauge\n");
+        out.append("lumen_idempotency_keys ").append(keys).append('\n');
+    }
+
+    private static final class Result {
+        private final long created;
+        private List<PngCallback> waiters = new ArrayList<>(1);
+        private PngResponse response;
+
+        Result(final long created) {
+            this.created = created;
+        }
+    }
+
+    /**
+     * Keys in insertion order, which is also the order they expire in.
+     */
+    private final class Stripe extends LinkedHashMap<Long, Result> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Stripe(final int capacity) {
+            super(Math.min(capacity, 1024), 0.75f, false);
+            this.capacity = capacity;
+        }
+
+        void expire(final long createdBefore) {
+            final Iterator<Result> it = values().iterator();
+            while (it.hasNext() && it.next().created <= createdBefore) {
+                it.remove();
+                expired.incrementAndGet();
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, Result> eldest) {
+            if (size() <= capacity) {
+                return false;
+            }
+            evicted.incrementAndGet();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.techcasita.jersey;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <code>LatencyHistogram</code> counts latencies in fixed buckets, using atomic counters only,
+ * so that recording never blocks and costs a binary search plus two atomic additions.
+ * The buckets are exported as a cumulative Prometheus histogram, in seconds.
+ */
+final class LatencyHistogram {
+    /**
+     * Upper bounds of the buckets in seconds, the last bucket (+Inf) is implicit
+     */
+    static final double[] BOUNDS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BOUNDS_NANOS = new long[BOUNDS.length];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS_NANOS[i] = (long) (BOUNDS[i] * 1e9);
+        }
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong sumNanos = new AtomicLong();
+
+    /**
+     * @param nanos {@link long} observed latency in nanoseconds
+     */
+    void record(final long nanos) {
+        int i = Arrays.binarySearch(BOUNDS_NANOS, nanos);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        buckets.incrementAndGet(i);
+        sumNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Append the histogram in Prometheus text format.
+     *
+     * @param name   {@link String} metric name
+     * @param labels {@link String} formatted labels, without braces, may be empty
+     * @param out    {@link StringBuilder} receives the lines
+     */
+    void export(final String name, final String labels, final StringBuilder out) {
+        final String sep = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i <= BOUNDS.length; i++) {
+            cumulative += buckets.get(i);
+            out.append(name).append("_bucket{").append(labels).append(sep).append("le=\"")
+                    .append(i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf").append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum");
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(sumNanos.get() / 1e9).append('\n');
+        out.append(name).append("_count");
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(cumulative).append('\n');
+    }
+}
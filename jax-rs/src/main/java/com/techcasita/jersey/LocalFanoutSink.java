@@ -0,0 +1,58 @@
+package com.techcasita.jersey;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>LocalFanoutSink</code> is a stand-in for PNG as the last stage of the pipeline: it resolves the recipients
+ * of a push from the {@link SubscriptionRegistry} and delivers it to every one of them locally,
+ * i.e. it only counts the deliveries. It shows what fan-out costs at a given number of subscribers,
+ * without sending anything.
+ * <p/>
+ * The response carries the number of recipients, e.g. <code>{"recipients":1234}</code>.
+ */
+final class LocalFanoutSink implements PushSink {
+    private final SubscriptionRegistry registry;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong deliveries = new AtomicLong();
+
+    /**
+     * @param registry {@link SubscriptionRegistry} group members
+     */
+    LocalFanoutSink(final SubscriptionRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void submit(final Push push, final PngCallback callback) {
+        final long t = System.nanoTime();
+        final CompressedBitmap recipients = registry.union(push.getGroups());
+        final int[] delivered = new int[1];
+        recipients.forEach(new CompressedBitmap.Visitor() {
+            @Override
+            public void visit(final int device) {
+                delivered[0]++;
+            }
+        });
+        latency.record(System.nanoTime() - t);
+        deliveries.addAndGet(delivered[0]);
+        callback.completed(new PngResponse(HttpURLConnection.HTTP_OK, "{\"recipients\":" + delivered[0] + "}"));
+    }
+
+    /**
+     * Append the fan-out counters and latency in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        out.append("# HELP lumen_fanout_deliveries_total Local deliveries to the members of the pushed groups.\n");
+        out.append("# TYPE lumen_fanout_deliveries_total counter\n");
+        out.append("lumen_fanout_deliveries_total ").append(deliveries.get()).append('\n');
+        out.append("# HELP lumen_fanout_seconds Time to resolve and visit the recipients of a push.\n");
+        out.append("# TYPE lumen_fanout_seconds histogram\n");
+        latency.export("lumen_fanout_seconds", "", out);
+    }
+}
@@ -0,0 +1,268 @@
+package com.techcasita.jersey;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>MessageTemplate</code> is a PNG message template, compiled into a sequence of literal and slot segments.
+ * <p/>
+ * The notification payload travels as a JSON document, encoded into a string value of the outer PNG message.
+ * While compiling, every slot is assigned the number of JSON string levels it is nested in,
+ * e.g. <code>$TITLE$</code> sits inside a string of the payload, which itself is a string of the message,
+ * and is therefore escaped twice. Literals are escaped once, at compile time.
+ * Rendering is a single pass over the segments, writing straight into a {@link RenderBuffer}.
+ */
+final class MessageTemplate {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF8);
+
+    private static final int SID = 0;
+    private static final int GRP = 1;
+    private static final int TITLE = 2;
+    private static final int TEXT = 3;
+    private static final int ICON = 4;
+    private static final int TRACE = 5;
+    private static final int SENT = 6;
+    private static final int COMPACT = 7;
+    private static final String[] SLOTS = {"SID", "GRP", "TITLE", "TEXT", "ICON", "TRACE", "SENT", "COMPACT"};
+    private static final String PAYLOAD = "PAYLOAD";
+
+    private final String name;
+    private final Segment[] segments;
+
+    /**
+     * @param name     {@link String} name of the template, e.g. the notification style
+     * @param envelope {@link String} PNG message, with a <code>$PAYLOAD$</code> slot inside a string value
+     * @param payload  {@link String} notification payload, as plain (not escaped) JSON
+     */
+    MessageTemplate(final String name, final String envelope, final String payload) {
+        this.name = name;
+        final List<Segment> list = new ArrayList<>();
+        compile(envelope, payload, 0, list);
+        this.segments = list.toArray(new Segment[list.size()]);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Render the push into the buffer.
+     *
+     * @param push {@link Push} values for the slots
+     * @param out  {@link RenderBuffer} receives the UTF-8 encoded message
+     */
+    void render(final Push push, final RenderBuffer out) {
+        for (final Segment segment : segments) {
+            segment.write(push, out);
+        }
+    }
+
+    private static void compile(final String source, final String payload, final int base, final List<Segment> list) {
+        final StringBuilder literal = new StringBuilder();
+        boolean inString = false;
+        boolean escaped = false;
+        int i = 0;
+        while (i < source.length()) {
+            final char c = source.charAt(i);
+            if (c == '$') {
+                final int end = source.indexOf('$', i + 1);
+                final String slot = 0 < end ? source.substring(i + 1, end) : "";
+                final int depth = base + (inString ? 1 : 0);
+                final int index = indexOf(slot);
+                if (0 <= index || (payload != null && PAYLOAD.equals(slot))) {
+                    flush(literal, base, list);
+                    if (0 <= index) {
+                        list.add(new Slot(index, depth));
+                    } else {
+                        compile(payload, null, depth, list);
+                    }
+                    i = end + 1;
+                    continue;
+                }
+            }
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = inString;
+            } else if (c == '"') {
+                inString = !inString;
+            }
+            literal.append(c);
+            i++;
+        }
+        flush(literal, base, list);
+    }
+
+    private static int indexOf(final String slot) {
+        for (int i = 0; i < SLOTS.length; i++) {
+            if (SLOTS[i].equals(slot)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void flush(final StringBuilder literal, final int depth, final List<Segment> list) {
+        if (0 < literal.length()) {
+            final RenderBuffer buffer = new RenderBuffer(literal.length() * 2);
+            writeEscaped(literal, depth, buffer);
+            final byte[] bytes = new byte[buffer.size()];
+            System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+            list.add(new Literal(bytes));
+            literal.setLength(0);
+        }
+    }
+
+    /**
+     * Write the characters UTF-8 encoded, escaped for being nested <code>depth</code> levels deep in JSON strings.
+     */
+    static void writeEscaped(final CharSequence s, final int depth, final RenderBuffer out) {
+        final int n = s.length();
+        for (int i = 0; i < n; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                if (0x20 <= c && c != '"' && c != '\\') {
+                    out.write(c);
+                } else {
+                    writeAscii(c, depth, out);
+                }
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xf0 | (cp >> 18));
+                out.write(0x80 | ((cp >> 12) & 0x3f));
+                out.write(0x80 | ((cp >> 6) & 0x3f));
+                out.write(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out.write('?');
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private static void writeAscii(final int c, final int depth, final RenderBuffer out) {
+        if (depth == 0 || (0x20 <= c && c != '"' && c != '\\')) {
+            out.write(c);
+            return;
+        }
+        writeAscii('\\', depth - 1, out);
+        switch (c) {
+            case '"':
+            case '\\':
+                writeAscii(c, depth - 1, out);
+                break;
+            case '\n':
+                writeAscii('n', depth - 1, out);
+                break;
+            case '\r':
+                writeAscii('r', depth - 1, out);
+                break;
+            case '\t':
+                writeAscii('t', depth - 1, out);
+                break;
+            case '\b':
+                writeAscii('b', depth - 1, out);
+                break;
+            case '\f':
+                writeAscii('f', depth - 1, out);
+                break;
+            default:
+                writeAscii('u', depth - 1, out);
+                writeAscii('0', depth - 1, out);
+                writeAscii('0', depth - 1, out);
+                writeAscii(HEX[(c >> 4) & 0xf], depth - 1, out);
+                writeAscii(HEX[c & 0xf], depth - 1, out);
+        }
+    }
+
+    private abstract static class Segment {
+        abstract void write(Push push, RenderBuffer out);
+    }
+
+    private static final class Literal extends Segment {
+        private final byte[] bytes;
+
+        Literal(final byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        void write(final Push push, final RenderBuffer out) {
+            out.write(bytes);
+        }
+    }
+
+    private static final class Slot extends Segment {
+        private final int index;
+        private final int depth;
+
+        Slot(final int index, final int depth) {
+            this.index = index;
+            this.depth = depth;
+        }
+
+        @Override
+        void write(final Push push, final RenderBuffer out) {
+            switch (index) {
+                case SID:
+                    value(push.getSid(), out);
+                    break;
+                case GRP:
+                    // a comma separated list of quoted strings, the quotes are escaped to the depth of the slot
+                    final List<String> groups = push.getGroups();
+                    for (int i = 0; i < groups.size(); i++) {
+                        if (0 < i) {
+                            writeAscii(',', depth, out);
+                        }
+                        writeAscii('"', depth, out);
+                        writeEscaped(groups.get(i) == null ? "" : groups.get(i), depth + 1, out);
+                        writeAscii('"', depth, out);
+                    }
+                    break;
+                case TITLE:
+                    value(push.getTitle(), out);
+                    break;
+                case TEXT:
+                    value(push.getText(), out);
+                    break;
+                case ICON:
+                    value(push.getIcon(), out);
+                    break;
+                case TRACE:
+                    number(push.getId(), out);
+                    break;
+                case SENT:
+                    number(push.getReceived(), out);
+                    break;
+                case COMPACT:
+                    CompactPayload.write(push, out);
+                    break;
+            }
+        }
+
+        private void number(final long value, final RenderBuffer out) {
+            if (value < 0) {
+                out.write('-');
+                number(-value, out);
+            } else {
+                if (10 <= value) {
+                    number(value / 10, out);
+                }
+                out.write('0' + (int) (value % 10));
+            }
+        }
+
+        private void value(final String value, final RenderBuffer out) {
+            if (value != null) {
+                writeEscaped(value, depth, out);
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.techcasita.jersey;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+
+/**
+ * <code>Metrics</code> exposes the metrics of the forwarding service in the Prometheus text format,
+ * e.g. to be scraped from <code>/rest/metrics</code>.
+ */
+@Path("metrics")
+public class Metrics {
+
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public String metrics() {
+        final StringBuilder out = new StringBuilder(16 * 1024);
+        ForwardMetrics.getInstance().export(out);
+        ForwardPipeline.getInstance().export(out);
+        SensorInterpreter.getInstance().export(out);
+        SubscriptionRegistry.getInstance().export(out);
+        BulkForward.export(out);
+        if (IdempotencyCache.getInstance() != null) {
+            IdempotencyCache.getInstance().export(out);
+        }
+        return out.toString();
+    }
+}
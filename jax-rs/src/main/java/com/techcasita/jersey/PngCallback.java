@@ -0,0 +1,14 @@
+package com.techcasita.jersey;
+
+/**
+ * <code>PngCallback</code> receives the outcome of an asynchronous POST to the PNG push endpoint.
+ */
+interface PngCallback {
+
+    /**
+     * Called exactly once, on a thread of the upstream executor, after the request has completed or failed.
+     *
+     * @param response {@link PngResponse} status code and response body
+     */
+    void completed(PngResponse response);
+}
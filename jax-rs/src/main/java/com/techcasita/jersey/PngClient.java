@@ -0,0 +1,312 @@
+package com.techcasita.jersey;
+
+import org.apache.log4j.Logger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>PngClient</code> is the shared HTTP(S) client, used to POST messages to the PNG push endpoint.
+ * <p/>
+ * Connections are pooled by the JDK's keep-alive cache, which only hands a connection back,
+ * if the response body was fully consumed and the stream was closed (never disconnected).
+ * The cache key of an HTTPS connection includes its {@link SSLSocketFactory}, which is why all
+ * requests share a single factory; this also gives us one TLS session cache,
+ * so that even newly opened sockets only need an abbreviated handshake.
+ * <p/>
+ * A {@link Semaphore} bounds the number of concurrent requests per host, which keeps the number of
+ * open sockets in line with the number of connections the keep-alive cache will hold on to.
+ * <p/>
+ * Connect and read timeouts bound the time a request can hold on to a connection, when PNG stops answering.
+ * <p/>
+ * {@link #postAsync} runs requests on an executor with one thread per connection. Requests waiting for a
+ * connection only occupy a slot in the executor's queue, not a thread.
+ */
+final class PngClient {
+    private static final Logger LOG = Logger.getLogger(PngClient.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static {
+        // the keep-alive cache reads these once, so they have to be in place before the first connection is opened
+        if (System.getProperty("http.keepAlive") == null) {
+            System.setProperty("http.keepAlive", "true");
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(ForwardConfig.PNG_MAX_CONNECTIONS));
+        }
+    }
+
+    private static final PngClient INSTANCE = new PngClient(ForwardConfig.PNG_ADDRESS, ForwardConfig.PNG_MAX_CONNECTIONS);
+
+    private final URL url;
+    private final int maxConnections;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final Semaphore permits;
+    private final SSLSocketFactory sslSocketFactory;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param address        {@link String} URL of the push endpoint, http or https
+     * @param maxConnections {@link int} max. number of concurrent requests to that host
+     */
+    PngClient(final String address, final int maxConnections) {
+        this(address, maxConnections, ForwardConfig.PNG_CONNECT_TIMEOUT_MS, ForwardConfig.PNG_READ_TIMEOUT_MS);
+    }
+
+    /**
+     * @param address          {@link String} URL of the push endpoint, http or https
+     * @param maxConnections   {@link int} max. number of concurrent requests to that host
+     * @param connectTimeoutMs {@link int} max. time to establish a connection, 0 waits forever
+     * @param readTimeoutMs    {@link int} max. time to wait for the response, 0 waits forever
+     */
+    PngClient(final String address, final int maxConnections, final int connectTimeoutMs, final int readTimeoutMs) {
+        try {
+            this.url = new URL(address);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid PNG address " + address, e);
+        }
+        this.maxConnections = maxConnections;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.permits = new Semaphore(maxConnections, true);
+        this.sslSocketFactory = createSocketFactory();
+        this.executor = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(ForwardConfig.FORWARD_MAX_PENDING), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "png-upstream-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return {@link PngClient} the instance shared by all resources of this web application
+     */
+    static PngClient getInstance() {
+        return INSTANCE;
+    }
+
+    private static SSLSocketFactory createSocketFactory() {
+        try {
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, null, null);
+            final SSLSessionContext sessions = context.getClientSessionContext();
+            sessions.setSessionCacheSize(ForwardConfig.TLS_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(ForwardConfig.TLS_SESSION_TIMEOUT);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Falling back to the default SSLSocketFactory: " + e.toString());
+            return HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+    }
+
+    URL getUrl() {
+        return url;
+    }
+
+    /**
+     * POST the given JSON document to the push endpoint.
+     * Blocks, if all connections to the host are currently in use.
+     *
+     * @param body {@link byte[]} UTF-8 encoded JSON message
+     * @return {@link PngResponse} status code and response body
+     * @throws IOException if the request could not be sent or no status was received
+     */
+    PngResponse post(final byte[] body) throws IOException {
+        return post(body, body.length, StageTimes.get());
+    }
+
+    /**
+     * POST the first <code>length</code> bytes of the buffer to the push endpoint.
+     *
+     * @param body   {@link byte[]} buffer holding the UTF-8 encoded JSON message
+     * @param length {@link int} length of the message
+     * @param times  {@link StageTimes} receives the durations of connect, write, response and read
+     * @return {@link PngResponse} status code and response body
+     * @throws IOException if the request could not be sent or no status was received
+     */
+    PngResponse post(final byte[] body, final int length, final StageTimes times) throws IOException {
+        permits.acquireUninterruptibly();
+        try {
+            long t = System.nanoTime();
+            final HttpURLConnection con = open();
+            con.setRequestMethod("POST");
+            con.setRequestProperty("Content-Type", "application/json");
+            con.setDoOutput(true);
+            // stream the body, otherwise it is buffered and only sent along with the request for the response code
+            con.setFixedLengthStreamingMode(length);
+            con.connect();
+            long now = System.nanoTime();
+            times.connect = now - t;
+            t = now;
+
+            final OutputStream out = con.getOutputStream();
+            try {
+                out.write(body, 0, length);
+            } finally {
+                out.close();
+            }
+            now = System.nanoTime();
+            times.write = now - t;
+            t = now;
+
+            final int responseCode = con.getResponseCode();
+            now = System.nanoTime();
+            times.response = now - t;
+            t = now;
+
+            final String response = drain(con, responseCode);
+            times.read = System.nanoTime() - t;
+            return new PngResponse(responseCode, response);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * POST the given JSON document on one of the upstream threads and return immediately.
+     * If too many requests are already pending, the callback is invoked right away with a failed response.
+     *
+     * @param body     {@link byte[]} UTF-8 encoded JSON message
+     * @param callback {@link PngCallback} receives the response
+     */
+    void postAsync(final byte[] body, final PngCallback callback) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                PngResponse response;
+                try {
+                    response = post(body);
+                } catch (IOException e) {
+                    response = PngResponse.failed(e);
+                }
+                callback.completed(response);
+            }
+        }, callback);
+    }
+
+    /**
+     * Run a task on one of the upstream threads, e.g. to prepare a message right before it is posted.
+     * If too many tasks are already pending, the callback is invoked right away with a failed response.
+     *
+     * @param task     {@link Runnable} task, which is expected to post and invoke the callback
+     * @param callback {@link PngCallback} receives the failure, if the task gets rejected
+     */
+    void execute(final Runnable task, final PngCallback callback) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            callback.completed(PngResponse.failed(e));
+        }
+    }
+
+    /**
+     * @return {@link int} number of requests waiting for an upstream connection
+     */
+    int getPending() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop accepting asynchronous requests and let the pending ones complete.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private HttpURLConnection open() throws IOException {
+        final HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setConnectTimeout(connectTimeoutMs);
+        con.setReadTimeout(readTimeoutMs);
+        if (con instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) con).setSSLSocketFactory(sslSocketFactory);
+        }
+        return con;
+    }
+
+    /**
+     * Reads the response body to the end and closes the stream, which returns the connection to the keep-alive cache.
+     */
+    private static String drain(final HttpURLConnection con, final int responseCode) throws IOException {
+        final InputStream in = responseCode < HttpURLConnection.HTTP_BAD_REQUEST ? con.getInputStream() : con.getErrorStream();
+        if (in == null) {
+            return "";
+        }
+        try {
+            final ByteArrayOutputStream response = new ByteArrayOutputStream(256);
+            final byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                response.write(buf, 0, n);
+            }
+            return new String(response.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens up to <code>connections</code> connections in parallel, so that the TCP and TLS handshakes
+     * are done before the first sensor event arrives. The endpoint answers the HEAD request with an error code,
+     * which doesn't matter, as long as the connection ends up in the keep-alive cache.
+     *
+     * @param connections {@link int} number of connections to open
+     * @param timeoutMs   {@link long} max. time to wait for the warm-up to complete
+     */
+    void warmUp(final int connections, final long timeoutMs) {
+        final int n = Math.min(connections, maxConnections);
+        final CountDownLatch done = new CountDownLatch(n);
+        for (int i = 0; i < n; i++) {
+            final Thread t = new Thread("png-warmup-" + i) {
+                @Override
+                public void run() {
+                    permits.acquireUninterruptibly();
+                    try {
+                        final HttpURLConnection con = open();
+                        con.setRequestMethod("HEAD");
+                        drain(con, con.getResponseCode());
+                    } catch (IOException e) {
+                        LOG.warn("Warm-up connection to " + url.getHost() + " failed: " + e.toString());
+                    } finally {
+                        permits.release();
+                        done.countDown();
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        try {
+            if (done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                LOG.info("Opened " + n + " connections to " + url.getHost());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.techcasita.jersey;
+
+import java.net.HttpURLConnection;
+
+/**
+ * <code>PngResponse</code> is the outcome of a single POST to the PNG push endpoint.
+ * A response code of -1 indicates that no HTTP response was received at all, in which case
+ * the body carries the error description.
+ */
+final class PngResponse {
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private final int code;
+    private final String body;
+
+    PngResponse(final int code, final String body) {
+        this.code = code;
+        this.body = body;
+    }
+
+    /**
+     * Create a response for a request that failed before an HTTP status was received.
+     *
+     * @param e {@link Throwable} cause
+     * @return {@link PngResponse} with code -1
+     */
+    static PngResponse failed(final Throwable e) {
+        return new PngResponse(-1, e.toString());
+    }
+
+    /**
+     * @return {@link boolean} true, if the request may succeed when retried: no response, a timeout (408),
+     * too many requests (429) or a 5xx status
+     */
+    boolean isTransient() {
+        return code == -1 || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == TOO_MANY_REQUESTS
+                || HttpURLConnection.HTTP_INTERNAL_ERROR <= code;
+    }
+
+    int getCode() {
+        return code;
+    }
+
+    String getBody() {
+        return body;
+    }
+
+    @Override
+    public String toString() {
+        return code + " " + body;
+    }
+}
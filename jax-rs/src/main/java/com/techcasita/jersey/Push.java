@@ -0,0 +1,108 @@
+package com.techcasita.jersey;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>Push</code> is a single notification on its way to PNG: the sender, the target groups, the
+ * values that get plugged into the payload template and the name of that template.
+ * Every push has an id, which correlates the log messages of the request, the upstream call and the response.
+ * The id and the time the push was received travel along in the payload, as its trace, down to the device.
+ */
+final class Push {
+    private static final AtomicLong IDS = new AtomicLong(System.currentTimeMillis() * 1000);
+
+    private final long id;
+    private final long received;
+    private final String sid;
+    private final List<String> groups;
+    private final String title;
+    private final String text;
+    private final String icon;
+    private final String style;
+
+    Push(final long id, final String sid, final String grp, final String title, final String text, final String icon, final String style) {
+        this(id, sid, Collections.singletonList(grp), title, text, icon, style);
+    }
+
+    Push(final long id, final String sid, final List<String> groups, final String title, final String text, final String icon, final String style) {
+        this(id, System.currentTimeMillis(), sid, groups, title, text, icon, style);
+    }
+
+    /**
+     * @param received {@link long} time in ms since the epoch, the push was originally received at, e.g. when restored
+     *                 from the {@link PushLog}
+     */
+    Push(final long id, final long received, final String sid, final List<String> groups, final String title, final String text,
+                 final String icon, final String style) {
+        this.id = id;
+        this.received = received;
+        this.sid = sid;
+        this.groups = Collections.unmodifiableList(groups);
+        this.title = title;
+        this.text = text;
+        this.icon = icon;
+        this.style = style;
+    }
+
+    /**
+     * @param groups {@link List} target groups
+     * @return {@link Push} with the same id and payload, sent to the given groups
+     */
+    Push withGroups(final List<String> groups) {
+        return new Push(id, received, sid, groups, title, text, icon, style);
+    }
+
+    /**
+     * @return {@link String} key that is equal for pushes with identical sender and payload, regardless of the groups
+     */
+    String getPayloadKey() {
+        return sid + '\u0000' + title + '\u0000' + text + '\u0000' + icon + '\u0000' + style;
+    }
+
+    /**
+     * @return {@link long} a new id, unique within the process and increasing across restarts
+     */
+    static long nextId() {
+        return IDS.incrementAndGet();
+    }
+
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return {@link long} time in ms since the epoch, the push was received at
+     */
+    long getReceived() {
+        return received;
+    }
+
+    String getSid() {
+        return sid;
+    }
+
+    List<String> getGroups() {
+        return groups;
+    }
+
+    String getTitle() {
+        return title;
+    }
+
+    String getText() {
+        return text;
+    }
+
+    String getIcon() {
+        return icon;
+    }
+
+    /**
+     * @return {@link String} name of the message template, null for the default template
+     */
+    String getStyle() {
+        return style;
+    }
+}
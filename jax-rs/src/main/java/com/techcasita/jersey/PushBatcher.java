@@ -0,0 +1,152 @@
+package com.techcasita.jersey;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>PushBatcher</code> collects pushes with identical sender and payload for a short window and merges their
+ * target groups into a single push, e.g. when many sensors report the same lighting change at the same time.
+ * Every caller receives the response of the one upstream request that carried its group.
+ * <p/>
+ * A batch is flushed when its window expires, or as soon as it reaches the max. number of groups.
+ */
+final class PushBatcher implements PushSink {
+    private static final EventLog LOG = EventLog.getLogger(PushBatcher.class);
+
+    private final PushSink downstream;
+    private final long windowMs;
+    private final int maxGroups;
+    private final ConcurrentMap<String, Batch> open = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param downstream {@link PushSink} receives the merged pushes
+     * @param windowMs   {@link long} time a batch stays open, after its first push arrived
+     * @param maxGroups  {@link int} max. number of groups merged into one push
+     */
+    PushBatcher(final PushSink downstream, final long windowMs, final int maxGroups) {
+        this.downstream = downstream;
+        this.windowMs = windowMs;
+        this.maxGroups = maxGroups;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "push-batcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void submit(final Push push, final PngCallback callback) {
+        final String key = push.getPayloadKey();
+        while (true) {
+            Batch batch = open.get(key);
+            if (batch == null) {
+                final Batch created = new Batch(key, push);
+                batch = open.putIfAbsent(key, created);
+                if (batch == null) {
+                    batch = created;
+                    scheduleFlush(created);
+                }
+            }
+            final int size = batch.add(push.getGroups(), callback);
+            if (0 <= size) {
+                if (maxGroups <= size) {
+                    flush(batch);
+                }
+                return;
+            }
+            // the batch got flushed in the meantime, start over with a new one
+        }
+    }
+
+    private void scheduleFlush(final Batch batch) {
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush(batch);
+            }
+        }, windowMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(final Batch batch) {
+        open.remove(batch.key, batch);
+        if (!batch.seal()) {
+            return;
+        }
+        final List<PngCallback> callbacks = batch.callbacks;
+        if (1 < callbacks.size() && LOG.isInfoEnabled()) {
+            LOG.info("event=batch id={} merged={} groups={}", batch.push.getId(), callbacks.size(), batch.groups.size());
+        }
+        downstream.submit(batch.push.withGroups(new ArrayList<>(batch.groups)), new PngCallback() {
+            @Override
+            public void completed(final PngResponse response) {
+                for (final PngCallback callback : callbacks) {
+                    callback.completed(response);
+                }
+            }
+        });
+    }
+
+    /**
+     * Flush all open batches and stop the timer.
+     */
+    void shutdown() {
+        timer.shutdown();
+        for (final Batch batch : open.values()) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * Pushes with the same payload, collected during one window. Once sealed, a batch doesn't change anymore.
+     */
+    private static final class Batch {
+        private final String key;
+        private final Push push;
+        private final Set<String> groups = new LinkedHashSet<>();
+        private final List<PngCallback> callbacks = new ArrayList<>();
+        private boolean sealed;
+
+        Batch(final String key, final Push push) {
+            this.key = key;
+            this.push = push;
+        }
+
+        /**
+         * @return {@link int} number of distinct groups in this batch, or -1 if the batch was already sealed
+         */
+        synchronized int add(final List<String> groups, final PngCallback callback) {
+            if (sealed) {
+                return -1;
+            }
+            this.groups.addAll(groups);
+            callbacks.add(callback);
+            return this.groups.size();
+        }
+
+        /**
+         * @return {@link boolean} true, if this call sealed the batch, false if it was already sealed
+         */
+        synchronized boolean seal() {
+            if (sealed) {
+                return false;
+            }
+            sealed = true;
+            return true;
+        }
+    }
+}
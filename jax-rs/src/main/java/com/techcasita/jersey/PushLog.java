@@ -0,0 +1,353 @@
+package com.techcasita.jersey;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * <code>PushLog</code> is an append-only log of pushes, stored in a directory of fixed-size, memory-mapped segment files.
+ * <p/>
+ * Every record is written as <code>[length][crc32][push]</code>, the length is written last and marks the record
+ * as complete. A length of 0 (the initial content of a segment) marks the end of the data, a record that doesn't fit
+ * into the current segment starts a new one. A separate checkpoint file holds the position of the first record
+ * that hasn't been delivered yet. Segments entirely before the checkpoint are deleted.
+ * <p/>
+ * When the log gets opened, the segments are scanned, a torn record at the end is discarded, and reading
+ * starts over at the checkpoint, i.e. delivery is at-least-once.
+ */
+final class PushLog {
+    private static final Logger LOG = Logger.getLogger(PushLog.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final int HEADER = 8;
+    private static final byte VERSION = 3;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final boolean force;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final MappedByteBuffer checkpoint;
+    private Segment head;
+    private long readSeq;
+    private int readPos;
+    private boolean closed;
+
+    /**
+     * A record read from the log, together with the position right after it.
+     */
+    static final class Entry {
+        private final Push push;
+        private final long nextSeq;
+        private final int nextPos;
+
+        Entry(final Push push, final long nextSeq, final int nextPos) {
+            this.push = push;
+            this.nextSeq = nextSeq;
+            this.nextPos = nextPos;
+        }
+
+        Push getPush() {
+            return push;
+        }
+    }
+
+    private static final class Segment {
+        private final long seq;
+        private final File file;
+        private final MappedByteBuffer buf;
+        private int limit;
+
+        Segment(final long seq, final File file, final MappedByteBuffer buf) {
+            this.seq = seq;
+            this.file = file;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * Open the log in the given directory, recovering existing segments.
+     *
+     * @param dir          {@link File} directory holding segments and checkpoint, created if needed
+     * @param segmentBytes {@link int} size of a segment file
+     * @param force        {@link boolean} true, to force every record to the storage device before acknowledging it
+     * @throws IOException if the directory or its files cannot be read or created
+     */
+    PushLog(final File dir, final int segmentBytes, final boolean force) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create queue directory " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.force = force;
+        this.checkpoint = map(new File(dir, "checkpoint"), 12);
+        this.readSeq = checkpoint.getLong(0);
+        this.readPos = checkpoint.getInt(8);
+        recover();
+    }
+
+    private static MappedByteBuffer map(final File file, final int size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void recover() throws IOException {
+        final String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(final File d, final String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(names);
+        for (final String name : names) {
+            final long seq = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            final File file = new File(dir, name);
+            if (seq < readSeq) {
+                delete(file);
+                continue;
+            }
+            final Segment segment = new Segment(seq, file, map(file, (int) Math.max(file.length(), segmentBytes)));
+            int pos = 0;
+            while (valid(segment.buf, pos)) {
+                pos += HEADER + segment.buf.getInt(pos);
+            }
+            if (pos + 4 <= segment.buf.capacity() && segment.buf.getInt(pos) != 0) {
+                LOG.warn("Discarding torn record at " + name + ":" + pos);
+                segment.buf.putInt(pos, 0);
+            }
+            segment.limit = pos;
+            segments.put(seq, segment);
+        }
+        if (segments.isEmpty()) {
+            head = create(readSeq);
+            readPos = 0;
+        } else {
+            head = segments.lastEntry().getValue();
+            if (readSeq < segments.firstKey()) {
+                readSeq = segments.firstKey();
+                readPos = 0;
+            }
+        }
+        final long startSeq = readSeq;
+        final int startPos = readPos;
+        int pending = 0;
+        while (next() != null) {
+            pending++;
+        }
+        readSeq = startSeq;
+        readPos = startPos;
+        if (0 < pending) {
+            LOG.info("Replaying " + pending + " undelivered pushes from " + dir);
+        }
+    }
+
+    private static boolean valid(final MappedByteBuffer buf, final int pos) {
+        if (buf.capacity() < pos + HEADER) {
+            return false;
+        }
+        final int length = buf.getInt(pos);
+        if (length <= 0 || buf.capacity() < pos + HEADER + length) {
+            return false;
+        }
+        final CRC32 crc = new CRC32();
+        for (int i = pos + HEADER; i < pos + HEADER + length; i++) {
+            crc.update(buf.get(i));
+        }
+        return (int) crc.getValue() == buf.getInt(pos + 4);
+    }
+
+    private Segment create(final long seq) throws IOException {
+        final File file = new File(dir, String.format("%s%020d%s", PREFIX, seq, SUFFIX));
+        final Segment segment = new Segment(seq, file, map(file, segmentBytes));
+        segments.put(seq, segment);
+        return segment;
+    }
+
+    private static void delete(final File file) {
+        if (!file.delete()) {
+            LOG.warn("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Append the push to the log. When this method returns, the push will survive a restart of the process.
+     *
+     * @param push {@link Push} to append
+     * @throws IOException if the log is closed, or a new segment cannot be created
+     */
+    synchronized void append(final Push push) throws IOException {
+        if (closed) {
+            throw new IOException("Queue is closed");
+        }
+        final byte[] record = encode(push);
+        if (segmentBytes < record.length + HEADER) {
+            throw new IOException("Push of " + record.length + " bytes exceeds the segment size");
+        }
+        if (head.buf.capacity() < head.limit + HEADER + record.length) {
+            head = create(head.seq + 1);
+        }
+        final MappedByteBuffer buf = head.buf;
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        final ByteBuffer body = buf.duplicate();
+        body.position(head.limit + 4);
+        body.putInt((int) crc.getValue());
+        body.put(record);
+        buf.putInt(head.limit, record.length);
+        head.limit += HEADER + record.length;
+        if (force) {
+            buf.force();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Read the records following the previously read ones, waiting for at least one to become available.
+     *
+     * @param max       {@link int} max. number of records to return
+     * @param timeoutMs {@link long} max. time to wait
+     * @return {@link List} of entries, empty if none became available in time or the log got closed
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    synchronized List<Entry> read(final int max, final long timeoutMs) throws InterruptedException {
+        final List<Entry> entries = new ArrayList<>();
+        Entry e = next();
+        if (e == null && !closed) {
+            wait(timeoutMs);
+            e = next();
+        }
+        while (e != null) {
+            entries.add(e);
+            e = entries.size() < max ? next() : null;
+        }
+        return entries;
+    }
+
+    private Entry next() {
+        Segment segment = segments.get(readSeq);
+        while (segment != null) {
+            if (readPos < segment.limit) {
+                final int length = segment.buf.getInt(readPos);
+                final ByteBuffer record = segment.buf.duplicate();
+                record.position(readPos + HEADER);
+                record.limit(readPos + HEADER + length);
+                readPos += HEADER + length;
+                return new Entry(decode(record), readSeq, readPos);
+            }
+            final Map.Entry<Long, Segment> later = segments.higherEntry(readSeq);
+            if (later == null) {
+                return null;
+            }
+            segment = later.getValue();
+            readSeq = segment.seq;
+            readPos = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Mark everything up to and including the entry as delivered, and delete segments that are no longer needed.
+     *
+     * @param entry {@link Entry} the last delivered entry
+     */
+    synchronized void ack(final Entry entry) {
+        checkpoint.putLong(0, entry.nextSeq);
+        checkpoint.putInt(8, entry.nextPos);
+        if (force) {
+            checkpoint.force();
+        }
+        while (segments.firstKey() < entry.nextSeq) {
+            delete(segments.pollFirstEntry().getValue().file);
+        }
+    }
+
+    /**
+     * Stop accepting pushes and wake up readers. Undelivered records stay in the log for the next start.
+     */
+    synchronized void close() {
+        closed = true;
+        for (final Segment segment : segments.values()) {
+            segment.buf.force();
+        }
+        checkpoint.force();
+        notifyAll();
+    }
+
+    private static byte[] encode(final Push push) {
+        final List<byte[]> strings = new ArrayList<>();
+        strings.add(bytes(push.getSid()));
+        for (final String group : push.getGroups()) {
+            strings.add(bytes(group));
+        }
+        strings.add(bytes(push.getTitle()));
+        strings.add(bytes(push.getText()));
+        strings.add(bytes(push.getIcon()));
+        strings.add(bytes(push.getStyle()));
+        int size = 1 + 8 + 8 + 2;
+        for (final byte[] s : strings) {
+            size += 4 + (s == null ? 0 : s.length);
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.put(VERSION);
+        buf.putLong(push.getId());
+        buf.putLong(push.getReceived());
+        buf.putShort((short) push.getGroups().size());
+        for (final byte[] s : strings) {
+            if (s == null) {
+                buf.putInt(-1);
+            } else {
+                buf.putInt(s.length);
+                buf.put(s);
+            }
+        }
+        return buf.array();
+    }
+
+    private static byte[] bytes(final String s) {
+        return s == null ? null : s.getBytes(UTF8);
+    }
+
+    private static Push decode(final ByteBuffer buf) {
+        // version 1 records carry no id, version 2 records no time received
+        final byte version = buf.get();
+        final long id = version < 2 ? Push.nextId() : buf.getLong();
+        final long received = version < 3 ? System.currentTimeMillis() : buf.getLong();
+        final int n = buf.getShort();
+        final String sid = string(buf);
+        final List<String> groups = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            groups.add(string(buf));
+        }
+        return new Push(id, received, sid, groups, string(buf), string(buf), string(buf), string(buf));
+    }
+
+    private static String string(final ByteBuffer buf) {
+        final int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] b = new byte[length];
+        buf.get(b);
+        return new String(b, UTF8);
+    }
+}
@@ -0,0 +1,139 @@
+package com.techcasita.jersey;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * <code>PushQueue</code> is a durable outbound queue in front of the upstream stages.
+ * A push is appended to the {@link PushLog} and acknowledged right away, with {@link #ACCEPTED}.
+ * <p/>
+ * A single drainer thread reads the log in batches, hands every push of a batch to the downstream stage,
+ * and waits for all of them to complete. Pushes that failed transiently (no response, a 408, 429 or 5xx status,
+ * see {@link PngResponse#isTransient()}) are retried with exponential backoff, before the log's checkpoint is moved
+ * past the batch. Other 4xx responses are final, the push is dropped.
+ */
+final class PushQueue implements PushSink {
+    /**
+     * Response given to the device, once its push is safely stored in the log
+     */
+    static final PngResponse ACCEPTED = new PngResponse(HttpURLConnection.HTTP_ACCEPTED, "queued");
+
+    private static final Logger LOG = Logger.getLogger(PushQueue.class);
+    private static final long POLL_MS = 1000;
+
+    private final PushLog log;
+    private final PushSink downstream;
+    private final int batchSize;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    /**
+     * @param log              {@link PushLog} storage of the queued pushes
+     * @param downstream       {@link PushSink} receives the queued pushes
+     * @param batchSize        {@link int} max. number of pushes delivered concurrently
+     * @param initialBackoffMs {@link long} delay before the first retry of a failed push
+     * @param maxBackoffMs     {@link long} upper bound of the retry delay
+     */
+    PushQueue(final PushLog log, final PushSink downstream, final int batchSize, final long initialBackoffMs, final long maxBackoffMs) {
+        this.log = log;
+        this.downstream = downstream;
+        this.batchSize = batchSize;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.drainer = new Thread("push-queue-drainer") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void submit(final Push push, final PngCallback callback) {
+        try {
+            log.append(push);
+            callback.completed(ACCEPTED);
+        } catch (IOException e) {
+            LOG.error("Push could not be queued: " + e.toString());
+            callback.completed(PngResponse.failed(e));
+        }
+    }
+
+    private void drain() {
+        try {
+            while (running) {
+                final List<PushLog.Entry> batch = log.read(batchSize, POLL_MS);
+                if (!batch.isEmpty() && deliver(batch)) {
+                    log.ack(batch.get(batch.size() - 1));
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutting down, undelivered pushes remain in the log
+        }
+    }
+
+    /**
+     * Deliver all pushes of the batch, retrying the failed ones until they succeed.
+     *
+     * @return {@link boolean} true, if the whole batch got delivered, false if the queue was shut down before
+     */
+    private boolean deliver(final List<PushLog.Entry> batch) throws InterruptedException {
+        List<PushLog.Entry> pending = batch;
+        long backoffMs = initialBackoffMs;
+        while (true) {
+            final PngResponse[] responses = new PngResponse[pending.size()];
+            final CountDownLatch done = new CountDownLatch(pending.size());
+            for (int i = 0; i < pending.size(); i++) {
+                final int index = i;
+                downstream.submit(pending.get(i).getPush(), new PngCallback() {
+                    @Override
+                    public void completed(final PngResponse response) {
+                        responses[index] = response;
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+
+            final List<PushLog.Entry> failed = new ArrayList<>();
+            for (int i = 0; i < responses.length; i++) {
+                if (responses[i].isTransient()) {
+                    failed.add(pending.get(i));
+                } else if (HttpURLConnection.HTTP_BAD_REQUEST <= responses[i].getCode()) {
+                    LOG.warn("Push rejected by PNG, dropping it: " + responses[i]);
+                }
+            }
+            if (failed.isEmpty()) {
+                return true;
+            }
+            if (!running) {
+                return false;
+            }
+            LOG.warn(failed.size() + " pushes failed, retrying in " + backoffMs + "ms");
+            Thread.sleep(backoffMs);
+            backoffMs = Math.min(backoffMs * 2, maxBackoffMs);
+            pending = failed;
+        }
+    }
+
+    /**
+     * Stop the drainer and close the log. Pushes that haven't been delivered yet are replayed on the next start.
+     */
+    void shutdown() {
+        running = false;
+        log.close();
+        drainer.interrupt();
+    }
+}
@@ -0,0 +1,17 @@
+package com.techcasita.jersey;
+
+/**
+ * <code>PushSink</code> is a stage of the forwarding pipeline. A stage either delivers the push itself,
+ * or passes it on to the next stage, possibly delayed or combined with others.
+ */
+interface PushSink {
+
+    /**
+     * Accept the push for delivery. The callback is invoked exactly once, with the response of the upstream request
+     * that carried the push.
+     *
+     * @param push     {@link Push} notification to deliver
+     * @param callback {@link PngCallback} receives the outcome
+     */
+    void submit(Push push, PngCallback callback);
+}
@@ -0,0 +1,232 @@
+package com.techcasita.jersey;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>PushThrottle</code> debounces and rate-limits pushes per device key, i.e. sender and target groups,
+ * to protect users from a sensor that keeps flapping around a threshold.
+ * <p/>
+ * The first push of a key is held back for the debounce window. A push arriving while another one is held back
+ * supersedes it: only the latest push of a key is sent, and the callers of the superseded ones receive its response.
+ * Every key has a token bucket; if it is empty when the held-back push is due, the push waits for the next token,
+ * collapsing further arrivals in the meantime.
+ * <p/>
+ * The state of every key is guarded by its own monitor, keys that were idle for a while are evicted.
+ */
+final class PushThrottle implements PushSink {
+
+    private final PushSink downstream;
+    private final long debounceMs;
+    private final double tokensPerMs;
+    private final double burst;
+    private final long idleMs;
+    private final ConcurrentMap<String, DeviceState> states = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final AtomicLong superseded = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * @param downstream    {@link PushSink} receives the pushes that made it through
+     * @param debounceMs    {@link long} time a push is held back, waiting for a newer one
+     * @param ratePerMinute {@link double} pushes per minute and key in the long run, 0 for no rate limit
+     * @param burst         {@link int} pushes a key may send in a row, after being quiet
+     * @param idleMs        {@link long} time after which the state of a quiet key is evicted
+     */
+    PushThrottle(final PushSink downstream, final long debounceMs, final double ratePerMinute, final int burst, final long idleMs) {
+        this.downstream = downstream;
+        this.debounceMs = debounceMs;
+        this.tokensPerMs = ratePerMinute / 60000d;
+        this.burst = Math.max(1, burst);
+        this.idleMs = idleMs;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "push-throttle");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final long sweepMs = Math.max(1000, idleMs / 2);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void submit(final Push push, final PngCallback callback) {
+        final String key = push.getSid() + '\u0000' + push.getGroups();
+        while (true) {
+            DeviceState state = states.get(key);
+            if (state == null) {
+                final DeviceState created = new DeviceState(burst, System.currentTimeMillis());
+                state = states.putIfAbsent(key, created);
+                if (state == null) {
+                    state = created;
+                }
+            }
+            if (offer(state, push, callback)) {
+                return;
+            }
+            // the state got evicted in the meantime, start over with a new one
+        }
+    }
+
+    private boolean offer(final DeviceState state, final Push push, final PngCallback callback) {
+        synchronized (state) {
+            if (state.evicted) {
+                return false;
+            }
+            state.lastSeen = System.currentTimeMillis();
+            state.callbacks.add(callback);
+            if (state.pending != null) {
+                state.pending = push;
+                superseded.incrementAndGet();
+                return true;
+            }
+            state.pending = push;
+        }
+        schedule(state, debounceMs);
+        return true;
+    }
+
+    private void schedule(final DeviceState state, final long delayMs) {
+        if (delayMs <= 0) {
+            release(state);
+            return;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                release(state);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send the held-back push of the key, if a token is available, otherwise try again once there is one.
+     */
+    private void release(final DeviceState state) {
+        final Push push;
+        final List<PngCallback> callbacks;
+        synchronized (state) {
+            final long now = System.currentTimeMillis();
+            if (0 < tokensPerMs) {
+                state.tokens = Math.min(burst, state.tokens + (now - state.refilled) * tokensPerMs);
+                state.refilled = now;
+                if (state.tokens < 1) {
+                    delayed.incrementAndGet();
+                    schedule(state, Math.max(1, (long) Math.ceil((1 - state.tokens) / tokensPerMs)));
+                    return;
+                }
+                state.tokens -= 1;
+            }
+            push = state.pending;
+            callbacks = state.callbacks;
+            state.pending = null;
+            state.callbacks = new ArrayList<>(1);
+        }
+        downstream.submit(push, new PngCallback() {
+            @Override
+            public void completed(final PngResponse response) {
+                for (final PngCallback callback : callbacks) {
+                    callback.completed(response);
+                }
+            }
+        });
+    }
+
+    private void evictIdle() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, DeviceState>> it = states.entrySet().iterator();
+        while (it.hasNext()) {
+            final DeviceState state = it.next().getValue();
+            synchronized (state) {
+                if (state.pending == null && idleMs < now - state.lastSeen) {
+                    state.evicted = true;
+                    it.remove();
+                    evicted.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@link long} number of pushes that were replaced by a newer push of the same key, before being sent
+     */
+    long getSuperseded() {
+        return superseded.get();
+    }
+
+    /**
+     * @return {@link long} number of times a push had to wait for a token
+     */
+    long getDelayed() {
+        return delayed.get();
+    }
+
+    /**
+     * @return {@link long} number of evicted idle keys
+     */
+    long getEvicted() {
+        return evicted.get();
+    }
+
+    /**
+     * @return {@link int} number of keys currently tracked
+     */
+    int getKeys() {
+        return states.size();
+    }
+
+    /**
+     * Send all held-back pushes right away, and stop the timer.
+     */
+    void shutdown() {
+        timer.shutdownNow();
+        for (final DeviceState state : states.values()) {
+            final boolean pending;
+            synchronized (state) {
+                pending = state.pending != null;
+                state.tokens = burst;
+            }
+            if (pending) {
+                release(state);
+            }
+        }
+    }
+
+    /**
+     * Throttling state of a single key.
+     */
+    private static final class DeviceState {
+        private Push pending;
+        private List<PngCallback> callbacks = new ArrayList<>(1);
+        private double tokens;
+        private long refilled;
+        private long lastSeen;
+        private boolean evicted;
+
+        DeviceState(final double tokens, final long now) {
+            this.tokens = tokens;
+            this.refilled = now;
+            this.lastSeen = now;
+        }
+    }
+}
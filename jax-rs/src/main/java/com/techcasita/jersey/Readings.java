@@ -0,0 +1,104 @@
+package com.techcasita.jersey;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import java.util.Arrays;
+
+/**
+ * <code>Readings</code> receives raw light sensor readings in bulk, and leaves it to the {@link SensorInterpreter}
+ * to decide which of them are worth a push. A device no longer needs to run the threshold logic itself,
+ * it can just report what it reads, e.g. once a minute, with all readings taken since.
+ * <p/>
+ * The body is plain text, one line per device: the device id, followed by its readings, oldest first,
+ * separated by blanks or commas, e.g.
+ * <pre>
+ * esp-kitchen 12 14 260 262
+ * esp-garage 3 3 4
+ * </pre>
+ * If the <code>device</code> parameter is given, the body holds the readings of that device only.
+ * A malformed reading fails the request with 400, the lines before it have been applied.
+ */
+@Path("readings")
+public class Readings {
+
+    /**
+     * @return {@link String} number of pushes the readings caused
+     */
+    @POST
+    @Consumes("text/plain")
+    @Produces("text/plain")
+    public String readings(
+            @QueryParam("sid") final String sid,
+            @QueryParam("device") final String device,
+            final String body) {
+        if (sid == null || sid.isEmpty()) {
+            throw new BadRequestException("sid is missing");
+        }
+        final SensorInterpreter interpreter = SensorInterpreter.getInstance();
+        int[] readings = new int[64];
+        int pushes = 0;
+        int pos = 0;
+        while (pos < body.length()) {
+            int eol = body.indexOf('\n', pos);
+            if (eol < 0) {
+                eol = body.length();
+            }
+            int p = skip(body, pos, eol);
+            String id = device;
+            if (id == null && p < eol) {
+                final int end = token(body, p, eol);
+                id = body.substring(p, end);
+                p = skip(body, end, eol);
+            }
+            int count = 0;
+            while (p < eol) {
+                final int end = token(body, p, eol);
+                if (count == readings.length) {
+                    readings = Arrays.copyOf(readings, count * 2);
+                }
+                readings[count++] = parse(body, p, end);
+                p = skip(body, end, eol);
+            }
+            pushes += interpreter.accept(sid, id, readings, count);
+            pos = eol + 1;
+        }
+        return String.valueOf(pushes);
+    }
+
+    private static boolean separator(final char c) {
+        return c == ' ' || c == ',' || c == '\t' || c == '\r';
+    }
+
+    private static int skip(final String s, int p, final int end) {
+        while (p < end && separator(s.charAt(p))) {
+            p++;
+        }
+        return p;
+    }
+
+    private static int token(final String s, int p, final int end) {
+        while (p < end && !separator(s.charAt(p))) {
+            p++;
+        }
+        return p;
+    }
+
+    private static int parse(final String s, final int from, final int to) {
+        if (to - from > 9) {
+            throw new BadRequestException("Reading out of range: " + s.substring(from, to));
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c < '0' || '9' < c) {
+                throw new BadRequestException("Not a reading: " + s.substring(from, to));
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+}
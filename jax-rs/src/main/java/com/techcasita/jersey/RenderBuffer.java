@@ -0,0 +1,71 @@
+package com.techcasita.jersey;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <code>RenderBuffer</code> is a growable byte buffer, messages get rendered into.
+ * Every thread owns one buffer, which is reset and reused for every message, so that rendering
+ * doesn't allocate once the buffer has grown to the size of the largest message.
+ */
+final class RenderBuffer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ThreadLocal<RenderBuffer> BUFFERS = new ThreadLocal<RenderBuffer>() {
+        @Override
+        protected RenderBuffer initialValue() {
+            return new RenderBuffer(1024);
+        }
+    };
+
+    private byte[] buf;
+    private int size;
+
+    RenderBuffer(final int capacity) {
+        buf = new byte[capacity];
+    }
+
+    /**
+     * @return {@link RenderBuffer} the calling thread's buffer, already reset
+     */
+    static RenderBuffer get() {
+        final RenderBuffer buffer = BUFFERS.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    void reset() {
+        size = 0;
+    }
+
+    void write(final int b) {
+        if (size == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length << 1);
+        }
+        buf[size++] = (byte) b;
+    }
+
+    void write(final byte[] bytes) {
+        final int n = bytes.length;
+        if (buf.length < size + n) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, size + n));
+        }
+        System.arraycopy(bytes, 0, buf, size, n);
+        size += n;
+    }
+
+    /**
+     * @return {@link byte[]} the backing array, only valid up to {@link #size()}
+     */
+    byte[] array() {
+        return buf;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, size, UTF8);
+    }
+}
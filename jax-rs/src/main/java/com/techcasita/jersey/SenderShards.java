@@ -0,0 +1,252 @@
+package com.techcasita.jersey;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>SenderShards</code> partitions the pushes by sender, so that one noisy sender cannot starve the others.
+ * <p/>
+ * A sender is assigned to one of a fixed number of shards by the hash of its id, every shard runs on its own thread.
+ * Within a shard, every sender has a bounded FIFO queue, and the senders with queued pushes take turns,
+ * one push each. A sender has at most <code>maxInFlight</code> pushes in the downstream stages, with 1 (the default)
+ * its pushes reach PNG in the order they arrived, i.e. the lighting transitions of a sender stay in order,
+ * while different senders proceed in parallel.
+ * <p/>
+ * A push that doesn't fit into its sender's queue is rejected right away with {@link #REJECTED}.
+ */
+final class SenderShards implements PushSink {
+    /**
+     * Response given, when the queue of the sender is full
+     */
+    static final PngResponse REJECTED = new PngResponse(429, "sender queue full");
+
+    private final PushSink downstream;
+    private final Shard[] shards;
+    private final int maxQueued;
+    private final int maxInFlight;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param downstream  {@link PushSink} receives the pushes, in order per sender
+     * @param shards      {@link int} number of shards, i.e. threads
+     * @param maxQueued   {@link int} max. number of queued pushes per sender
+     * @param maxInFlight {@link int} max. number of pushes per sender in the downstream stages
+     */
+    SenderShards(final PushSink downstream, final int shards, final int maxQueued, final int maxInFlight) {
+        this.downstream = downstream;
+        this.maxQueued = maxQueued;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void submit(final Push push, final PngCallback callback) {
+        final String sid = push.getSid() == null ? "" : push.getSid();
+        final Shard shard = shards[(sid.hashCode() & 0x7fffffff) % shards.length];
+        if (!shard.offer(sid, new Task(push, callback))) {
+            if (shard.isStopped()) {
+                downstream.submit(push, callback);
+            } else {
+                rejected.incrementAndGet();
+                callback.completed(REJECTED);
+            }
+        }
+    }
+
+    /**
+     * Append the queue depth, waiting time and number of senders per shard in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        out.append("# HELP lumen_shard_queued Pushes waiting in the sender queues of a shard.\n");
+        out.append("# TYPE lumen_shard_queued gauge\n");
+        for (final Shard shard : shards) {
+            out.append("lumen_shard_queued{shard=\"").append(shard.index).append("\"} ").append(shard.getQueued()).append('\n');
+        }
+        out.append("# HELP lumen_shard_senders Senders with queued or in-flight pushes in a shard.\n");
+        out.append("# TYPE lumen_shard_senders gauge\n");
+        for (final Shard shard : shards) {
+            out.append("lumen_shard_senders{shard=\"").append(shard.index).append("\"} ").append(shard.getSenders()).append('\n');
+        }
+        out.append("# HELP lumen_shard_wait_seconds Time a push waited in its sender queue.\n");
+        out.append("# TYPE lumen_shard_wait_seconds histogram\n");
+        for (final Shard shard : shards) {
+            shard.wait.export("lumen_shard_wait_seconds", "shard=\"" + shard.index + "\"", out);
+        }
+        out.append("# HELP lumen_shard_rejected_total Pushes rejected, because the queue of their sender was full.\n");
+        out.append("# TYPE lumen_shard_rejected_total counter\n");
+        out.append("lumen_shard_rejected_total ").append(rejected.get()).append('\n');
+    }
+
+    /**
+     * Stop the shard threads, and hand the pushes still queued to the downstream stage.
+     */
+    void shutdown() {
+        for (final Shard shard : shards) {
+            shard.shutdown();
+        }
+    }
+
+    private static final class Task {
+        private final Push push;
+        private final PngCallback callback;
+        private final long queued = System.nanoTime();
+
+        Task(final Push push, final PngCallback callback) {
+            this.push = push;
+            this.callback = callback;
+        }
+    }
+
+    private static final class Sender {
+        private final String sid;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        private int inFlight;
+        private boolean ready;
+
+        Sender(final String sid) {
+            this.sid = sid;
+        }
+    }
+
+    /**
+     * The senders of a shard, and the thread that takes turns among them.
+     */
+    private final class Shard {
+        private final int index;
+        private final Map<String, Sender> senders = new HashMap<>();
+        private final ArrayDeque<Sender> ready = new ArrayDeque<>();
+        private final LatencyHistogram wait = new LatencyHistogram();
+        private final Thread thread;
+        private int queued;
+        private boolean running = true;
+
+        Shard(final int index) {
+            this.index = index;
+            this.thread = new Thread("sender-shard-" + index) {
+                @Override
+                public void run() {
+                    dispatch();
+                }
+            };
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        synchronized boolean offer(final String sid, final Task task) {
+            if (!running) {
+                return false;
+            }
+            Sender sender = senders.get(sid);
+            if (sender == null) {
+                sender = new Sender(sid);
+                senders.put(sid, sender);
+            }
+            if (maxQueued <= sender.tasks.size()) {
+                return false;
+            }
+            sender.tasks.add(task);
+            queued++;
+            schedule(sender);
+            return true;
+        }
+
+        /**
+         * Put the sender at the end of the line, if it has a push to send and may send it.
+         */
+        private void schedule(final Sender sender) {
+            if (!sender.ready && !sender.tasks.isEmpty() && sender.inFlight < maxInFlight) {
+                sender.ready = true;
+                ready.add(sender);
+                notify();
+            }
+        }
+
+        private void dispatch() {
+            while (true) {
+                final Sender sender;
+                final Task task;
+                synchronized (this) {
+                    while (ready.isEmpty() && running) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            running = false;
+                        }
+                    }
+                    if (ready.isEmpty()) {
+                        return;
+                    }
+                    sender = ready.poll();
+                    sender.ready = false;
+                    task = sender.tasks.poll();
+                    sender.inFlight++;
+                    queued--;
+                    schedule(sender);
+                }
+                wait.record(System.nanoTime() - task.queued);
+                downstream.submit(task.push, new PngCallback() {
+                    @Override
+                    public void completed(final PngResponse response) {
+                        done(sender);
+                        task.callback.completed(response);
+                    }
+                });
+            }
+        }
+
+        private synchronized void done(final Sender sender) {
+            sender.inFlight--;
+            if (sender.tasks.isEmpty() && sender.inFlight == 0) {
+                senders.remove(sender.sid);
+            } else {
+                schedule(sender);
+            }
+        }
+
+        synchronized int getQueued() {
+            return queued;
+        }
+
+        synchronized int getSenders() {
+            return senders.size();
+        }
+
+        synchronized boolean isStopped() {
+            return !running;
+        }
+
+        void shutdown() {
+            synchronized (this) {
+                running = false;
+                notify();
+            }
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // pushes waiting for an in-flight push of their sender, no longer in order
+            final ArrayDeque<Task> remaining = new ArrayDeque<>();
+            synchronized (this) {
+                for (final Sender sender : senders.values()) {
+                    remaining.addAll(sender.tasks);
+                    sender.tasks.clear();
+                }
+                queued = 0;
+            }
+            for (final Task task : remaining) {
+                downstream.submit(task.push, task.callback);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.techcasita.jersey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>SensorInterpreter</code> turns raw light sensor readings into pushes, applying the {@link SensorRules}
+ * on the server, so that a device only has to report what it reads.
+ * <p/>
+ * Per device, only the last significant reading (k0) and the current lighting condition are kept,
+ * packed into a single <code>int</code> of a {@link DeviceStateTable}. Readings are applied in order,
+ * and a push is submitted to the pipeline only for readings that change something.
+ * <p/>
+ * If a snapshot file is configured, the device states are restored from it on start, written to it periodically
+ * and on shutdown, so that a restart neither forgets the devices nor reports their current condition again.
+ */
+final class SensorInterpreter {
+    private static final EventLog LOG = EventLog.getLogger(SensorInterpreter.class);
+    private static final int STRIPES = 64;
+    private static final int STRIPE_CAPACITY = 1024;
+    private static final int MAX_READING = 0xffff;
+    private static final SensorInterpreter INSTANCE = new SensorInterpreter(ForwardPipeline.getInstance(),
+            new DeviceStateTable(STRIPES, STRIPE_CAPACITY),
+            ForwardConfig.SENSORS_SNAPSHOT != null ? new File(ForwardConfig.SENSORS_SNAPSHOT) : null,
+            ForwardConfig.SENSORS_SNAPSHOT_SECONDS);
+
+    private final PushSink sink;
+    private final DeviceStateTable states;
+    private final File snapshot;
+    private final ScheduledExecutorService timer;
+    private final AtomicLong readings = new AtomicLong();
+    private final AtomicLong pushes = new AtomicLong();
+
+    /**
+     * @param sink            {@link PushSink} receives the pushes
+     * @param states          {@link DeviceStateTable} per-device state
+     * @param snapshot        {@link File} snapshot of the states, null to keep them in memory only
+     * @param snapshotSeconds {@link long} interval in seconds, the snapshot gets written
+     */
+    SensorInterpreter(final PushSink sink, final DeviceStateTable states, final File snapshot, final long snapshotSeconds) {
+        this.sink = sink;
+        this.states = states;
+        this.snapshot = snapshot;
+        if (snapshot == null) {
+            timer = null;
+            return;
+        }
+        if (snapshot.isFile()) {
+            restore();
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "sensor-snapshot");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot();
+            }
+        }, snapshotSeconds, snapshotSeconds, TimeUnit.SECONDS);
+    }
+
+    static SensorInterpreter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Apply the readings of a device, oldest first.
+     *
+     * @param sid      {@link String} sender id
+     * @param device   {@link String} device id, unique per sender
+     * @param readings {@link int[]} sensor readings
+     * @param count    {@link int} number of valid readings
+     * @return {@link int} number of pushes submitted
+     */
+    int accept(final String sid, final String device, final int[] readings, final int count) {
+        if (count == 0) {
+            return 0;
+        }
+        final long key = DeviceStateTable.key(sid, device);
+        final DeviceStateTable.Stripe stripe = states.stripe(key);
+        List<Push> transitions = null;
+        synchronized (stripe) {
+            final int state = stripe.get(key);
+            int i = 0;
+            int k0;
+            int condition;
+            if (state < 0) {
+                // a new device, its first reading is the baseline
+                k0 = clamp(readings[i++]);
+                condition = SensorRules.condition(k0, SensorRules.UNKNOWN);
+            } else {
+                k0 = state & MAX_READING;
+                condition = state >>> 16;
+            }
+            for (; i < count; i++) {
+                final int k1 = clamp(readings[i]);
+                if (Math.abs(k1 - k0) < SensorRules.VARIANCE) {
+                    continue;
+                }
+                final int next = SensorRules.condition(k1, condition);
+                final int mask = SensorRules.groups(k0, k1, condition, next);
+                if (mask != 0) {
+                    if (transitions == null) {
+                        transitions = new ArrayList<>(1);
+                    }
+                    transitions.add(SensorRules.push(Push.nextId(), sid, mask, k0, k1));
+                }
+                k0 = k1;
+                condition = next;
+            }
+            stripe.put(key, condition << 16 | k0);
+        }
+        this.readings.addAndGet(count);
+        if (transitions == null) {
+            return 0;
+        }
+        for (final Push push : transitions) {
+            sink.submit(push, new PngCallback() {
+                @Override
+                public void completed(final PngResponse response) {
+                    final int code = response.getCode();
+                    if (code == -1 || HttpURLConnection.HTTP_BAD_REQUEST <= code) {
+                        LOG.warn("event=transition id={} sid={} code={}", push.getId(), push.getSid(), code);
+                    }
+                }
+            });
+        }
+        pushes.addAndGet(transitions.size());
+        return transitions.size();
+    }
+
+    private static int clamp(final int reading) {
+        return Math.max(0, Math.min(MAX_READING, reading));
+    }
+
+    private void restore() {
+        final long t = System.currentTimeMillis();
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot), 64 * 1024));
+            try {
+                final long n = states.read(in);
+                LOG.info("event=restored devices={} file={} ms={}", n, snapshot, System.currentTimeMillis() - t);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("event=restore-failed file={} error={}", snapshot, e.toString());
+        }
+    }
+
+    private synchronized void writeSnapshot() {
+        final File tmp = new File(snapshot.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024));
+            try {
+                states.write(out);
+            } finally {
+                out.close();
+            }
+            Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("event=snapshot-failed file={} error={}", snapshot, e.toString());
+        }
+    }
+
+    /**
+     * Append the counters of the interpreter in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        out.append("# HELP lumen_sensor_readings_total Sensor readings received.\n");
+        out.append("# TYPE lumen_sensor_readings_total counter\n");
+        out.append("lumen_sensor_readings_total ").append(readings.get()).append('\n');
+        out.append("# HELP lumen_sensor_pushes_total Pushes created from sensor readings.\n");
+        out.append("# TYPE lumen_sensor_pushes_total counter\n");
+        out.append("lumen_sensor_pushes_total ").append(pushes.get()).append('\n');
+        out.append("# HELP lumen_sensor_devices Devices with a known state.\n");
+        out.append("# TYPE lumen_sensor_devices gauge\n");
+        out.append("lumen_sensor_devices ").append(states.size()).append('\n');
+    }
+
+    /**
+     * Stop the periodic snapshots and write a final one.
+     */
+    void shutdown() {
+        if (timer != null) {
+            timer.shutdown();
+            writeSnapshot();
+        }
+    }
+}
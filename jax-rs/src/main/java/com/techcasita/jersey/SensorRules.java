@@ -0,0 +1,125 @@
+package com.techcasita.jersey;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <code>SensorRules</code> interprets light sensor readings the way <code>interpretData</code> in
+ * <code>esp8266/lumen.ino</code> and <code>interpret_data</code> in <code>raspberry/lumen.py</code> do:
+ * <ul>
+ * <li>a change of at least d1, d2 or d3 between two significant readings is a small, medium or large fluctuation</li>
+ * <li>a reading below threshold0 is darkness, above threshold1 artificial light, in between natural light</li>
+ * </ul>
+ * Readings that differ from the previous significant one by less than the variance are ignored.
+ * A reading that lands exactly on a threshold keeps the previous condition.
+ * <p/>
+ * Groups are addressed by bit, in the order of {@link #GROUPS}, e.g. <code>d1 | natural</code> is <code>0b010001</code>.
+ */
+final class SensorRules {
+    static final int D1 = 50;
+    static final int D2 = 100;
+    static final int D3 = 150;
+    static final int THRESHOLD0 = 10;
+    static final int THRESHOLD1 = 250;
+    static final int VARIANCE = 15;
+
+    static final int UNKNOWN = 0;
+    static final int DARK = 1;
+    static final int NATURAL = 2;
+    static final int ARTIFICIAL = 3;
+
+    /**
+     * Group names without the <code>a_</code> prefix the ESP8266 sends, indexed by bit
+     */
+    static final String[] GROUPS = {"d1", "d2", "d3", "dark", "natural", "artificial"};
+    static final String GROUP_PREFIX = "a_";
+
+    private static final int FLUCTUATION_GROUPS = 3;
+    private static final String[] CONDITIONS = {"Small Fluctuation", "Medium Fluctuation", "Large Fluctuation",
+            "Absence of Light", "Natural Lighting", "Artificial Lighting"};
+    private static final String[] ICONS = {"r", "r", "r", "b", "g", "y"};
+
+    private SensorRules() {
+    }
+
+    /**
+     * @param k        {@link int} sensor reading
+     * @param previous {@link int} condition before the reading
+     * @return {@link int} lighting condition after the reading
+     */
+    static int condition(final int k, final int previous) {
+        if (k < THRESHOLD0) {
+            return DARK;
+        }
+        if (THRESHOLD1 < k) {
+            return ARTIFICIAL;
+        }
+        if (THRESHOLD0 < k && k < THRESHOLD1) {
+            return NATURAL;
+        }
+        return previous == UNKNOWN ? (k == THRESHOLD0 ? DARK : NATURAL) : previous;
+    }
+
+    /**
+     * @param k0       {@link int} previous significant reading
+     * @param k1       {@link int} current reading
+     * @param previous {@link int} condition at k0
+     * @param current  {@link int} condition at k1
+     * @return {@link int} bitmask of the groups to notify, 0 if there is nothing to tell
+     */
+    static int groups(final int k0, final int k1, final int previous, final int current) {
+        final int d = Math.abs(k1 - k0);
+        int mask = 0;
+        if (d >= D1) {
+            mask |= 1;
+        }
+        if (d >= D2) {
+            mask |= 1 << 1;
+        }
+        if (d >= D3) {
+            mask |= 1 << 2;
+        }
+        if (previous != UNKNOWN && previous != current) {
+            mask |= 1 << (FLUCTUATION_GROUPS + current - 1);
+        }
+        return mask;
+    }
+
+    /**
+     * Create the push, a device would have sent for the transition.
+     *
+     * @param id   {@link long} push id
+     * @param sid  {@link String} sender id
+     * @param mask {@link int} groups to notify, not 0
+     * @param k0   {@link int} previous significant reading
+     * @param k1   {@link int} current reading
+     * @return {@link Push} to the groups, titled by the most significant one
+     */
+    static Push push(final long id, final String sid, final int mask, final int k0, final int k1) {
+        return push(id, sid, mask, k0, k1, ICONS[31 - Integer.numberOfLeadingZeros(mask)]);
+    }
+
+    /**
+     * Create the push for a transition, the device already interpreted.
+     *
+     * @param id   {@link long} push id
+     * @param sid  {@link String} sender id
+     * @param mask {@link int} groups to notify, not 0
+     * @param k0   {@link int} previous significant reading
+     * @param k1   {@link int} current reading
+     * @param icon {@link String} icon code
+     * @return {@link Push} to the groups, titled by the most significant one
+     */
+    static Push push(final long id, final String sid, final int mask, final int k0, final int k1, final String icon) {
+        final List<String> groups = new ArrayList<>(Integer.bitCount(mask));
+        int top = 0;
+        for (int i = 0; i < GROUPS.length; i++) {
+            if ((mask & 1 << i) != 0) {
+                groups.add(GROUP_PREFIX + GROUPS[i]);
+                top = i;
+            }
+        }
+        return new Push(id, sid, groups, "Lumen " + CONDITIONS[top],
+                "Lighting conditions changed from " + k0 + " to " + k1, icon, null);
+    }
+}
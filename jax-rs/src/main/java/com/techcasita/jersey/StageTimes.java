@@ -0,0 +1,36 @@
+package com.techcasita.jersey;
+
+/**
+ * <code>StageTimes</code> collects the durations, in nanoseconds, of the stages a single upstream request went through.
+ * Every upstream thread reuses its own instance. A stage the request didn't get to, e.g. because connecting failed,
+ * keeps the duration {@link #NOT_RUN}.
+ */
+final class StageTimes {
+    static final long NOT_RUN = -1;
+
+    private static final ThreadLocal<StageTimes> TIMES = new ThreadLocal<StageTimes>() {
+        @Override
+        protected StageTimes initialValue() {
+            return new StageTimes();
+        }
+    };
+
+    long render;
+    long connect;
+    long write;
+    long response;
+    long read;
+
+    /**
+     * @return {@link StageTimes} the calling thread's instance, already reset
+     */
+    static StageTimes get() {
+        final StageTimes times = TIMES.get();
+        times.render = NOT_RUN;
+        times.connect = NOT_RUN;
+        times.write = NOT_RUN;
+        times.response = NOT_RUN;
+        times.read = NOT_RUN;
+        return times;
+    }
+}
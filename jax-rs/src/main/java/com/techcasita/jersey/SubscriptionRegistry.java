@@ -0,0 +1,162 @@
+package com.techcasita.jersey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <code>SubscriptionRegistry</code> keeps the members of every group on the server side, as a mirror of the
+ * subscriptions the app registers with PNG, so that fan-out can be observed and optimized here.
+ * <p/>
+ * Every device gets a dense <code>int</code> id on its first subscription, a group is a {@link CompressedBitmap}
+ * of device ids. The recipients of a push to several groups are the union of their bitmaps,
+ * i.e. a device in more than one of the groups is notified once.
+ * <p/>
+ * Fan-out takes the read lock, subscription changes the write lock.
+ */
+final class SubscriptionRegistry {
+    private static final SubscriptionRegistry INSTANCE = new SubscriptionRegistry();
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> devices = new ArrayList<>();
+    private final Map<String, CompressedBitmap> groups = new HashMap<>();
+
+    static SubscriptionRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param device {@link String} device, e.g. its registration id
+     * @param group  {@link String} group name
+     * @return {@link boolean} true, if the device wasn't a member of the group before
+     */
+    boolean subscribe(final String device, final String group) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(device);
+            if (id == null) {
+                id = devices.size();
+                ids.put(device, id);
+                devices.add(device);
+            }
+            CompressedBitmap members = groups.get(group);
+            if (members == null) {
+                members = new CompressedBitmap();
+                groups.put(group, members);
+            }
+            return members.add(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param device {@link String} device
+     * @param group  {@link String} group name
+     * @return {@link boolean} true, if the device was a member of the group
+     */
+    boolean unsubscribe(final String device, final String group) {
+        lock.writeLock().lock();
+        try {
+            final Integer id = ids.get(device);
+            final CompressedBitmap members = groups.get(group);
+            if (id == null || members == null || !members.remove(id)) {
+                return false;
+            }
+            if (members.cardinality() == 0) {
+                groups.remove(group);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param groups {@link List} group names
+     * @return {@link CompressedBitmap} ids of the devices in any of the groups
+     */
+    CompressedBitmap union(final List<String> groups) {
+        lock.readLock().lock();
+        try {
+            CompressedBitmap r = new CompressedBitmap();
+            for (final String group : groups) {
+                final CompressedBitmap members = this.groups.get(group);
+                if (members != null) {
+                    r = CompressedBitmap.or(r, members);
+                }
+            }
+            return r;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param groups {@link List} group names, at least one
+     * @return {@link CompressedBitmap} ids of the devices in all of the groups
+     */
+    CompressedBitmap intersection(final List<String> groups) {
+        lock.readLock().lock();
+        try {
+            CompressedBitmap r = null;
+            for (final String group : groups) {
+                final CompressedBitmap members = this.groups.get(group);
+                if (members == null) {
+                    return new CompressedBitmap();
+                }
+                r = r == null ? CompressedBitmap.or(new CompressedBitmap(), members) : CompressedBitmap.and(r, members);
+            }
+            return r == null ? new CompressedBitmap() : r;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param id {@link int} device id, as found in a recipient set
+     * @return {@link String} the device
+     */
+    String getDevice(final int id) {
+        lock.readLock().lock();
+        try {
+            return devices.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Append the size of the registry in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        long bytes = 0;
+        int n;
+        int devices;
+        lock.readLock().lock();
+        try {
+            n = groups.size();
+            devices = this.devices.size();
+            for (final CompressedBitmap members : groups.values()) {
+                bytes += members.sizeInBytes();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        out.append("# HELP lumen_subscription_devices Devices known to the subscription registry.\n");
+        out.append("# TYPE lumen_subscription_devices gauge\n");
+        out.append("lumen_subscription_devices ").append(devices).append('\n');
+        out.append("# HELP lumen_subscription_groups Groups with at least one member.\n");
+        out.append("# TYPE lumen_subscription_groups gauge\n");
+        out.append("lumen_subscription_groups ").append(n).append('\n');
+        out.append("# HELP lumen_subscription_bitmap_bytes Memory held by the group bitmaps.\n");
+        out.append("# TYPE lumen_subscription_bitmap_bytes gauge\n");
+        out.append("lumen_subscription_bitmap_bytes ").append(bytes).append('\n');
+    }
+}
@@ -0,0 +1,57 @@
+package com.techcasita.jersey;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import java.util.List;
+
+/**
+ * <code>Subscriptions</code> maintains the {@link SubscriptionRegistry}, e.g.
+ * <code>PUT /rest/subscriptions?device=...&amp;grp=a_dark</code> adds the device to the group,
+ * <code>DELETE</code> removes it, and <code>GET /rest/subscriptions?grp=a_d1&amp;grp=a_artificial</code>
+ * counts the devices in any of the groups, or in all of them with <code>match=all</code>.
+ */
+@Path("subscriptions")
+public class Subscriptions {
+
+    /**
+     * @return {@link String} 1 if the device got added to the group, 0 if it was a member already
+     */
+    @PUT
+    @Produces("text/plain")
+    public String subscribe(@QueryParam("device") final String device, @QueryParam("grp") final String grp) {
+        check(device, grp);
+        return SubscriptionRegistry.getInstance().subscribe(device, grp) ? "1" : "0";
+    }
+
+    /**
+     * @return {@link String} 1 if the device got removed from the group, 0 if it wasn't a member
+     */
+    @DELETE
+    @Produces("text/plain")
+    public String unsubscribe(@QueryParam("device") final String device, @QueryParam("grp") final String grp) {
+        check(device, grp);
+        return SubscriptionRegistry.getInstance().unsubscribe(device, grp) ? "1" : "0";
+    }
+
+    /**
+     * @return {@link String} number of distinct devices in any (or all) of the groups
+     */
+    @GET
+    @Produces("text/plain")
+    public String count(@QueryParam("grp") final List<String> groups, @QueryParam("match") final String match) {
+        final SubscriptionRegistry registry = SubscriptionRegistry.getInstance();
+        final CompressedBitmap devices = "all".equals(match) ? registry.intersection(groups) : registry.union(groups);
+        return String.valueOf(devices.cardinality());
+    }
+
+    private static void check(final String device, final String grp) {
+        if (device == null || device.isEmpty() || grp == null || grp.isEmpty()) {
+            throw new BadRequestException("device and grp are required");
+        }
+    }
+}
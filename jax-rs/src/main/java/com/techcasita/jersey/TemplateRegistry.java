@@ -0,0 +1,181 @@
+package com.techcasita.jersey;
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>TemplateRegistry</code> holds the compiled message templates, by name.
+ * <p/>
+ * Templates are replaced by publishing a new, immutable map, so that a render call always sees
+ * a complete set of templates. Besides the built-in <code>BigTextStyle</code> and <code>InboxStyle</code> templates,
+ * every <code>[name].json</code> file in the templates directory is loaded as a payload template,
+ * and the directory is checked periodically for modifications.
+ * <p/>
+ * Unless disabled, every payload is extended by a <code>trace</code> object, carrying the push id and the time in ms,
+ * the push was received at, which lets the device measure how long the notification took to arrive.
+ * <p/>
+ * With <code>lumen.payload.compact</code>, the built-in templates send the {@link CompactPayload} instead,
+ * a template file can do the same, by containing nothing but the <code>$COMPACT$</code> slot.
+ */
+final class TemplateRegistry {
+    static final String DEFAULT = "BigTextStyle";
+
+    private static final Logger LOG = Logger.getLogger(TemplateRegistry.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ENVELOPE = "{\"senderId\":\"$SID$\",\"gcm\":{\"dry_run\":false,\"time_to_live\":1,\"groups\":[$GRP$],\"data\":{\"payload\":\"$PAYLOAD$\"}}}";
+    private static final String BIG_TEXT_STYLE = "{\"style\":\"BigTextStyle\",\"BigTextStyle\":{\"bigContentTitle\":\"$TITLE$\",\"bigText\":\"$TEXT$\"},\"smallIcon\":\"$ICON$\",\"background\":\"ic_lightbulb_$ICON$\"}";
+    private static final String INBOX_STYLE = "{\"style\":\"InboxStyle\",\"InboxStyle\":{\"inboxTitle\":\"$TITLE$\",\"line1\":\"$TEXT$\"},\"smallIcon\":\"$ICON$\",\"background\":\"ic_lightbulb_$ICON$\"}";
+    private static final String COMPACT = "$COMPACT$";
+    private static final String TRACE = ",\"trace\":{\"id\":$TRACE$,\"sent\":$SENT$}";
+    private static final TemplateRegistry INSTANCE = new TemplateRegistry();
+
+    private volatile Map<String, MessageTemplate> templates = Collections.emptyMap();
+    private ScheduledExecutorService watcher;
+    private long lastModified;
+
+    private TemplateRegistry() {
+        register(DEFAULT, ForwardConfig.PAYLOAD_COMPACT ? COMPACT : BIG_TEXT_STYLE);
+        register("InboxStyle", ForwardConfig.PAYLOAD_COMPACT ? COMPACT : INBOX_STYLE);
+    }
+
+    static TemplateRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Compile the payload template and publish it under the given name, replacing a template with the same name.
+     *
+     * @param name    {@link String} template name, as requested by the <code>style</code> parameter
+     * @param payload {@link String} notification payload JSON, with <code>$TITLE$, $TEXT$, $ICON$</code> slots,
+     *                or just <code>$COMPACT$</code>, for the compact format
+     */
+    synchronized void register(final String name, final String payload) {
+        final Map<String, MessageTemplate> map = new HashMap<>(templates);
+        map.put(name, new MessageTemplate(name, ENVELOPE, traced(payload)));
+        templates = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @param payload {@link String} notification payload, a JSON object
+     * @return {@link String} the payload with a trace object as its last member, if tracing is enabled
+     */
+    private static String traced(final String payload) {
+        if (!ForwardConfig.TRACE || !payload.endsWith("}") || payload.contains("$TRACE$")) {
+            return payload;
+        }
+        return payload.substring(0, payload.length() - 1) + TRACE + "}";
+    }
+
+    /**
+     * @param name {@link String} template name, may be null
+     * @return {@link MessageTemplate} the named template, or the default template if there is none with that name
+     */
+    MessageTemplate get(final String name) {
+        final Map<String, MessageTemplate> map = templates;
+        final MessageTemplate template = name == null ? null : map.get(name);
+        return template != null ? template : map.get(DEFAULT);
+    }
+
+    /**
+     * Render the push into the buffer, using the template that was requested for it.
+     *
+     * @param push {@link Push} notification
+     * @param out  {@link RenderBuffer} receives the message
+     */
+    void render(final Push push, final RenderBuffer out) {
+        get(push.getStyle()).render(push, out);
+    }
+
+    /**
+     * Load all templates from the directory now, and reload them whenever a file in it gets modified.
+     *
+     * @param dir           {@link File} directory containing <code>[name].json</code> payload templates
+     * @param periodSeconds {@link long} interval in which the directory is checked for modifications
+     */
+    synchronized void watch(final File dir, final long periodSeconds) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "template-watcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                load(dir);
+            }
+        }, 0, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    synchronized void shutdown() {
+        if (watcher != null) {
+            watcher.shutdown();
+            watcher = null;
+        }
+    }
+
+    private synchronized void load(final File dir) {
+        final File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File f) {
+                return f.isFile() && f.getName().endsWith(".json");
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        long modified = 0;
+        for (final File f : files) {
+            modified = Math.max(modified, f.lastModified());
+        }
+        if (modified <= lastModified) {
+            return;
+        }
+        final Map<String, MessageTemplate> map = new HashMap<>(templates);
+        for (final File f : files) {
+            final String name = f.getName().substring(0, f.getName().length() - ".json".length());
+            try {
+                map.put(name, new MessageTemplate(name, ENVELOPE, traced(read(f).trim())));
+            } catch (IOException e) {
+                LOG.warn("Template " + f + " could not be read: " + e.toString());
+            }
+        }
+        templates = Collections.unmodifiableMap(map);
+        lastModified = modified;
+        LOG.info("Loaded " + files.length + " templates from " + dir);
+    }
+
+    private static String read(final File f) throws IOException {
+        final InputStream in = new FileInputStream(f);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) f.length());
+            final byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+}
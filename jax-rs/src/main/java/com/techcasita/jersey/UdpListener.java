@@ -0,0 +1,205 @@
+package com.techcasita.jersey;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>UdpListener</code> receives sensor events as small binary datagrams, a cheaper alternative to an HTTP GET
+ * on <code>/rest/forward</code> for every event. A frame is 27 bytes, big-endian:
+ * <pre>
+ *  0  version  u8    1
+ *  1  sid      16    sender id, ASCII, padded with 0
+ * 17  seq      u32   sequence number, incremented by the device for every frame
+ * 21  groups   u8    bitmask of the groups, in the order of SensorRules.GROUPS
+ * 22  k0       u16   previous reading
+ * 24  k1       u16   current reading
+ * 26  icon     u8    icon code, an ASCII character, e.g. 'y'
+ * </pre>
+ * The sequence number is tracked per sender and source address, devices should send from a fixed local port.
+ * A frame that repeats or precedes the last accepted one is dropped as a duplicate or late arrival. A frame far
+ * behind the last one is taken as a restart of the device, and accepted.
+ * <p/>
+ * Every receiver thread owns a slice of a single direct buffer, allocated up front, which it receives into and
+ * decodes from, so that frames are read without allocating buffers. Decoded frames enter the {@link PushSink}
+ * like any other push.
+ */
+final class UdpListener {
+    static final int FRAME_SIZE = 27;
+
+    private static final EventLog LOG = EventLog.getLogger(UdpListener.class);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte VERSION = 1;
+    private static final int SID_SIZE = 16;
+    private static final int SEQ_MASK = 0x7fffffff;
+    private static final int RESTART_WINDOW = 1024;
+    private static final String[] ICONS = new String[128];
+
+    static {
+        for (int i = 0; i < ICONS.length; i++) {
+            ICONS[i] = String.valueOf((char) i);
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final PushSink sink;
+    private final DeviceStateTable sequences = new DeviceStateTable(16, 1024);
+    private final List<Thread> receivers = new ArrayList<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+
+    /**
+     * @param port    {@link int} UDP port to listen on
+     * @param sink    {@link PushSink} receives the decoded pushes
+     * @param threads {@link int} number of receiver threads
+     * @throws IOException if the port cannot be bound
+     */
+    UdpListener(final int port, final PushSink sink, final int threads) throws IOException {
+        this.sink = sink;
+        this.channel = DatagramChannel.open();
+        this.channel.bind(new InetSocketAddress(port));
+        // one byte more than a frame, to tell oversized datagrams from frames
+        final ByteBuffer slab = ByteBuffer.allocateDirect(threads * (FRAME_SIZE + 1));
+        for (int i = 0; i < threads; i++) {
+            slab.limit((i + 1) * (FRAME_SIZE + 1)).position(i * (FRAME_SIZE + 1));
+            final ByteBuffer buf = slab.slice();
+            final Thread t = new Thread("udp-receiver-" + i) {
+                @Override
+                public void run() {
+                    receive(buf);
+                }
+            };
+            t.setDaemon(true);
+            receivers.add(t);
+        }
+        for (final Thread t : receivers) {
+            t.start();
+        }
+        LOG.info("event=listening protocol=udp port={} threads={}", port, threads);
+    }
+
+    private void receive(final ByteBuffer buf) {
+        final byte[] sidBytes = new byte[SID_SIZE];
+        final byte[] lastSidBytes = new byte[SID_SIZE];
+        String lastSid = null;
+        while (channel.isOpen()) {
+            final SocketAddress from;
+            try {
+                buf.clear();
+                from = channel.receive(buf);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.warn("event=receive-failed error={}", e.toString());
+                continue;
+            }
+            received.incrementAndGet();
+            buf.flip();
+            if (buf.remaining() != FRAME_SIZE || buf.get(0) != VERSION) {
+                malformed.incrementAndGet();
+                continue;
+            }
+            buf.position(1);
+            buf.get(sidBytes);
+            final int seq = buf.getInt() & SEQ_MASK;
+            final int groups = buf.get() & 0xff;
+            final int k0 = buf.getShort() & 0xffff;
+            final int k1 = buf.getShort() & 0xffff;
+            final int icon = buf.get() & 0xff;
+            if (groups == 0 || (groups >>> SensorRules.GROUPS.length) != 0 || ICONS.length <= icon) {
+                malformed.incrementAndGet();
+                continue;
+            }
+            if (lastSid == null || !Arrays.equals(sidBytes, lastSidBytes)) {
+                int n = 0;
+                while (n < SID_SIZE && sidBytes[n] != 0) {
+                    n++;
+                }
+                lastSid = new String(sidBytes, 0, n, ASCII);
+                System.arraycopy(sidBytes, 0, lastSidBytes, 0, SID_SIZE);
+            }
+            if (accept(lastSid, from, seq)) {
+                submit(SensorRules.push(Push.nextId(), lastSid, groups, k0, k1, ICONS[icon]));
+            }
+        }
+    }
+
+    /**
+     * @return {@link boolean} true, if the sequence number follows the last accepted one of the source
+     */
+    private boolean accept(final String sid, final SocketAddress from, final int seq) {
+        long key = DeviceStateTable.key(sid, "");
+        if (from instanceof InetSocketAddress) {
+            final InetSocketAddress address = (InetSocketAddress) from;
+            key = (key ^ address.getAddress().hashCode()) * 0x9e3779b97f4a7c15L ^ address.getPort();
+            key = key == 0 ? 1 : key;
+        }
+        final DeviceStateTable.Stripe stripe = sequences.stripe(key);
+        synchronized (stripe) {
+            final int last = stripe.get(key);
+            if (0 <= last) {
+                // distance in 31-bit serial number arithmetic
+                final int d = (seq - last) << 1 >> 1;
+                if (d == 0) {
+                    duplicates.incrementAndGet();
+                    return false;
+                }
+                if (d < 0 && -RESTART_WINDOW < d) {
+                    late.incrementAndGet();
+                    return false;
+                }
+            }
+            stripe.put(key, seq);
+            return true;
+        }
+    }
+
+    private void submit(final Push push) {
+        sink.submit(push, new PngCallback() {
+            @Override
+            public void completed(final PngResponse response) {
+                final int code = response.getCode();
+                if (code == -1 || HttpURLConnection.HTTP_BAD_REQUEST <= code) {
+                    LOG.warn("event=datagram id={} sid={} code={}", push.getId(), push.getSid(), code);
+                }
+            }
+        });
+    }
+
+    /**
+     * Append the counters of the listener in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        out.append("# HELP lumen_udp_frames_total Datagrams received, by outcome.\n");
+        out.append("# TYPE lumen_udp_frames_total counter\n");
+        final long dropped = duplicates.get() + late.get() + malformed.get();
+        out.append("lumen_udp_frames_total{outcome=\"accepted\"} ").append(received.get() - dropped).append('\n');
+        out.append("lumen_udp_frames_total{outcome=\"duplicate\"} ").append(duplicates.get()).append('\n');
+        out.append("lumen_udp_frames_total{outcome=\"late\"} ").append(late.get()).append('\n');
+        out.append("lumen_udp_frames_total{outcome=\"malformed\"} ").append(malformed.get()).append('\n');
+    }
+
+    /**
+     * Close the channel, which stops the receiver threads.
+     */
+    void shutdown() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("event=close-failed error={}", e.toString());
+        }
+    }
+}
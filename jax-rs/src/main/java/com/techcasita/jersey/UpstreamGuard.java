@@ -0,0 +1,138 @@
+package com.techcasita.jersey;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <code>UpstreamGuard</code> sits right in front of the PNG upstream and keeps a degraded PNG from dragging
+ * Forward down with it. Every push has to pass the {@link CircuitBreaker} and get a permit from the
+ * {@link AdaptiveLimit}, otherwise it is answered right away with {@link #LIMITED} or {@link #OPEN},
+ * instead of waiting in line for a connection that won't come back in time.
+ * <p/>
+ * With a fallback {@link PushQueue}, pushes arriving while the breaker is open or the limit is reached are stored and
+ * acknowledged instead, the queue's drainer retries them with backoff, until the guard lets them through.
+ */
+final class UpstreamGuard implements PushSink {
+    /**
+     * Response given, when the concurrency limit is reached
+     */
+    static final PngResponse LIMITED = new PngResponse(HttpURLConnection.HTTP_UNAVAILABLE, "upstream concurrency limit reached");
+
+    /**
+     * Response given, while the circuit breaker is open
+     */
+    static final PngResponse OPEN = new PngResponse(HttpURLConnection.HTTP_UNAVAILABLE, "upstream circuit open");
+
+    private final PushSink downstream;
+    private final AdaptiveLimit limit;
+    private final CircuitBreaker breaker;
+    private final AtomicLong limited = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong diverted = new AtomicLong();
+    private PushQueue fallback;
+
+    /**
+     * @param downstream {@link PushSink} the upstream stage
+     * @param limit      {@link AdaptiveLimit} concurrency limit
+     * @param breaker    {@link CircuitBreaker} breaker
+     */
+    UpstreamGuard(final PushSink downstream, final AdaptiveLimit limit, final CircuitBreaker breaker) {
+        this.downstream = downstream;
+        this.limit = limit;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Divert pushes to a queue while the breaker is open or the limit is reached, instead of rejecting them.
+     *
+     * @param log              {@link PushLog} storage of the diverted pushes
+     * @param initialBackoffMs {@link long} delay before the first retry
+     * @param maxBackoffMs     {@link long} upper bound of the retry delay
+     * @param batchSize        {@link int} max. number of diverted pushes retried concurrently
+     */
+    void setFallback(final PushLog log, final long initialBackoffMs, final long maxBackoffMs, final int batchSize) {
+        fallback = new PushQueue(log, new PushSink() {
+            @Override
+            public void submit(final Push push, final PngCallback callback) {
+                send(push, callback, false);
+            }
+        }, batchSize, initialBackoffMs, maxBackoffMs);
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void submit(final Push push, final PngCallback callback) {
+        send(push, callback, fallback != null);
+    }
+
+    private void send(final Push push, final PngCallback callback, final boolean divert) {
+        if (!limit.tryAcquire()) {
+            if (divert) {
+                diverted.incrementAndGet();
+                fallback.submit(push, callback);
+            } else {
+                limited.incrementAndGet();
+                callback.completed(LIMITED);
+            }
+            return;
+        }
+        if (!breaker.allow()) {
+            limit.cancel();
+            if (divert) {
+                diverted.incrementAndGet();
+                fallback.submit(push, callback);
+            } else {
+                rejected.incrementAndGet();
+                callback.completed(OPEN);
+            }
+            return;
+        }
+        final long t = System.nanoTime();
+        downstream.submit(push, new PngCallback() {
+            @Override
+            public void completed(final PngResponse response) {
+                final int code = response.getCode();
+                final boolean failed = code == -1 || HttpURLConnection.HTTP_INTERNAL_ERROR <= code;
+                limit.release(System.nanoTime() - t, failed);
+                breaker.record(failed);
+                callback.completed(response);
+            }
+        });
+    }
+
+    /**
+     * Append the limit, breaker state and shed pushes in Prometheus text format.
+     *
+     * @param out {@link StringBuilder} receives the lines
+     */
+    void export(final StringBuilder out) {
+        out.append("# HELP lumen_upstream_limit Current concurrency limit of the upstream requests.\n");
+        out.append("# TYPE lumen_upstream_limit gauge\n");
+        out.append("lumen_upstream_limit ").append(limit.getLimit()).append('\n');
+        out.append("# HELP lumen_upstream_in_flight Upstream requests holding a permit.\n");
+        out.append("# TYPE lumen_upstream_in_flight gauge\n");
+        out.append("lumen_upstream_in_flight ").append(limit.getInFlight()).append('\n');
+        out.append("# HELP lumen_upstream_shed_total Pushes not sent upstream, by reason.\n");
+        out.append("# TYPE lumen_upstream_shed_total counter\n");
+        out.append("lumen_upstream_shed_total{reason=\"limit\"} ").append(limited.get()).append('\n');
+        out.append("lumen_upstream_shed_total{reason=\"open\"} ").append(rejected.get()).append('\n');
+        out.append("lumen_upstream_shed_total{reason=\"diverted\"} ").append(diverted.get()).append('\n');
+        out.append("# HELP lumen_upstream_breaker_state Circuit breaker state, 0 closed, 1 open, 2 half open.\n");
+        out.append("# TYPE lumen_upstream_breaker_state gauge\n");
+        out.append("lumen_upstream_breaker_state ").append(breaker.getState()).append('\n');
+        out.append("# HELP lumen_upstream_breaker_opened_total Times the circuit breaker opened.\n");
+        out.append("# TYPE lumen_upstream_breaker_opened_total counter\n");
+        out.append("lumen_upstream_breaker_opened_total ").append(breaker.getOpened()).append('\n');
+    }
+
+    /**
+     * Stop the fallback queue, diverted pushes that weren't delivered yet are replayed on the next start.
+     */
+    void shutdown() {
+        if (fallback != null) {
+            fallback.shutdown();
+        }
+    }
+}
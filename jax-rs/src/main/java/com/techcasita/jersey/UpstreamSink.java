@@ -0,0 +1,68 @@
+package com.techcasita.jersey;
+
+import java.io.IOException;
+
+/**
+ * <code>UpstreamSink</code> is the last stage of the forwarding pipeline, it renders the push into the PNG message
+ * and POSTs it, using the shared {@link PngClient}.
+ * The message is rendered on the thread that posts it, into that thread's {@link RenderBuffer}.
+ * Only the payloads of a sample of the pushes get logged, see {@link EventLog#sampled(long)}.
+ */
+final class UpstreamSink implements PushSink {
+    private static final EventLog LOG = EventLog.getLogger(UpstreamSink.class);
+
+    private final PngClient client;
+    private final TemplateRegistry templates;
+    private final ForwardMetrics metrics;
+    private final boolean async;
+
+    /**
+     * @param client    {@link PngClient} connection to PNG
+     * @param templates {@link TemplateRegistry} message templates
+     * @param metrics   {@link ForwardMetrics} receives stage latencies and status codes
+     * @param async     {@link boolean} true, to call PNG on the client's executor, false to call it on the caller's thread
+     */
+    UpstreamSink(final PngClient client, final TemplateRegistry templates, final ForwardMetrics metrics, final boolean async) {
+        this.client = client;
+        this.templates = templates;
+        this.metrics = metrics;
+        this.async = async;
+    }
+
+    /**
+     * @inheritDoc
+     */
+    @Override
+    public void submit(final Push push, final PngCallback callback) {
+        if (async) {
+            client.execute(new Runnable() {
+                @Override
+                public void run() {
+                    post(push, callback);
+                }
+            }, callback);
+        } else {
+            post(push, callback);
+        }
+    }
+
+    private void post(final Push push, final PngCallback callback) {
+        final StageTimes times = StageTimes.get();
+        final long t = System.nanoTime();
+        final RenderBuffer buffer = RenderBuffer.get();
+        templates.render(push, buffer);
+        times.render = System.nanoTime() - t;
+        if (EventLog.sampled(push.getId()) && LOG.isInfoEnabled()) {
+            LOG.info("event=payload id={} url={} data={}", push.getId(), client.getUrl(), EventLog.truncate(buffer.array(), buffer.size()));
+        }
+
+        PngResponse response;
+        try {
+            response = client.post(buffer.array(), buffer.size(), times);
+        } catch (IOException e) {
+            response = PngResponse.failed(e);
+        }
+        metrics.upstream(push, times, response.getCode());
+        callback.completed(response);
+    }
+}
@@ -0,0 +1,46 @@
+package com.techcasita.jersey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * <code>BulkForwardTest</code> covers the parser of the ndjson records.
+ */
+public class BulkForwardTest {
+
+    @Test
+    public void parse() {
+        final String[] fields = BulkForward.parse(
+                "{\"sid\":\"s1\", \"grp\":\"g1\",\"title\":\"Raspi\",\"text\":\"on\",\"icon\":\"y\",\"style\":null,\"key\":\"k1\"}");
+        assertArrayEquals(new String[]{"s1", "g1", "Raspi", "on", "y", null, "k1"}, fields);
+    }
+
+    @Test
+    public void missingAndUnknownFields() {
+        assertArrayEquals(new String[]{null, null, "t", null, null, null, null},
+                BulkForward.parse(" { \"title\" : \"t\" , \"other\":\"x\" } "));
+        assertArrayEquals(new String[7], BulkForward.parse("{}"));
+    }
+
+    @Test
+    public void escapes() {
+        final String[] fields = BulkForward.parse("{\"text\":\"a\\\"b\\\\c\\/d\\n\\t\\u00e9\\u263A\"}");
+        assertEquals("a\"b\\c/d\n\t\u00e9\u263a", fields[3]);
+    }
+
+    @Test
+    public void malformed() {
+        for (final String record : new String[]{"", "[]", "{\"text\":\"x\"", "{\"text\":\"x}", "{\"text\":1}",
+                "{\"text\" \"x\"}", "{\"text\":\"x\"} {}", "{\"text\":\"\\u12\"}", "{\"text\":\"x\",}"}) {
+            try {
+                BulkForward.parse(record);
+                fail("accepted " + record);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.techcasita.jersey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <code>CircuitBreakerTest</code> walks the breaker through closed, open and half open.
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void staysClosedBelowMinCalls() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 5, 50, 60000, 1);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.allow());
+            breaker.record(true);
+        }
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        assertTrue(breaker.allow());
+        breaker.record(true);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+        assertFalse(breaker.allow());
+        assertEquals(1, breaker.getOpened());
+    }
+
+    @Test
+    public void staysClosedBelowFailurePercent() {
+        final CircuitBreaker breaker = new CircuitBreaker(10, 5, 50, 60000, 1);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(breaker.allow());
+            breaker.record(i % 3 == 0);
+        }
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getOpened());
+    }
+
+    @Test
+    public void oldOutcomesLeaveTheWindow() {
+        final CircuitBreaker breaker = new CircuitBreaker(4, 4, 75, 60000, 1);
+        breaker.record(true);
+        breaker.record(true);
+        breaker.record(false);
+        breaker.record(false);
+        breaker.record(false);
+        breaker.record(false);
+        // the first failures left the window, none of the last 4 failed
+        breaker.record(true);
+        breaker.record(true);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        breaker.record(true);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void probesClose() {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 1, 50, 0, 2);
+        breaker.record(true);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+
+        assertTrue(breaker.allow());
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allow());
+        assertFalse(breaker.allow());
+        breaker.record(false);
+        assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+        breaker.record(false);
+        assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+        assertTrue(breaker.allow());
+    }
+
+    @Test
+    public void failedProbeOpens() {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 1, 50, 0, 2);
+        breaker.record(true);
+        assertTrue(breaker.allow());
+        breaker.record(true);
+        assertEquals(CircuitBreaker.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpened());
+    }
+}
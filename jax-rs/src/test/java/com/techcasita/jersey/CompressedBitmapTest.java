@@ -0,0 +1,104 @@
+package com.techcasita.jersey;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <code>CompressedBitmapTest</code> covers sparse and dense chunks, the switch between them, and the set operations.
+ */
+public class CompressedBitmapTest {
+
+    @Test
+    public void addAndRemove() {
+        final CompressedBitmap bitmap = new CompressedBitmap();
+        assertTrue(bitmap.add(7));
+        assertFalse(bitmap.add(7));
+        assertTrue(bitmap.add(70000));
+        assertTrue(bitmap.contains(7));
+        assertTrue(bitmap.contains(70000));
+        assertFalse(bitmap.contains(8));
+        assertEquals(2, bitmap.cardinality());
+
+        assertTrue(bitmap.remove(7));
+        assertFalse(bitmap.remove(7));
+        assertFalse(bitmap.remove(123456));
+        assertFalse(bitmap.contains(7));
+        assertEquals(1, bitmap.cardinality());
+    }
+
+    @Test
+    public void denseChunk() {
+        final CompressedBitmap bitmap = new CompressedBitmap();
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(bitmap.add(2 * i));
+        }
+        assertEquals(10000, bitmap.cardinality());
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i % 2 == 0, bitmap.contains(i));
+        }
+        // back below the size of a sparse chunk
+        for (int i = 0; i < 9000; i++) {
+            assertTrue(bitmap.remove(2 * i));
+        }
+        assertEquals(1000, bitmap.cardinality());
+        assertFalse(bitmap.contains(0));
+        assertTrue(bitmap.contains(18000));
+    }
+
+    @Test
+    public void forEachVisitsInOrder() {
+        final CompressedBitmap bitmap = new CompressedBitmap();
+        final int[] values = {1 << 20, 5, 65536, 3, 65535, Integer.MAX_VALUE};
+        for (final int value : values) {
+            bitmap.add(value);
+        }
+        final List<Integer> visited = new ArrayList<>();
+        bitmap.forEach(new CompressedBitmap.Visitor() {
+            @Override
+            public void visit(final int value) {
+                visited.add(value);
+            }
+        });
+        final List<Integer> expected = new ArrayList<>();
+        for (final int value : new int[]{3, 5, 65535, 65536, 1 << 20, Integer.MAX_VALUE}) {
+            expected.add(value);
+        }
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    public void orAndAnd() {
+        final CompressedBitmap a = new CompressedBitmap();
+        final CompressedBitmap b = new CompressedBitmap();
+        for (int i = 0; i < 6000; i++) {
+            a.add(i);
+            b.add(3000 + i);
+        }
+        a.add(100000);
+        b.add(200000);
+
+        final CompressedBitmap or = CompressedBitmap.or(a, b);
+        assertEquals(9002, or.cardinality());
+        assertTrue(or.contains(0));
+        assertTrue(or.contains(8999));
+        assertTrue(or.contains(100000));
+        assertTrue(or.contains(200000));
+
+        final CompressedBitmap and = CompressedBitmap.and(a, b);
+        assertEquals(3000, and.cardinality());
+        assertFalse(and.contains(2999));
+        assertTrue(and.contains(3000));
+        assertTrue(and.contains(5999));
+        assertFalse(and.contains(100000));
+
+        // the operands are left as they were
+        assertEquals(6001, a.cardinality());
+        assertEquals(6001, b.cardinality());
+    }
+}
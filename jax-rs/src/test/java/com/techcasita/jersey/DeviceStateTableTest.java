@@ -0,0 +1,74 @@
+package com.techcasita.jersey;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * <code>DeviceStateTableTest</code> covers keys, updates beyond the initial capacity and the snapshot round trip.
+ */
+public class DeviceStateTableTest {
+
+    @Test
+    public void key() {
+        assertEquals(DeviceStateTable.key("sid", "device"), DeviceStateTable.key("sid", "device"));
+        assertNotEquals(DeviceStateTable.key("sid", "device"), DeviceStateTable.key("sidd", "evice"));
+        assertNotEquals(0, DeviceStateTable.key("", ""));
+    }
+
+    @Test
+    public void putAndGet() {
+        final DeviceStateTable table = new DeviceStateTable(4, 2);
+        for (int i = 0; i < 1000; i++) {
+            put(table, DeviceStateTable.key("sid", "d" + i), i);
+        }
+        put(table, DeviceStateTable.key("sid", "d7"), 42);
+        assertEquals(1000, table.size());
+        assertEquals(42, get(table, DeviceStateTable.key("sid", "d7")));
+        assertEquals(999, get(table, DeviceStateTable.key("sid", "d999")));
+        assertEquals(-1, get(table, DeviceStateTable.key("sid", "unknown")));
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+        final DeviceStateTable table = new DeviceStateTable(8, 4);
+        for (int i = 0; i < 100; i++) {
+            put(table, DeviceStateTable.key("sid", "d" + i), i % 5);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.write(new DataOutputStream(bytes));
+
+        final DeviceStateTable copy = new DeviceStateTable(2, 2);
+        assertEquals(100, copy.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        assertEquals(100, copy.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 5, get(copy, DeviceStateTable.key("sid", "d" + i)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notASnapshot() throws IOException {
+        new DeviceStateTable(2, 2).read(new DataInputStream(new ByteArrayInputStream(new byte[16])));
+    }
+
+    private static void put(final DeviceStateTable table, final long key, final int state) {
+        final DeviceStateTable.Stripe stripe = table.stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, state);
+        }
+    }
+
+    private static int get(final DeviceStateTable table, final long key) {
+        final DeviceStateTable.Stripe stripe = table.stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+}
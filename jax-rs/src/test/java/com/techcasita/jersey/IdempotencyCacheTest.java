@@ -0,0 +1,102 @@
+package com.techcasita.jersey;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <code>IdempotencyCacheTest</code> covers duplicates arriving before and after the response, transient responses,
+ * the TTL and the key limit.
+ */
+public class IdempotencyCacheTest {
+
+    @Test
+    public void keys() {
+        assertEquals(IdempotencyCache.key("sid", "k"), IdempotencyCache.key("sid", "k"));
+        assertNotEquals(IdempotencyCache.key("sid", "k"), IdempotencyCache.key("si", "dk"));
+        assertNotEquals(IdempotencyCache.key(1, "sid", "grp", "title"), IdempotencyCache.key(2, "sid", "grp", "title"));
+        assertNotEquals(IdempotencyCache.key(1, "sid", null, "title"), IdempotencyCache.key(1, "sid", "title", null));
+    }
+
+    @Test
+    public void duplicateAfterResponse() {
+        final IdempotencyCache cache = new IdempotencyCache(1000, 60000);
+        final Recorder first = new Recorder();
+        final PngCallback send = cache.begin(1, first);
+        assertNotNull(send);
+        final PngResponse response = new PngResponse(200, "{}");
+        send.completed(response);
+        assertSame(response, first.responses.get(0));
+
+        final Recorder duplicate = new Recorder();
+        assertNull(cache.begin(1, duplicate));
+        assertSame(response, duplicate.responses.get(0));
+    }
+
+    @Test
+    public void duplicateWhileInFlight() {
+        final IdempotencyCache cache = new IdempotencyCache(1000, 60000);
+        final Recorder first = new Recorder();
+        final Recorder duplicate = new Recorder();
+        final PngCallback send = cache.begin(1, first);
+        assertNull(cache.begin(1, duplicate));
+        assertTrue(duplicate.responses.isEmpty());
+
+        final PngResponse response = new PngResponse(200, "{}");
+        send.completed(response);
+        assertSame(response, first.responses.get(0));
+        assertSame(response, duplicate.responses.get(0));
+    }
+
+    @Test
+    public void transientResponseIsNotKept() {
+        final IdempotencyCache cache = new IdempotencyCache(1000, 60000);
+        final Recorder first = new Recorder();
+        final Recorder waiter = new Recorder();
+        final PngCallback send = cache.begin(1, first);
+        assertNull(cache.begin(1, waiter));
+        final PngResponse failure = new PngResponse(503, "unavailable");
+        send.completed(failure);
+        // the waiter gets the failure, the retry is sent again
+        assertSame(failure, waiter.responses.get(0));
+        assertNotNull(cache.begin(1, new Recorder()));
+    }
+
+    @Test
+    public void expired() throws InterruptedException {
+        final IdempotencyCache cache = new IdempotencyCache(1000, 1);
+        cache.begin(1, new Recorder()).completed(new PngResponse(200, "{}"));
+        Thread.sleep(5);
+        assertNotNull(cache.begin(1, new Recorder()));
+    }
+
+    @Test
+    public void evicted() {
+        // a single key per stripe
+        final IdempotencyCache cache = new IdempotencyCache(64, 60000);
+        cache.begin(0, new Recorder()).completed(new PngResponse(200, "{}"));
+        cache.begin(64, new Recorder()).completed(new PngResponse(200, "{}"));
+        // key 0 made room for key 64, which now makes room for key 0
+        assertNotNull(cache.begin(0, new Recorder()));
+        final StringBuilder out = new StringBuilder();
+        cache.export(out);
+        assertTrue(out.toString(), out.indexOf("lumen_idempotency_evictions_total{reason=\"capacity\"} 2\n") >= 0);
+    }
+
+    private static final class Recorder implements PngCallback {
+        private final List<PngResponse> responses = new ArrayList<>();
+
+        @Override
+        public void completed(final PngResponse response) {
+            responses.add(response);
+        }
+    }
+}